@@ -0,0 +1,87 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.service.ConferenceQueryPlanner;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sets up the local App Engine services for a benchmark thread, so that keys can be created
+ * and Objectify queries can be built outside of a servlet container. The datastore RPCs can be
+ * given a simulated latency with {@link SimulatedLatencyDelegate}.
+ */
+final class BenchmarkEnvironment {
+
+    /**
+     * Held so that the level set below is not lost when the logger is garbage collected.
+     */
+    private static final Logger QUERY_PLANNER_LOG =
+            Logger.getLogger(ConferenceQueryPlanner.class.getName());
+
+    static {
+        // ConferenceQueryPlanner logs every query plan at FINE, which would dominate the
+        // benchmark if a logging configuration enabled it.
+        QUERY_PLANNER_LOG.setLevel(Level.WARNING);
+    }
+
+    // The high replication datastore, which cross-group transactions need, with every write
+    // applied at once, so that the queries see it.
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private final long rpcLatencyMillis;
+
+    private final long memcacheLatencyMillis;
+
+    private ApiProxy.Environment environment;
+
+    BenchmarkEnvironment() {
+        this(0);
+    }
+
+    /**
+     * @param rpcLatencyMillis the latency added to every datastore RPC, in milliseconds.
+     */
+    BenchmarkEnvironment(long rpcLatencyMillis) {
+        this(rpcLatencyMillis, 0);
+    }
+
+    /**
+     * @param rpcLatencyMillis the latency added to every datastore RPC, in milliseconds.
+     * @param memcacheLatencyMillis the latency added to every memcache RPC, in milliseconds.
+     */
+    BenchmarkEnvironment(long rpcLatencyMillis, long memcacheLatencyMillis) {
+        this.rpcLatencyMillis = rpcLatencyMillis;
+        this.memcacheLatencyMillis = memcacheLatencyMillis;
+    }
+
+    /**
+     * Must be called on the thread that runs the benchmark, i.e. from a Scope.Thread setup,
+     * unless the other threads are attached with {@link #attachCurrentThread()}.
+     */
+    void setUp() {
+        helper.setUp();
+        environment = ApiProxy.getCurrentEnvironment();
+        if (rpcLatencyMillis > 0 || memcacheLatencyMillis > 0) {
+            ApiProxy.setDelegate(new SimulatedLatencyDelegate(
+                    ApiProxy.getDelegate(), rpcLatencyMillis, memcacheLatencyMillis));
+        }
+    }
+
+    /**
+     * Lets the current thread use the services set up by another thread, so that the threads of
+     * a Scope.Benchmark state share one datastore.
+     */
+    void attachCurrentThread() {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+    }
+
+    void tearDown() {
+        helper.tearDown();
+    }
+}
@@ -0,0 +1,101 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.domain.ConferenceCreateResult;
+import com.google.devrel.training.conference.form.ConferenceBatchForm;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the throughput of importing 500 conferences, with createConferencesBatch in
+ * batches of a given size, on the local datastore with a simulated latency on every datastore
+ * RPC. A batch size of 1 stands for one call per conference.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkCreateBenchmark {
+
+    private static final int CONFERENCES = 500;
+
+    @Param({"20"})
+    private long rpcLatencyMillis;
+
+    @Param({"1", "50", "500"})
+    private int batchSize;
+
+    private BenchmarkEnvironment environment;
+
+    private final ConferenceApi api = new ConferenceApi();
+
+    private final User user = new User("example@gmail.com", "gmail.com", "123456789");
+
+    private final List<ConferenceBatchForm> batches = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment = new BenchmarkEnvironment(rpcLatencyMillis);
+        environment.setUp();
+        ConferenceIdAllocator.reset();
+        for (int from = 0; from < CONFERENCES; from += batchSize) {
+            List<ConferenceForm> forms = new ArrayList<>();
+            for (int i = from; i < Math.min(from + batchSize, CONFERENCES); i++) {
+                forms.add(new ConferenceForm("Conference " + i, "A day of talks",
+                        Arrays.asList("Cloud"), "London", null, null, 100));
+            }
+            batches.add(new ConferenceBatchForm(forms));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    /**
+     * The score is in conferences per second.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CONFERENCES)
+    public int importConferences() throws UnauthorizedException, BadRequestException {
+        int created = 0;
+        for (ConferenceBatchForm batch : batches) {
+            try {
+                CollectionResponse<ConferenceCreateResult> results =
+                        api.createConferencesBatch(user, batch);
+                created += results.getItems().size();
+            } finally {
+                ObjectifyFilter.complete();
+            }
+        }
+        return created;
+    }
+}
@@ -0,0 +1,81 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks creating and updating a Conference from a ConferenceForm. A form with a start date
+ * goes through the Calendar lookup of the month in updateWithConferenceForm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConferenceConstructionBenchmark {
+
+    private static final String USER_ID = "123456789";
+
+    private static final String DESCRIPTION = "New announcements for Google Cloud Platform";
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private ConferenceForm formWithDates;
+
+    private ConferenceForm formWithoutDates;
+
+    private Conference conference;
+
+    private long id;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        Date startDate = new Date(1433116800000L);
+        Date endDate = new Date(1433289600000L);
+        formWithDates = new ConferenceForm("GCP Live", DESCRIPTION,
+                Arrays.asList("Google", "Cloud Platform"), "San Francisco", startDate, endDate, 100);
+        formWithoutDates = new ConferenceForm("GCP Live", DESCRIPTION,
+                Arrays.asList("Google", "Cloud Platform"), "San Francisco", null, null, 100);
+        conference = new Conference(1L, USER_ID, formWithDates);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public Conference constructWithDates() {
+        return new Conference(++id, USER_ID, formWithDates);
+    }
+
+    @Benchmark
+    public Conference constructWithoutDates() {
+        return new Conference(++id, USER_ID, formWithoutDates);
+    }
+
+    @Benchmark
+    public Conference updateWithConferenceForm() {
+        conference.updateWithConferenceForm(formWithDates);
+        return conference;
+    }
+}
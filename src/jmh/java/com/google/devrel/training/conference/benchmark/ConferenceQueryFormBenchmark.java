@@ -0,0 +1,80 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.cmd.Query;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building the Objectify query for a ConferenceQueryForm, including planning its filters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConferenceQueryFormBenchmark {
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private ConferenceQueryForm emptyForm;
+
+    private ConferenceQueryForm filteredForm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        emptyForm = new ConferenceQueryForm();
+        filteredForm = newFilteredForm();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    private static ConferenceQueryForm newFilteredForm() {
+        return new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "London"))
+                .filter(new Filter(Field.TOPIC, Operator.EQ, "Medical Innovations"))
+                .filter(new Filter(Field.MONTH, Operator.EQ, "6"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "10"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "100"));
+    }
+
+    @Benchmark
+    public Query<Conference> getQueryWithoutFilters() {
+        return emptyForm.getQuery();
+    }
+
+    @Benchmark
+    public Query<Conference> getQueryWithFilters() {
+        return filteredForm.getQuery();
+    }
+
+    /**
+     * Includes adding the filters, as an API request deserializes a new form every time.
+     */
+    @Benchmark
+    public Query<Conference> buildFormAndGetQuery() {
+        return newFilteredForm().getQuery();
+    }
+}
@@ -0,0 +1,146 @@
+package com.google.devrel.training.conference.benchmark;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceQueryPlanner;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the first page of queries with a not-equal filter on a seeded local datastore,
+ * with the filter passed to the datastore ("datastore") or rewritten by the query planner
+ * ("rewritten"): the month as a union of equality queries, the city as an in-memory filter and
+ * maxAttendees as a pair of range queries.
+ *
+ * Every invocation goes through ConferenceApi.queryConferences with the query cache
+ * invalidated and the Objectify session cleared, so both strategies pay for the same memcache
+ * increment and entity loads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NotEqualFilterBenchmark {
+
+    private static final String USER_ID = "123456789";
+
+    private static final String[] CITIES = {"London", "Paris", "Berlin", "San Francisco",
+            "Tokyo", "Chicago", "Sydney", "Toronto"};
+
+    @Param({"datastore", "rewritten"})
+    private String strategy;
+
+    @Param({"month", "monthAndMaxAttendees", "city", "maxAttendees"})
+    private String query;
+
+    @Param({"500"})
+    private int conferences;
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    private String rewriteProperty;
+
+    private ConferenceQueryForm queryForm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        rewriteProperty = System.getProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY);
+        System.setProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY,
+                String.valueOf("rewritten".equals(strategy)));
+        seed();
+        queryForm = new ConferenceQueryForm();
+        switch (query) {
+            case "month":
+                queryForm.filter(new Filter(Field.MONTH, Operator.NE, "6"));
+                break;
+            case "monthAndMaxAttendees":
+                queryForm.filter(new Filter(Field.MONTH, Operator.NE, "6"))
+                        .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "100"));
+                break;
+            case "city":
+                queryForm.filter(new Filter(Field.CITY, Operator.NE, "London"));
+                break;
+            case "maxAttendees":
+                queryForm.filter(new Filter(Field.MAX_ATTENDEES, Operator.NE, "100"));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query " + query);
+        }
+    }
+
+    /**
+     * Creates the conferences with values drawn from a fixed seed, so that every run queries
+     * the same data.
+     */
+    private void seed() {
+        Random random = new Random(42);
+        Profile profile = new Profile(USER_ID, "Organizer", "organizer@example.com",
+                TeeShirtSize.NOT_SPECIFIED);
+        List<Object> entities = new ArrayList<>();
+        entities.add(profile);
+        Calendar calendar = Calendar.getInstance();
+        for (int i = 0; i < conferences; i++) {
+            calendar.clear();
+            calendar.set(2015, random.nextInt(12), 1 + random.nextInt(28));
+            ConferenceForm conferenceForm = new ConferenceForm("Conference " + i, null,
+                    Collections.<String>emptyList(), CITIES[random.nextInt(CITIES.length)],
+                    calendar.getTime(), calendar.getTime(), 10 * (1 + random.nextInt(100)));
+            entities.add(new Conference(i + 1, USER_ID, conferenceForm));
+        }
+        ofy().save().entities(entities).now();
+        ofy().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (rewriteProperty == null) {
+            System.clearProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY);
+        } else {
+            System.setProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY, rewriteProperty);
+        }
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public CollectionResponse<Conference> queryFirstPage() throws BadRequestException {
+        ConferenceQueryCache.invalidate();
+        ofy().clear();
+        return conferenceApi.queryConferences(queryForm);
+    }
+}
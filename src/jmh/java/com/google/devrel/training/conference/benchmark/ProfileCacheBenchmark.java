@@ -0,0 +1,101 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.service.EntityCacheControl;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.google.devrel.training.conference.spi.NotModifiedException;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks getProfile, and getConference with the organizer's display name, with the
+ * Profile cache on (the default expiration) and off (-1), on the local services with a
+ * simulated latency on every datastore and memcache RPC.
+ *
+ * Every call ends the Objectify session, as the end of a request would, so that entities are
+ * never read from the session cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfileCacheBenchmark {
+
+    @Param({"3600", "-1"})
+    private String profileCacheSeconds;
+
+    @Param({"20"})
+    private long rpcLatencyMillis;
+
+    @Param({"1"})
+    private long memcacheLatencyMillis;
+
+    private BenchmarkEnvironment environment;
+
+    private final ConferenceApi api = new ConferenceApi();
+
+    private final User user = new User("example@gmail.com", "gmail.com", "123456789");
+
+    private String websafeConferenceKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnauthorizedException {
+        System.setProperty(EntityCacheControl.PROPERTY_PREFIX + "Profile", profileCacheSeconds);
+        environment = new BenchmarkEnvironment(rpcLatencyMillis, memcacheLatencyMillis);
+        environment.setUp();
+        ConferenceIdAllocator.reset();
+        api.saveProfile(user, new ProfileForm("Organizer", ProfileForm.TeeShirtSize.M));
+        websafeConferenceKey = api.createConferences(user, new ConferenceForm("Cloud Summit",
+                "A day of talks", Arrays.asList("Cloud"), "London", null, null, 100))
+                .getWebsafeKey();
+        ObjectifyFilter.complete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+        System.clearProperty(EntityCacheControl.PROPERTY_PREFIX + "Profile");
+    }
+
+    @Benchmark
+    public Profile getProfile() throws UnauthorizedException, NotModifiedException {
+        try {
+            return api.getProfile(user, null);
+        } finally {
+            ObjectifyFilter.complete();
+        }
+    }
+
+    @Benchmark
+    public String getConferenceWithOrganizer() throws NotFoundException, NotModifiedException {
+        try {
+            return api.getConference(websafeConferenceKey, null).getOrganizerDisplayName();
+        } finally {
+            ObjectifyFilter.complete();
+        }
+    }
+}
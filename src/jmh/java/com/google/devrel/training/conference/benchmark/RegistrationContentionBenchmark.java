@@ -0,0 +1,126 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
+import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks registerForConference from concurrent threads for one conference, with its seats
+ * on the Conference ({@code seatShards=0}) or spread over seat shards, on the local datastore
+ * with a simulated latency on every datastore RPC, so that the transactions overlap as they
+ * would in production.
+ *
+ * Every call registers a new attendee for a conference with room for all of them. Besides the
+ * throughput, the {@code registered} and {@code contended} counters report the registrations
+ * that succeeded and the ones that gave up with ServiceUnavailableException after retrying
+ * their transaction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class RegistrationContentionBenchmark {
+
+    private static final int MAX_ATTENDEES = 1000000;
+
+    @Param({"0", "20"})
+    private int seatShards;
+
+    @Param({"20"})
+    private long rpcLatencyMillis;
+
+    private BenchmarkEnvironment environment;
+
+    private final ConferenceApi api = new ConferenceApi();
+
+    private final AtomicInteger attendees = new AtomicInteger();
+
+    private String websafeKey;
+
+    /**
+     * The outcomes of the registrations of one thread.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+        public int registered;
+
+        public int contended;
+
+        @Setup(Level.Trial)
+        public void attach(RegistrationContentionBenchmark benchmark) {
+            benchmark.environment.attachCurrentThread();
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            registered = 0;
+            contended = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnauthorizedException, NotFoundException, ForbiddenException,
+            ServiceUnavailableException, BadRequestException {
+        environment = new BenchmarkEnvironment(rpcLatencyMillis);
+        environment.setUp();
+        ConferenceIdAllocator.reset();
+        User organizer = new User("example@gmail.com", "gmail.com", "123456789");
+        websafeKey = api.createConferences(organizer, new ConferenceForm("Cloud Summit",
+                "A day of talks", null, "London", null, null, MAX_ATTENDEES)).getWebsafeKey();
+        if (seatShards > 0) {
+            api.setSeatShards(organizer, websafeKey, seatShards);
+        }
+        ObjectifyFilter.complete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public void register(Outcomes outcomes) throws UnauthorizedException, NotFoundException,
+            ForbiddenException, ConflictException {
+        int attendee = attendees.incrementAndGet();
+        try {
+            api.registerForConference(new User("attendee" + attendee + "@gmail.com",
+                    "gmail.com", "attendee" + attendee), websafeKey);
+            outcomes.registered++;
+        } catch (ServiceUnavailableException e) {
+            outcomes.contended++;
+        } finally {
+            ObjectifyFilter.complete();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceSearchIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the first page of a keyword search on the search index of a catalog of generated
+ * conferences: a rare word ("kubernetes", in about 1% of them), a common word ("cloud", in
+ * about a third) and both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchBenchmark {
+
+    private static final String[] WORDS = {"cloud", "data", "web", "mobile", "security",
+            "design", "summit", "workshop", "developers", "conference", "analytics", "machine",
+            "learning", "frontend", "backend", "startup", "health", "music", "games", "science"};
+
+    @Param({"kubernetes", "cloud", "cloud kubernetes"})
+    private String query;
+
+    @Param({"100000"})
+    private int conferences;
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private ConferenceSearchIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        Random random = new Random(42);
+        Conference[] catalog = new Conference[conferences];
+        String[] websafeKeys = new String[conferences];
+        for (int i = 0; i < conferences; i++) {
+            StringBuilder description = new StringBuilder();
+            for (int word = 0; word < 20; word++) {
+                description.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            if (random.nextInt(100) == 0) {
+                description.append("kubernetes");
+            }
+            String name = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            catalog[i] = new Conference(i + 1, "123456789", new ConferenceForm(name,
+                    description.toString(), Arrays.asList(WORDS[random.nextInt(WORDS.length)]),
+                    "London", null, null, 100));
+            websafeKeys[i] = catalog[i].getWebsafeKey();
+        }
+        index = new ConferenceSearchIndex(catalog, websafeKeys, null,
+                Collections.<String>emptySet());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public ConferenceSearchIndex.Result searchFirstPage() {
+        return index.search(query, 0, 20);
+    }
+}
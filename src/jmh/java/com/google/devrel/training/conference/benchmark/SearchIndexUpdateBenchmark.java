@@ -0,0 +1,115 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.ConferenceSearchIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the search index of the next catalog snapshot after one conference has changed,
+ * which the first search of the snapshot waits for: its seats only, as after a registration,
+ * or its description. {@link #update()} is the path of a snapshot updated in place, and
+ * {@link #rebuild()} the path of a snapshot whose conferences were renumbered, which only
+ * reuses the analyzed words of the unchanged conferences.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchIndexUpdateBenchmark {
+
+    private static final String[] WORDS = {"cloud", "data", "web", "mobile", "security",
+            "design", "summit", "workshop", "developers", "conference", "analytics", "machine",
+            "learning", "frontend", "backend", "startup", "health", "music", "games", "science"};
+
+    @Param({"seats", "description"})
+    private String change;
+
+    @Param({"100000"})
+    private int conferences;
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private Conference[] catalog;
+
+    private String[] websafeKeys;
+
+    private ConferenceSearchIndex previous;
+
+    private Set<Integer> changedNumbers;
+
+    private Set<String> changedKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        Random random = new Random(42);
+        catalog = new Conference[conferences];
+        websafeKeys = new String[conferences];
+        ConferenceForm[] forms = new ConferenceForm[conferences];
+        for (int i = 0; i < conferences; i++) {
+            StringBuilder description = new StringBuilder();
+            for (int word = 0; word < 20; word++) {
+                description.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            String name = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            forms[i] = new ConferenceForm(name, description.toString(),
+                    Arrays.asList(WORDS[random.nextInt(WORDS.length)]), "London", null, null,
+                    100);
+            catalog[i] = new Conference(i + 1, "123456789", forms[i]);
+            websafeKeys[i] = catalog[i].getWebsafeKey();
+        }
+        previous = new ConferenceSearchIndex(catalog, websafeKeys, null,
+                Collections.<String>emptySet());
+
+        int number = conferences / 2;
+        Conference changed = new Conference(number + 1, "123456789", forms[number]);
+        if ("seats".equals(change)) {
+            changed.bookSeats(1);
+        } else {
+            changed.updateWithConferenceForm(new ConferenceForm(forms[number].getName(),
+                    "kubernetes operators and their clusters", forms[number].getTopics(),
+                    "London", null, null, 100));
+        }
+        catalog[number] = changed;
+        changedNumbers = Collections.singleton(number);
+        changedKeys = Collections.singleton(websafeKeys[number]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public ConferenceSearchIndex update() {
+        return ConferenceSearchIndex.update(previous, catalog, changedNumbers);
+    }
+
+    @Benchmark
+    public ConferenceSearchIndex rebuild() {
+        return new ConferenceSearchIndex(catalog, websafeKeys, previous, changedKeys);
+    }
+}
@@ -0,0 +1,131 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.api.server.spi.config.ApiSerializationConfig;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.ServletResponseResultWriter;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Benchmarks writing Conference and Profile responses the way Cloud Endpoints does, which calls
+ * every getter and copies the topics, dates and conference keys defensively.
+ *
+ * The organizers are hydrated up front, so that no datastore lookups are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    private static final String USER_ID = "123456789";
+
+    /**
+     * The number of conferences in a page of query results.
+     */
+    @Param({"1", "20"})
+    public int pageSize;
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private final ApiSerializationConfig serializationConfig = new ApiSerializationConfig();
+
+    private final StringWriter body = new StringWriter();
+
+    private HttpServletResponse response;
+
+    private CollectionResponse<Conference> conferences;
+
+    private Profile profile;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        response = newResponse(body);
+        profile = new Profile(USER_ID, "Luiz", "example@gmail.com", TeeShirtSize.M);
+        List<Conference> items = new ArrayList<>(pageSize);
+        for (int i = 0; i < pageSize; i++) {
+            ConferenceForm form = new ConferenceForm("Conference " + i, "A conference",
+                    Arrays.asList("Google", "Cloud Platform"), "London",
+                    new Date(1433116800000L), new Date(1433289600000L), 100);
+            Conference conference = new Conference(i + 1, USER_ID, form);
+            conference.hydrateOrganizer(profile);
+            items.add(conference);
+            profile.addToConferenceKeysToAttend(conference.getWebsafeKey());
+        }
+        conferences = CollectionResponse.<Conference>builder().setItems(items).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public int writeConferences() throws IOException {
+        return write(conferences);
+    }
+
+    @Benchmark
+    public int writeProfile() throws IOException {
+        return write(profile);
+    }
+
+    private int write(Object result) throws IOException {
+        body.getBuffer().setLength(0);
+        new ServletResponseResultWriter(response, serializationConfig).write(result);
+        return body.getBuffer().length();
+    }
+
+    /**
+     * Returns a response that only supports what ServletResponseResultWriter needs, and
+     * writes the body to the given writer.
+     */
+    private static HttpServletResponse newResponse(StringWriter body) {
+        final PrintWriter writer = new PrintWriter(body);
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                SerializationBenchmark.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getWriter")) {
+                            return writer;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,140 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An ApiProxy delegate that adds a fixed latency to every datastore RPC, and optionally to every
+ * memcache RPC, so that benchmarks on the local services show the cost of the round trips of
+ * production.
+ *
+ * An asynchronous call returns at once and its future only completes when the latency has
+ * passed since the call was made, so calls that are in flight together overlap as they would
+ * in production, and a call is only waited for when its result is needed.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+final class SimulatedLatencyDelegate implements ApiProxy.Delegate {
+
+    private final ApiProxy.Delegate delegate;
+
+    private final long datastoreLatencyNanos;
+
+    private final long memcacheLatencyNanos;
+
+    SimulatedLatencyDelegate(ApiProxy.Delegate delegate, long datastoreLatencyMillis,
+            long memcacheLatencyMillis) {
+        this.delegate = delegate;
+        this.datastoreLatencyNanos = TimeUnit.MILLISECONDS.toNanos(datastoreLatencyMillis);
+        this.memcacheLatencyNanos = TimeUnit.MILLISECONDS.toNanos(memcacheLatencyMillis);
+    }
+
+    private long latencyNanos(String packageName) {
+        switch (packageName) {
+            case "datastore_v3":
+                return datastoreLatencyNanos;
+            case "memcache":
+                return memcacheLatencyNanos;
+            default:
+                return 0;
+        }
+    }
+
+    private static void sleepUntil(long readyNanos) {
+        long remaining = readyNanos - System.nanoTime();
+        while (remaining > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            remaining = readyNanos - System.nanoTime();
+        }
+    }
+
+    @Override
+    public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+            String methodName, byte[] request) {
+        sleepUntil(System.nanoTime() + latencyNanos(packageName));
+        return delegate.makeSyncCall(environment, packageName, methodName, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+            String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        Future<byte[]> result =
+                delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        long latencyNanos = latencyNanos(packageName);
+        if (latencyNanos == 0) {
+            return result;
+        }
+        return new DelayedFuture(result, System.nanoTime() + latencyNanos);
+    }
+
+    @Override
+    public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(ApiProxy.Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+
+    /**
+     * The result of an asynchronous call, which isn't available before a given time.
+     */
+    private static final class DelayedFuture implements Future<byte[]> {
+        private final Future<byte[]> future;
+
+        private final long readyNanos;
+
+        DelayedFuture(Future<byte[]> future, long readyNanos) {
+            this.future = future;
+            this.readyNanos = readyNanos;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return System.nanoTime() >= readyNanos && future.isDone();
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            sleepUntil(readyNanos);
+            return future.get();
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            if (deadline - readyNanos < 0) {
+                sleepUntil(deadline);
+                throw new TimeoutException();
+            }
+            sleepUntil(readyNanos);
+            return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.domain.ConferenceSuggestion;
+import com.google.devrel.training.conference.service.ConferenceNameIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks typeahead suggestions from the name index of a catalog of generated conferences,
+ * for prefixes that match a few names ("kub"), a twentieth of the name words ("c") and
+ * two words ("cloud d").
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SuggestBenchmark {
+
+    private static final String[] WORDS = {"cloud", "data", "web", "mobile", "security",
+            "design", "summit", "workshop", "developers", "conference", "analytics", "machine",
+            "learning", "frontend", "backend", "startup", "health", "music", "games", "science"};
+
+    @Param({"kub", "c", "cloud d"})
+    private String prefix;
+
+    @Param({"100000"})
+    private int conferences;
+
+    private final BenchmarkEnvironment environment = new BenchmarkEnvironment();
+
+    private ConferenceNameIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment.setUp();
+        Random random = new Random(42);
+        Conference[] catalog = new Conference[conferences];
+        String[] websafeKeys = new String[conferences];
+        for (int i = 0; i < conferences; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            if (random.nextInt(1000) == 0) {
+                name = "Kubernetes " + name;
+            }
+            catalog[i] = new Conference(i + 1, "123456789", new ConferenceForm(name, null,
+                    null, "London", null, null, 100));
+            websafeKeys[i] = catalog[i].getWebsafeKey();
+        }
+        index = new ConferenceNameIndex(catalog, websafeKeys, 1L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public List<ConferenceSuggestion> suggest() {
+        return index.suggest(prefix, 10);
+    }
+}
@@ -0,0 +1,92 @@
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks createConference and saveProfile for a user who has a profile, on the local
+ * datastore with a simulated latency on every datastore RPC, so that the result is dominated by
+ * the round trips that can't overlap.
+ *
+ * Every call ends the Objectify session, as the end of a request would, so that the profile is
+ * loaded from the datastore rather than from the session cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WritePathBenchmark {
+
+    @Param({"20"})
+    private long rpcLatencyMillis;
+
+    private BenchmarkEnvironment environment;
+
+    private final ConferenceApi api = new ConferenceApi();
+
+    private final User user = new User("example@gmail.com", "gmail.com", "123456789");
+
+    private final ConferenceForm conferenceForm = new ConferenceForm("Cloud Summit",
+            "A day of talks", Arrays.asList("Cloud"), "London", null, null, 100);
+
+    private final ProfileForm profileForm =
+            new ProfileForm("Example", ProfileForm.TeeShirtSize.M);
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnauthorizedException {
+        environment = new BenchmarkEnvironment(rpcLatencyMillis);
+        environment.setUp();
+        ConferenceIdAllocator.reset();
+        api.saveProfile(user, profileForm);
+        ObjectifyFilter.complete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.tearDown();
+    }
+
+    @Benchmark
+    public Conference createConference() throws UnauthorizedException {
+        try {
+            return api.createConferences(user, conferenceForm);
+        } finally {
+            ObjectifyFilter.complete();
+        }
+    }
+
+    @Benchmark
+    public Profile saveProfile() throws UnauthorizedException {
+        try {
+            return api.saveProfile(user, profileForm);
+        } finally {
+            ObjectifyFilter.complete();
+        }
+    }
+}
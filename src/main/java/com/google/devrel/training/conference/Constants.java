@@ -14,4 +14,30 @@ public class Constants {
     public static final String API_EXPLORER_CLIENT_ID = Constant.API_EXPLORER_CLIENT_ID;
 
     public static final String MEMCACHE_ANNOUNCEMENTS_KEY = "RECENT_ANNOUNCEMENTS";
-}
\ No newline at end of file
+
+    /**
+     * The number of conferences returned in one page when the client doesn't specify a page size.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * The maximum number of conferences returned in one page.
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+
+    /**
+     * The maximum number of conferences read for one page of a query whose plan filters some
+     * of the results in memory.
+     */
+    public static final int MAX_SCANNED_PER_PAGE = 1000;
+
+    /**
+     * The number of conferences suggested when the client doesn't specify how many.
+     */
+    public static final int DEFAULT_SUGGESTIONS = 10;
+
+    /**
+     * The maximum number of conferences created by one createConferencesBatch call.
+     */
+    public static final int MAX_CONFERENCE_BATCH_SIZE = 500;
+}
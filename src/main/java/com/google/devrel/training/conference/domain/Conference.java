@@ -11,7 +11,9 @@ import com.google.devrel.training.conference.form.ConferenceForm;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnSave;
 import com.googlecode.objectify.annotation.Parent;
 
 import java.util.Calendar;
@@ -72,13 +74,15 @@ public class Conference {
     @Index(IfNotDefault.class) private String city;
 
     /**
-     * The starting date of this conference.
+     * The starting date of this conference. Indexed for the projection into ConferenceSummary.
      */
+    @Index
     private Date startDate;
 
     /**
-     * The ending date of this conference.
+     * The ending date of this conference. Indexed for the projection into ConferenceSummary.
      */
+    @Index
     private Date endDate;
 
     /**
@@ -101,6 +105,38 @@ public class Conference {
     @Index
     private int seatsAvailable;
 
+    /**
+     * The number of SeatShards that hold the available seats, or 0 when the seats are counted
+     * by seatsAvailable on this entity.
+     *
+     * While the seats are sharded, the stored seatsAvailable is the count at the time the shards
+     * were last resized; the current count is filled in from the shards when the conference is
+     * read. Indexed for the projection into ConferenceSummary.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShardCount;
+
+    /**
+     * Incremented on every save. The seats booked on SeatShards don't change it.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long version;
+
+    /**
+     * The organizer's display name, when it has been filled in by the caller from an already
+     * loaded Profile. Not persisted.
+     */
+    @Ignore
+    private String organizerDisplayName;
+
+    /**
+     * Whether organizerDisplayName has been filled in, so that a missing Profile is not looked up
+     * again during serialization.
+     */
+    @Ignore
+    private boolean organizerHydrated;
+
     /**
      * Just making the default constructor private.
      */
@@ -145,10 +181,15 @@ public class Conference {
     /**
      * Returns organizer's display name.
      *
+     * If the organizer has not been hydrated with {@link #hydrateOrganizer(Profile)}, the Profile
+     * is loaded from the datastore.
+     *
      * @return organizer's display name. If there is no Profile, return his/her userId.
      */
     public String getOrganizerDisplayName() {
-        // Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
+        if (organizerHydrated) {
+            return organizerDisplayName;
+        }
         Profile organizer = ofy().load().key(getProfileKey()).now();
         if (organizer == null) {
             return organizerUserId;
@@ -157,6 +198,17 @@ public class Conference {
         }
     }
 
+    /**
+     * Fills in the organizer's display name from a Profile loaded by the caller, typically as
+     * part of a batch load for a whole result list.
+     *
+     * @param organizer the organizer's Profile, or null if there is no Profile.
+     */
+    public void hydrateOrganizer(final Profile organizer) {
+        this.organizerDisplayName = organizer == null ? organizerUserId : organizer.getDisplayName();
+        this.organizerHydrated = true;
+    }
+
     /**
      * Returns a defensive copy of topics if not null.
      * @return a defensive copy of topics if not null.
@@ -197,6 +249,46 @@ public class Conference {
         return seatsAvailable;
     }
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShardCount() {
+        return seatShardCount;
+    }
+
+    /**
+     * Returns the number of times this Conference has been saved.
+     *
+     * @return the version of this Conference.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+
+    @OnSave
+    void incrementVersion() {
+        version++;
+    }
+
+    /**
+     * Fills in the number of available seats summed up from the SeatShards of this conference.
+     *
+     * @param seatsAvailable the total of the seats available in the shards.
+     */
+    public void hydrateSeatsAvailable(final int seatsAvailable) {
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Switches the seat-allocation mode of this conference.
+     *
+     * @param seatShardCount the new number of shards, or 0 to keep the seats on this entity.
+     * @param seatsAvailable the total number of seats available at the time of the switch.
+     */
+    public void updateSeatShards(final int seatShardCount, final int seatsAvailable) {
+        this.seatShardCount = seatShardCount;
+        this.seatsAvailable = seatsAvailable;
+    }
+
     /**
      * Updates the Conference with ConferenceForm.
      * This method is used upon object creation as well as updating existing Conferences.
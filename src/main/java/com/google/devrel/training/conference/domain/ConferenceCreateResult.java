@@ -0,0 +1,45 @@
+package com.google.devrel.training.conference.domain;
+
+/**
+ * The outcome of one conference of a batch create: the conference when it was created, or the
+ * reason it wasn't.
+ */
+public class ConferenceCreateResult {
+
+    /**
+     * The position of the conference in the batch.
+     */
+    private int index;
+
+    private Conference conference;
+
+    private String error;
+
+    public ConferenceCreateResult() {}
+
+    private ConferenceCreateResult(int index, Conference conference, String error) {
+        this.index = index;
+        this.conference = conference;
+        this.error = error;
+    }
+
+    public static ConferenceCreateResult created(int index, Conference conference) {
+        return new ConferenceCreateResult(index, conference, null);
+    }
+
+    public static ConferenceCreateResult failed(int index, String error) {
+        return new ConferenceCreateResult(index, null, error);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Conference getConference() {
+        return conference;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
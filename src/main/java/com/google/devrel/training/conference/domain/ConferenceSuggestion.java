@@ -0,0 +1,26 @@
+package com.google.devrel.training.conference.domain;
+
+/**
+ * A conference whose name matches what the user has typed so far.
+ */
+public class ConferenceSuggestion {
+
+    private String websafeKey;
+
+    private String name;
+
+    public ConferenceSuggestion() {}
+
+    public ConferenceSuggestion(String websafeKey, String name) {
+        this.websafeKey = websafeKey;
+        this.name = name;
+    }
+
+    public String getWebsafeKey() {
+        return websafeKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,218 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.objectify.Key;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields of a Conference shown in conference lists.
+ *
+ * Summaries are read with datastore projection queries, which return these fields from the
+ * indexes instead of loading and deserializing whole Conference entities. The full Conference
+ * is available from the getConference endpoint. A projection query only returns the
+ * conferences that have every projected property indexed, so the conferences saved before
+ * startDate, endDate and seatShardCount were indexed are left out until they are saved again;
+ * until then, conference.summaryProjection.enabled is false and the summaries are made from
+ * whole entities.
+ *
+ * The organizer's display name isn't in the index, so it is filled in afterwards from the
+ * organizers' Profiles.
+ */
+public class ConferenceSummary {
+
+    /**
+     * The system property that enables the projection queries. It is set once the conferences
+     * have been re-saved by ReindexConferencesServlet.
+     */
+    public static final String PROJECTION_ENABLED_PROPERTY =
+            "conference.summaryProjection.enabled";
+
+    /**
+     * The projected properties of Conference and their types in the index. All of them must be
+     * indexed on Conference, or the conference is left out of the projection query results.
+     */
+    private static final Map<String, Class<?>> PROJECTION =
+            ImmutableMap.<String, Class<?>>builder()
+            .put("name", String.class)
+            .put("city", String.class)
+            .put("startDate", Date.class)
+            .put("endDate", Date.class)
+            .put("maxAttendees", Long.class)
+            .put("seatsAvailable", Long.class)
+            .put("seatShardCount", Long.class)
+            .build();
+
+    private String websafeKey;
+
+    private String name;
+
+    private String city;
+
+    private Date startDate;
+
+    private Date endDate;
+
+    private int maxAttendees;
+
+    private int seatsAvailable;
+
+    private String organizerDisplayName;
+
+    /**
+     * The number of SeatShards of the conference, needed to fill in seatsAvailable.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShardCount;
+
+    private ConferenceSummary() {}
+
+    /**
+     * Creates a summary from the result of a query returned by {@link #newProjectionQuery(Set)}.
+     *
+     * @param entity the projection of a Conference.
+     * @param fixedValues the values of the properties that were not projected because the query
+     *            has an equality filter on them, by property name.
+     */
+    public ConferenceSummary(Entity entity, Map<String, Object> fixedValues) {
+        this.websafeKey = KeyFactory.keyToString(entity.getKey());
+        this.name = (String) value("name", entity, fixedValues);
+        this.city = (String) value("city", entity, fixedValues);
+        this.startDate = (Date) value("startDate", entity, fixedValues);
+        this.endDate = (Date) value("endDate", entity, fixedValues);
+        this.maxAttendees = intValue("maxAttendees", entity, fixedValues);
+        this.seatsAvailable = intValue("seatsAvailable", entity, fixedValues);
+        this.seatShardCount = intValue("seatShardCount", entity, fixedValues);
+    }
+
+    /**
+     * Creates a summary of a loaded Conference, with its seats already hydrated.
+     *
+     * @param conference the Conference.
+     */
+    public ConferenceSummary(Conference conference) {
+        this.websafeKey = conference.getWebsafeKey();
+        this.name = conference.getName();
+        this.city = conference.getCity();
+        this.startDate = conference.getStartDate();
+        this.endDate = conference.getEndDate();
+        this.maxAttendees = conference.getMaxAttendees();
+        this.seatsAvailable = conference.getSeatsAvailable();
+        this.seatShardCount = conference.getSeatShardCount();
+    }
+
+    /**
+     * Returns whether summaries are read with projection queries.
+     */
+    public static boolean isProjectionEnabled() {
+        return Boolean.getBoolean(PROJECTION_ENABLED_PROPERTY);
+    }
+
+    private static Object value(String property, Entity entity, Map<String, Object> fixedValues) {
+        return fixedValues.containsKey(property)
+                ? fixedValues.get(property) : entity.getProperty(property);
+    }
+
+    private static int intValue(String property, Entity entity, Map<String, Object> fixedValues) {
+        Number value = (Number) value(property, entity, fixedValues);
+        return value == null ? 0 : value.intValue();
+    }
+
+    /**
+     * Returns a query of Conference projected to the summary properties.
+     *
+     * @param excludedProperties properties to leave out of the projection. A property that has
+     *            an equality filter can't be projected.
+     * @return the query, without filters or sort orders.
+     */
+    public static Query newProjectionQuery(Set<String> excludedProperties) {
+        Query query = new Query(Key.getKind(Conference.class));
+        for (Map.Entry<String, Class<?>> property : PROJECTION.entrySet()) {
+            if (!excludedProperties.contains(property.getKey())) {
+                query.addProjection(new PropertyProjection(property.getKey(), property.getValue()));
+            }
+        }
+        return query;
+    }
+
+    public String getWebsafeKey() {
+        return websafeKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * Returns a defensive copy of startDate if not null.
+     * @return a defensive copy of startDate if not null.
+     */
+    public Date getStartDate() {
+        return startDate == null ? null : new Date(startDate.getTime());
+    }
+
+    /**
+     * Returns a defensive copy of endDate if not null.
+     * @return a defensive copy of endDate if not null.
+     */
+    public Date getEndDate() {
+        return endDate == null ? null : new Date(endDate.getTime());
+    }
+
+    public int getMaxAttendees() {
+        return maxAttendees;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public String getOrganizerDisplayName() {
+        return organizerDisplayName;
+    }
+
+    /**
+     * Returns the key of the organizer's Profile, the parent of the conference.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Profile> getProfileKey() {
+        return Key.<Conference>create(websafeKey).getParent();
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShardCount() {
+        return seatShardCount;
+    }
+
+    /**
+     * Fills in the number of available seats summed up from the SeatShards of this conference.
+     *
+     * @param seatsAvailable the total of the seats available in the shards.
+     */
+    public void hydrateSeatsAvailable(final int seatsAvailable) {
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Fills in the organizer's display name from a Profile loaded by the caller, typically as
+     * part of a batch load for a whole result list.
+     *
+     * @param organizer the organizer's Profile, or null if there is no Profile.
+     */
+    public void hydrateOrganizer(final Profile organizer) {
+        this.organizerDisplayName = organizer == null
+                ? getProfileKey().getName() : organizer.getDisplayName();
+    }
+}
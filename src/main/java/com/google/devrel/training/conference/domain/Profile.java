@@ -1,8 +1,15 @@
 package com.google.devrel.training.conference.domain;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.OnSave;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 // TODO indicate that this class is an Entity
@@ -15,6 +22,16 @@ public class Profile {
 	// TODO indicate that the userId is to be used in the Entity's key
 	@Id
 	String userId;
+
+	/**
+	 * Keys of the conferences that this user registers to attend.
+	 */
+	private List<String> conferenceKeysToAttend = new ArrayList<>(0);
+
+	/**
+	 * Incremented on every save, so that a client's copy can be checked with the version alone.
+	 */
+	private long version;
     
     /**
      * Public constructor for Profile.
@@ -59,6 +76,48 @@ public class Profile {
 		return userId;
 	}
 
+	/**
+	 * Returns a copy of conferenceKeysToAttend.
+	 * @return a copy of conferenceKeysToAttend.
+	 */
+	public List<String> getConferenceKeysToAttend() {
+		return ImmutableList.copyOf(conferenceKeysToAttend);
+	}
+
+	/**
+	 * Adds a websafe conference key to conferenceKeysToAttend.
+	 * @param conferenceKey a websafe String representation of the Conference Key.
+	 */
+	public void addToConferenceKeysToAttend(String conferenceKey) {
+		conferenceKeysToAttend.add(conferenceKey);
+	}
+
+	/**
+	 * Removes a websafe conference key from conferenceKeysToAttend.
+	 * @param conferenceKey a websafe String representation of the Conference Key.
+	 */
+	public void unregisterFromConference(String conferenceKey) {
+		if (conferenceKeysToAttend.contains(conferenceKey)) {
+			conferenceKeysToAttend.remove(conferenceKey);
+		} else {
+			throw new IllegalArgumentException("Invalid conferenceKey: " + conferenceKey);
+		}
+	}
+
+	/**
+	 * Returns the number of times this Profile has been saved.
+	 * @return the version of this Profile.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public long getVersion() {
+		return version;
+	}
+
+	@OnSave
+	void incrementVersion() {
+		version++;
+	}
+
 	/**
      * Just making the default constructor private.
      */
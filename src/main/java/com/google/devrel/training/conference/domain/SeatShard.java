@@ -0,0 +1,70 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * SeatShard holds a part of the available seats of a Conference in sharded seat-allocation mode.
+ *
+ * Every shard is the root of its own entity group, so bookings that land on different shards
+ * do not contend with each other nor with the Conference's entity group.
+ */
+@Entity
+public class SeatShard {
+
+    /**
+     * The id for the datastore key, the websafe key of the conference followed by the index.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The number of seats still available in this shard.
+     */
+    private int seatsAvailable;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SeatShard() {}
+
+    public SeatShard(final String websafeConferenceKey, final int index, final int seatsAvailable) {
+        this.id = shardId(websafeConferenceKey, index);
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    private static String shardId(final String websafeConferenceKey, final int index) {
+        return websafeConferenceKey + "#" + index;
+    }
+
+    /**
+     * Returns the key of the shard with the given index of a conference.
+     *
+     * @param websafeConferenceKey the websafe key of the conference.
+     * @param index the index of the shard, from 0.
+     * @return the key of the shard.
+     */
+    public static Key<SeatShard> key(final String websafeConferenceKey, final int index) {
+        return Key.create(SeatShard.class, shardId(websafeConferenceKey, index));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available in this shard.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        seatsAvailable = seatsAvailable + number;
+    }
+}
@@ -0,0 +1,30 @@
+package com.google.devrel.training.conference.form;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing a batch of Conference forms sent from the client.
+ */
+public class ConferenceBatchForm {
+
+    /**
+     * The conferences to create, in order.
+     */
+    private List<ConferenceForm> conferences;
+
+    private ConferenceBatchForm() {}
+
+    /**
+     * Public constructor is solely for Unit Test.
+     * @param conferences
+     */
+    public ConferenceBatchForm(List<ConferenceForm> conferences) {
+        this.conferences = conferences == null ? null : ImmutableList.copyOf(conferences);
+    }
+
+    public List<ConferenceForm> getConferences() {
+        return conferences;
+    }
+}
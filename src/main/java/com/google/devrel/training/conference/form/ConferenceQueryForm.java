@@ -1,25 +1,23 @@
 package com.google.devrel.training.conference.form;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.ConferenceQueryPlanner;
 
 import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.logging.Logger;
 
 /**
  * A simple Java object (POJO) representing a query options for Conference.
  */
 public class ConferenceQueryForm {
 
-    private static final Logger LOG = Logger.getLogger(ConferenceQueryForm.class.getName());
-
     /**
      * Enum representing a field type.
      */
@@ -45,33 +43,49 @@ public class ConferenceQueryForm {
             this.fieldType = fieldType;
         }
 
-        private String getFieldName() {
+        public String getFieldName() {
             return this.fieldName;
         }
+
+        public FieldType getFieldType() {
+            return this.fieldType;
+        }
     }
 
     /**
      * Enum representing an operator.
      */
     public static enum Operator {
-        EQ("=="),
-        LT("<"),
-        GT(">"),
-        LTEQ("<="),
-        GTEQ(">="),
-        NE("!=");
+        EQ("==", FilterOperator.EQUAL),
+        LT("<", FilterOperator.LESS_THAN),
+        GT(">", FilterOperator.GREATER_THAN),
+        LTEQ("<=", FilterOperator.LESS_THAN_OR_EQUAL),
+        GTEQ(">=", FilterOperator.GREATER_THAN_OR_EQUAL),
+        NE("!=", FilterOperator.NOT_EQUAL),
+        /**
+         * Matches any of the comma-separated values of the filter. Runs one datastore query per
+         * value.
+         */
+        IN("IN", FilterOperator.IN);
 
         private String queryOperator;
 
-        private Operator(String queryOperator) {
+        private FilterOperator filterOperator;
+
+        private Operator(String queryOperator, FilterOperator filterOperator) {
             this.queryOperator = queryOperator;
+            this.filterOperator = filterOperator;
         }
 
-        private String getQueryOperator() {
+        public String getQueryOperator() {
             return this.queryOperator;
         }
 
-        private boolean isInequalityFilter() {
+        public FilterOperator getFilterOperator() {
+            return this.filterOperator;
+        }
+
+        public boolean isInequalityFilter() {
             return this.queryOperator.contains("<") || this.queryOperator.contains(">") ||
                     this.queryOperator.contains("!");
         }
@@ -104,6 +118,24 @@ public class ConferenceQueryForm {
         public String getValue() {
             return value;
         }
+
+        /**
+         * Returns the values of the filter: the comma-separated values of an IN filter, or the
+         * value of any other filter.
+         *
+         * @return the values, trimmed.
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        public List<String> getValues() {
+            if (operator != Operator.IN) {
+                return Collections.singletonList(value);
+            }
+            List<String> values = new ArrayList<>();
+            for (String inValue : value.split(",")) {
+                values.add(inValue.trim());
+            }
+            return values;
+        }
     }
 
     /**
@@ -112,28 +144,16 @@ public class ConferenceQueryForm {
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * The maximum number of conferences to return in one page. Zero means the default page size.
      */
-    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-    private Filter inequalityFilter;
-
-    public ConferenceQueryForm() {}
+    private int pageSize;
 
     /**
-     * Checks the feasibility of the whole query.
+     * The web-safe cursor returned with the previous page, or null for the first page.
      */
-    private void checkFilters() {
-        for (Filter filter : this.filters) {
-            if (filter.operator.isInequalityFilter()) {
-                // Only one inequality filter is allowed.
-                if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                    throw new IllegalArgumentException(
-                            "Inequality filter is allowed on only one field.");
-                }
-                inequalityFilter = filter;
-            }
-        }
-    }
+    private String cursor;
+
+    public ConferenceQueryForm() {}
 
     /**
      * Getter for filters.
@@ -144,6 +164,22 @@ public class ConferenceQueryForm {
         return ImmutableList.copyOf(filters);
     }
 
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
     /**
      * Adds a query filter.
      *
@@ -151,47 +187,35 @@ public class ConferenceQueryForm {
      * @return this for method chaining.
      */
     public ConferenceQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
-            }
-            inequalityFilter = filter;
-        }
         filters.add(filter);
         return this;
     }
 
+    /**
+     * Plans the query for the specified filters.
+     *
+     * @return the plan, which tells which filters the datastore applies and which are applied
+     *         to the results in memory.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public ConferenceQueryPlanner.Plan plan() {
+        return ConferenceQueryPlanner.plan(filters);
+    }
+
     /**
      * Returns an Objectify Query object for the specified filters.
      *
      * @return an Objectify Query.
+     * @throws IllegalArgumentException when the plan of the filters needs more than one datastore
+     *             query or filters applied in memory; use {@link #plan()} for those.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Conference> getQuery() {
-        // First check the feasibility of inequality filters.
-        checkFilters();
-        Query<Conference> query = ofy().load().type(Conference.class);
-        if (inequalityFilter == null) {
-            // Order by name.
-            query = query.order("name");
-        } else {
-            // If we have any inequality filters, order by the field first.
-            query = query.order(inequalityFilter.field.getFieldName());
-            query = query.order("name");
-        }
-        for (Filter filter : this.filters) {
-            // Applies filters in order.
-            if (filter.field.fieldType == FieldType.STRING) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), filter.value);
-            } else if (filter.field.fieldType == FieldType.INTEGER) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
-            }
+        ConferenceQueryPlanner.Plan plan = plan();
+        if (plan.hasResidualFilters() || plan.isUnion()) {
+            throw new IllegalArgumentException(
+                    "The filters need more than one datastore query: " + plan);
         }
-        LOG.info(query.toString());
-        return query;
+        return plan.getQuery();
     }
 }
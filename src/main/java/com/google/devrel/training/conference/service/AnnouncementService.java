@@ -0,0 +1,121 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Precomputes the "nearly sold out" announcement and keeps it in memcache under
+ * {@link Constants#MEMCACHE_ANNOUNCEMENTS_KEY}, so that reading it never runs a datastore query.
+ *
+ * The announcement is rebuilt by SetAnnouncementServlet, which runs from cron and from push
+ * tasks enqueued by {@link #enqueueRefresh()} when seats are booked or given back.
+ */
+public class AnnouncementService {
+
+    private static final Logger LOG = Logger.getLogger(AnnouncementService.class.getName());
+
+    /**
+     * The URL of SetAnnouncementServlet.
+     */
+    public static final String REFRESH_URL = "/crons/set_announcement";
+
+    /**
+     * Conferences with fewer seats available than this, but at least one, are announced.
+     */
+    private static final int NEARLY_SOLD_OUT_SEATS = 5;
+
+    /**
+     * Refresh tasks are named after the period they are enqueued in, so that at most one of
+     * them runs per period however many seats are booked.
+     */
+    private static final long REFRESH_PERIOD_MILLIS = 60 * 1000;
+
+    /**
+     * Finds the nearly sold out conferences and stores the announcement in memcache, or
+     * removes it when no conference is nearly sold out.
+     *
+     * The seatsAvailable stored on a sharded conference is the count at the time its shards
+     * were last resized, so one query finds the unsharded conferences by seatsAvailable, and
+     * another one loads the sharded conferences, whose seats are then summed up from their
+     * shards with one batch get. When the conference catalog is enabled, the conferences are
+     * found in its seatsAvailable index instead, which also counts the seats of sharded
+     * conferences.
+     *
+     * @return the announcement, or null if there is none.
+     */
+    public static String refreshAnnouncement() {
+        List<String> names = new ArrayList<>();
+        if (ConferenceCatalog.isEnabled()) {
+            names.addAll(ConferenceCatalog.namesBySeatsAvailable(1, NEARLY_SOLD_OUT_SEATS - 1));
+        } else {
+            for (Conference conference : ofy().load().type(Conference.class)
+                    .filter("seatsAvailable <", NEARLY_SOLD_OUT_SEATS)
+                    .filter("seatsAvailable >", 0)) {
+                if (conference.getSeatShardCount() == 0) {
+                    names.add(conference.getName());
+                }
+            }
+            List<Conference> sharded = ofy().load().type(Conference.class)
+                    .filter("seatShardCount >", 0).list();
+            SeatShardService.hydrateSeats(sharded);
+            for (Conference conference : sharded) {
+                if (conference.getSeatsAvailable() > 0
+                        && conference.getSeatsAvailable() < NEARLY_SOLD_OUT_SEATS) {
+                    names.add(conference.getName());
+                }
+            }
+        }
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        if (names.isEmpty()) {
+            memcacheService.delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+            return null;
+        }
+        String announcement = "Last chance to attend! The following conferences are nearly "
+                + "sold out: " + Joiner.on(", ").join(names);
+        memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, announcement);
+        return announcement;
+    }
+
+    /**
+     * Returns the precomputed announcement from memcache.
+     *
+     * @return the announcement, or null if there is none.
+     */
+    public static String getAnnouncement() {
+        return (String) MemcacheServiceFactory.getMemcacheService()
+                .get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+    }
+
+    /**
+     * Enqueues a push task that rebuilds the announcement, unless one has already been
+     * enqueued in the current period.
+     *
+     * The task runs at the end of the period, so that it sees every change it stands in for,
+     * including the ones made after it was enqueued.
+     */
+    public static void enqueueRefresh() {
+        Queue queue = QueueFactory.getDefaultQueue();
+        long period = System.currentTimeMillis() / REFRESH_PERIOD_MILLIS;
+        String taskName = "announcement-" + period;
+        try {
+            queue.add(TaskOptions.Builder.withUrl(REFRESH_URL).taskName(taskName)
+                    .etaMillis((period + 1) * REFRESH_PERIOD_MILLIS)
+                    .method(TaskOptions.Method.GET));
+        } catch (TaskAlreadyExistsException e) {
+            LOG.fine("Announcement refresh already enqueued: " + taskName);
+        }
+    }
+}
@@ -0,0 +1,1141 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Strings;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSuggestion;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a snapshot of every conference on the instance, with secondary indexes that answer the
+ * filters of a ConferenceQueryForm without running a datastore query.
+ *
+ * Filter queries are answered by the catalog when conference.catalog.enabled is true, and
+ * keyword searches always are, with a {@link ConferenceSearchIndex} of the snapshot built on
+ * its first search. The conferences of a snapshot
+ * are numbered in the order of their names, and the indexes map values to the numbers of the
+ * conferences that have them: a BitSet per city, topic and month, and for maxAttendees and
+ * seatsAvailable an array of the numbers sorted by value next to the sorted values, so that a
+ * range is found with two binary searches. The filters of a query are ANDed as BitSets, so
+ * any combination of them is answered, including inequality filters on several fields and IN
+ * filters with more values than the query planner fans out. Results are ordered by name.
+ *
+ * Every write of a Conference is recorded by {@link #recordChange(String)} in a change log in
+ * memcache: a version number, incremented on every change, and the key of the conference
+ * changed in each version. A snapshot is used for at most conference.catalog.maxStalenessMillis
+ * before the version is read again. When it has moved, only the conferences logged since the
+ * snapshot are reloaded, with one batch get, and only their index entries are replaced, unless
+ * a conference was added, removed or renamed, which renumbers the snapshot and indexes it again
+ * whole. The whole catalog is reloaded when the log can't
+ * tell what changed, because memcache has evicted part of it or too many changes were made,
+ * and every {@link #FULL_RELOAD_MILLIS} in case a change has been lost.
+ */
+public class ConferenceCatalog {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceCatalog.class.getName());
+
+    /**
+     * The system property that enables the catalog.
+     */
+    public static final String ENABLED_PROPERTY = "conference.catalog.enabled";
+
+    /**
+     * The system property with the time a snapshot is used before the change log is checked,
+     * in milliseconds.
+     */
+    public static final String MAX_STALENESS_PROPERTY = "conference.catalog.maxStalenessMillis";
+
+    private static final long DEFAULT_MAX_STALENESS_MILLIS = 1000;
+
+    /**
+     * How long a snapshot is updated from the change log before it is loaded again whole.
+     */
+    private static final long FULL_RELOAD_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * The largest number of changes applied to a snapshot from the log; with more, the whole
+     * catalog is reloaded.
+     */
+    private static final int MAX_LOGGED_CHANGES = 100;
+
+    /**
+     * How long an entry of the change log lives, in seconds.
+     */
+    private static final int CHANGE_EXPIRATION_SECONDS = 60 * 60;
+
+    private static final String NAMESPACE = "ConferenceCatalog";
+
+    private static final String VERSION_KEY = "version";
+
+    private static final String CHANGE_KEY_PREFIX = "change-";
+
+    private static final String PAGE_TOKEN_PREFIX = "catalog:";
+
+    /**
+     * The fields whose values are indexed with a BitSet per value.
+     */
+    private static final List<Field> BITSET_FIELDS =
+            Arrays.asList(Field.CITY, Field.TOPIC, Field.MONTH);
+
+    private static final String NAME_INDEX_KEY_PREFIX = "names-";
+
+    /**
+     * The size of the pieces the name index is stored in, below the memcache limit of a value.
+     */
+    private static final int NAME_INDEX_CHUNK_BYTES = 900 * 1024;
+
+    private static volatile Snapshot snapshot;
+
+    private static volatile ConferenceNameIndex nameIndex;
+
+    private static volatile long nameIndexCheckedAt;
+
+    private static final ReentrantLock nameIndexLock = new ReentrantLock();
+
+    private static final ReentrantLock refreshLock = new ReentrantLock();
+
+    /**
+     * One page of the conferences matching a query.
+     */
+    public static class Page {
+        private final List<Conference> conferences;
+
+        private final String nextPageToken;
+
+        private Page(List<Conference> conferences, String nextPageToken) {
+            this.conferences = conferences;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * Returns the web-safe keys of the conferences on the page, in order.
+         */
+        public List<String> getWebsafeKeys() {
+            List<String> websafeKeys = new ArrayList<>(conferences.size());
+            for (Conference conference : conferences) {
+                websafeKeys.add(conference.getWebsafeKey());
+            }
+            return websafeKeys;
+        }
+
+        /**
+         * Returns the summaries of the conferences on the page, with their seats as of the
+         * snapshot.
+         */
+        public List<ConferenceSummary> getSummaries() {
+            List<ConferenceSummary> summaries = new ArrayList<>(conferences.size());
+            for (Conference conference : conferences) {
+                summaries.add(new ConferenceSummary(conference));
+            }
+            return summaries;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * The values of an integer field sorted, with the numbers of the conferences in the same
+     * order.
+     */
+    private static class SortedIntIndex {
+        private final int[] values;
+
+        private final int[] numbers;
+
+        private SortedIntIndex(int[] values, int[] numbers) {
+            this.values = values;
+            this.numbers = numbers;
+        }
+
+        /**
+         * @param valueByNumber the value of each conference, by number.
+         */
+        SortedIntIndex(int[] valueByNumber) {
+            // Sort the values and numbers together as longs, value in the high half.
+            long[] pairs = new long[valueByNumber.length];
+            for (int number = 0; number < valueByNumber.length; number++) {
+                pairs[number] = ((long) valueByNumber[number] << 32) | number;
+            }
+            Arrays.sort(pairs);
+            values = new int[pairs.length];
+            numbers = new int[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                values[i] = (int) (pairs[i] >> 32);
+                numbers[i] = (int) pairs[i];
+            }
+        }
+
+        /**
+         * Returns an index with new values for some of the conferences. The other entries stay
+         * in order, so only the new ones are sorted, and then merged in.
+         *
+         * @param newValues the new value of each changed conference, by number.
+         */
+        SortedIntIndex with(Map<Integer, Integer> newValues) {
+            long[] changed = new long[newValues.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : newValues.entrySet()) {
+                changed[i++] = ((long) entry.getValue() << 32) | entry.getKey();
+            }
+            Arrays.sort(changed);
+            int[] mergedValues = new int[values.length];
+            int[] mergedNumbers = new int[numbers.length];
+            int merged = 0;
+            int next = 0;
+            for (int j = 0; j < values.length; j++) {
+                if (newValues.containsKey(numbers[j])) {
+                    continue;
+                }
+                long pair = ((long) values[j] << 32) | numbers[j];
+                for (; next < changed.length && changed[next] < pair; next++) {
+                    mergedValues[merged] = (int) (changed[next] >> 32);
+                    mergedNumbers[merged++] = (int) changed[next];
+                }
+                mergedValues[merged] = values[j];
+                mergedNumbers[merged++] = numbers[j];
+            }
+            for (; next < changed.length; next++) {
+                mergedValues[merged] = (int) (changed[next] >> 32);
+                mergedNumbers[merged++] = (int) changed[next];
+            }
+            return new SortedIntIndex(mergedValues, mergedNumbers);
+        }
+
+        /**
+         * Returns the index of the first value that is at least the given one.
+         */
+        private int lowerBound(long value) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the conferences whose value is from low to high, both included.
+         */
+        BitSet between(long low, long high) {
+            BitSet result = new BitSet(values.length);
+            if (low > high) {
+                return result;
+            }
+            int end = high == Long.MAX_VALUE ? values.length : lowerBound(high + 1);
+            for (int i = lowerBound(low); i < end; i++) {
+                result.set(numbers[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the conferences that match the filter.
+         */
+        BitSet matching(Filter filter) {
+            BitSet result;
+            switch (filter.getOperator()) {
+                case IN:
+                    result = new BitSet(values.length);
+                    for (String value : filter.getValues()) {
+                        long number = Long.parseLong(value);
+                        result.or(between(number, number));
+                    }
+                    return result;
+                case NE:
+                    long excluded = Long.parseLong(filter.getValue());
+                    result = between(Long.MIN_VALUE, Long.MAX_VALUE);
+                    result.andNot(between(excluded, excluded));
+                    return result;
+                default:
+                    long value = Long.parseLong(filter.getValue());
+                    switch (filter.getOperator()) {
+                        case EQ:
+                            return between(value, value);
+                        case LT:
+                            return between(Long.MIN_VALUE, value - 1);
+                        case LTEQ:
+                            return between(Long.MIN_VALUE, value);
+                        case GT:
+                            return between(value + 1, Long.MAX_VALUE);
+                        case GTEQ:
+                            return between(value, Long.MAX_VALUE);
+                        default:
+                            throw new IllegalArgumentException(
+                                    "Unknown operator " + filter.getOperator());
+                    }
+            }
+        }
+    }
+
+    /**
+     * The conferences of the catalog at one version of the change log, and their indexes.
+     */
+    private static class Snapshot {
+        private final long version;
+
+        private final long loadedAt;
+
+        /**
+         * When the change log was last found at the version of this snapshot.
+         */
+        private volatile long checkedAt;
+
+        private final Conference[] conferences;
+
+        private final String[] websafeKeys;
+
+        private final Map<Field, NavigableMap<Object, BitSet>> bitSets =
+                new EnumMap<>(Field.class);
+
+        private final SortedIntIndex maxAttendees;
+
+        private final SortedIntIndex seatsAvailable;
+
+        /**
+         * The search index, built by the first search of the snapshot.
+         */
+        private volatile ConferenceSearchIndex searchIndex;
+
+        /**
+         * The last search index of the snapshots this one updates, until it has its own.
+         */
+        private volatile ConferenceSearchIndex previousSearchIndex;
+
+        /**
+         * The web-safe keys of the conferences changed since previousSearchIndex was built.
+         */
+        private final Set<String> changed;
+
+        /**
+         * The numbers of the conferences changed since previousSearchIndex was built, when
+         * every snapshot since has been updated in place, or null.
+         */
+        private final Set<Integer> changedNumbers;
+
+        /**
+         * @param loaded the conferences, with their seats hydrated.
+         * @param previous the snapshot this one updates, or null.
+         * @param changed the web-safe keys of the conferences changed since the previous
+         *            snapshot.
+         */
+        Snapshot(Collection<Conference> loaded, long version, long loadedAt, long checkedAt,
+                Snapshot previous, Set<String> changed) {
+            this.version = version;
+            previousSearchIndex = lastSearchIndex(previous);
+            this.changed = changedSinceSearchIndex(previous, changed);
+            changedNumbers = null;
+            this.loadedAt = loadedAt;
+            this.checkedAt = checkedAt;
+            final Map<Conference, String> keys = new IdentityHashMap<>();
+            for (Conference conference : loaded) {
+                keys.put(conference, conference.getWebsafeKey());
+            }
+            conferences = loaded.toArray(new Conference[loaded.size()]);
+            Arrays.sort(conferences, new Comparator<Conference>() {
+                @Override
+                public int compare(Conference left, Conference right) {
+                    int comparison = name(left).compareTo(name(right));
+                    return comparison != 0 ? comparison
+                            : keys.get(left).compareTo(keys.get(right));
+                }
+            });
+            websafeKeys = new String[conferences.length];
+            int[] maxAttendeesByNumber = new int[conferences.length];
+            int[] seatsAvailableByNumber = new int[conferences.length];
+            for (Field field : BITSET_FIELDS) {
+                bitSets.put(field, new TreeMap<Object, BitSet>());
+            }
+            for (int number = 0; number < conferences.length; number++) {
+                Conference conference = conferences[number];
+                websafeKeys[number] = keys.get(conference);
+                maxAttendeesByNumber[number] = conference.getMaxAttendees();
+                seatsAvailableByNumber[number] = conference.getSeatsAvailable();
+                for (Field field : BITSET_FIELDS) {
+                    NavigableMap<Object, BitSet> index = bitSets.get(field);
+                    for (Object value : ConferenceQueryPlanner.values(conference, field)) {
+                        if (value == null) {
+                            continue;
+                        }
+                        BitSet bitSet = index.get(value);
+                        if (bitSet == null) {
+                            bitSet = new BitSet(conferences.length);
+                            index.put(value, bitSet);
+                        }
+                        bitSet.set(number);
+                    }
+                }
+            }
+            maxAttendees = new SortedIntIndex(maxAttendeesByNumber);
+            seatsAvailable = new SortedIntIndex(seatsAvailableByNumber);
+        }
+
+        /**
+         * A snapshot of the same conferences as the previous one, in the same order, with some
+         * of them replaced by their reloaded versions. Only the index entries of the replaced
+         * conferences are changed; the BitSets of the values they neither had nor have are
+         * shared with the previous snapshot.
+         *
+         * @param replacements the reloaded conferences, by number.
+         * @param changed the web-safe keys of the replaced conferences.
+         */
+        private Snapshot(Snapshot previous, Map<Integer, Conference> replacements, long version,
+                long checkedAt, Set<String> changed) {
+            this.version = version;
+            previousSearchIndex = lastSearchIndex(previous);
+            this.changed = changedSinceSearchIndex(previous, changed);
+            if (previous.searchIndex != null) {
+                changedNumbers = replacements.keySet();
+            } else if (previous.changedNumbers != null) {
+                changedNumbers = new HashSet<>(previous.changedNumbers);
+                changedNumbers.addAll(replacements.keySet());
+            } else {
+                changedNumbers = null;
+            }
+            loadedAt = previous.loadedAt;
+            this.checkedAt = checkedAt;
+            conferences = previous.conferences.clone();
+            websafeKeys = previous.websafeKeys;
+            Map<Integer, Integer> maxAttendeesByNumber = new HashMap<>();
+            Map<Integer, Integer> seatsAvailableByNumber = new HashMap<>();
+            for (Field field : BITSET_FIELDS) {
+                bitSets.put(field, new TreeMap<>(previous.bitSets.get(field)));
+            }
+            Set<BitSet> copied = Collections.newSetFromMap(new IdentityHashMap<BitSet, Boolean>());
+            for (Map.Entry<Integer, Conference> entry : replacements.entrySet()) {
+                int number = entry.getKey();
+                Conference conference = entry.getValue();
+                Conference replaced = conferences[number];
+                conferences[number] = conference;
+                maxAttendeesByNumber.put(number, conference.getMaxAttendees());
+                seatsAvailableByNumber.put(number, conference.getSeatsAvailable());
+                for (Field field : BITSET_FIELDS) {
+                    Set<Object> oldValues =
+                            new HashSet<>(ConferenceQueryPlanner.values(replaced, field));
+                    Set<Object> newValues =
+                            new HashSet<>(ConferenceQueryPlanner.values(conference, field));
+                    if (oldValues.equals(newValues)) {
+                        continue;
+                    }
+                    NavigableMap<Object, BitSet> index = bitSets.get(field);
+                    for (Object value : oldValues) {
+                        if (value != null && !newValues.contains(value)) {
+                            BitSet bitSet = copyOnce(index, value, copied);
+                            bitSet.clear(number);
+                            if (bitSet.isEmpty()) {
+                                index.remove(value);
+                            }
+                        }
+                    }
+                    for (Object value : newValues) {
+                        if (value != null && !oldValues.contains(value)) {
+                            copyOnce(index, value, copied).set(number);
+                        }
+                    }
+                }
+            }
+            maxAttendees = previous.maxAttendees.with(maxAttendeesByNumber);
+            seatsAvailable = previous.seatsAvailable.with(seatsAvailableByNumber);
+        }
+
+        /**
+         * Returns the BitSet of the value in an index copied from a previous snapshot, copying
+         * it first if it is still the previous snapshot's, or a new one if there is none.
+         */
+        private BitSet copyOnce(NavigableMap<Object, BitSet> index, Object value,
+                Set<BitSet> copied) {
+            BitSet bitSet = index.get(value);
+            if (bitSet == null) {
+                bitSet = new BitSet(conferences.length);
+            } else if (copied.contains(bitSet)) {
+                return bitSet;
+            } else {
+                bitSet = (BitSet) bitSet.clone();
+            }
+            copied.add(bitSet);
+            index.put(value, bitSet);
+            return bitSet;
+        }
+
+        /**
+         * Returns the search index that a snapshot updating the given one builds its own from.
+         */
+        private static ConferenceSearchIndex lastSearchIndex(Snapshot previous) {
+            if (previous == null) {
+                return null;
+            }
+            return previous.searchIndex != null ? previous.searchIndex
+                    : previous.previousSearchIndex;
+        }
+
+        /**
+         * Returns the web-safe keys of the conferences changed since the search index returned
+         * by {@link #lastSearchIndex(Snapshot)} was built.
+         */
+        private static Set<String> changedSinceSearchIndex(Snapshot previous,
+                Set<String> changed) {
+            if (previous == null || previous.searchIndex != null
+                    || previous.previousSearchIndex == null) {
+                return changed;
+            }
+            Set<String> all = new HashSet<>(previous.changed);
+            all.addAll(changed);
+            return all;
+        }
+
+        /**
+         * Returns the conferences that match all the filters.
+         */
+        BitSet matching(List<Filter> filters) {
+            Map<Field, List<Filter>> filtersByField = new EnumMap<>(Field.class);
+            for (Filter filter : filters) {
+                if (!filtersByField.containsKey(filter.getField())) {
+                    filtersByField.put(filter.getField(), new ArrayList<Filter>());
+                }
+                filtersByField.get(filter.getField()).add(filter);
+            }
+            BitSet result = new BitSet(conferences.length);
+            result.set(0, conferences.length);
+            for (Map.Entry<Field, List<Filter>> entry : filtersByField.entrySet()) {
+                if (entry.getKey() == Field.MAX_ATTENDEES) {
+                    for (Filter filter : entry.getValue()) {
+                        result.and(maxAttendees.matching(filter));
+                    }
+                } else {
+                    result.and(matching(bitSets.get(entry.getKey()), entry.getValue()));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the conferences with a value that matches all the filters of its field, the
+         * way the query planner applies filters in memory.
+         */
+        private BitSet matching(NavigableMap<Object, BitSet> index, List<Filter> filters) {
+            Map<Object, BitSet> candidates = index;
+            // Look the values of an equality filter up instead of going through all of them.
+            for (Filter filter : filters) {
+                if (filter.getOperator() == Operator.EQ || filter.getOperator() == Operator.IN) {
+                    candidates = new LinkedHashMap<>();
+                    for (String value : filter.getValues()) {
+                        Object propertyValue =
+                                ConferenceQueryPlanner.propertyValue(filter.getField(), value);
+                        if (index.containsKey(propertyValue)) {
+                            candidates.put(propertyValue, index.get(propertyValue));
+                        }
+                    }
+                    break;
+                }
+            }
+            BitSet result = new BitSet(conferences.length);
+            for (Map.Entry<Object, BitSet> entry : candidates.entrySet()) {
+                if (matches(entry.getKey(), filters)) {
+                    result.or(entry.getValue());
+                }
+            }
+            return result;
+        }
+
+        private static boolean matches(Object value, List<Filter> filters) {
+            for (Filter filter : filters) {
+                if (filter.getOperator() == Operator.IN) {
+                    Set<Object> values = new HashSet<>();
+                    for (String inValue : filter.getValues()) {
+                        values.add(ConferenceQueryPlanner.propertyValue(filter.getField(),
+                                inValue));
+                    }
+                    if (!values.contains(value)) {
+                        return false;
+                    }
+                } else if (!ConferenceQueryPlanner.anyValueMatches(
+                        Collections.singletonList(value), Collections.singletonList(filter))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the number of the first conference after the one in the page token.
+         */
+        private int start(String pageToken) {
+            if (pageToken == null || pageToken.isEmpty()) {
+                return 0;
+            }
+            String position = pageToken.substring(PAGE_TOKEN_PREFIX.length());
+            int separator = position.indexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid page token " + pageToken);
+            }
+            String websafeKey = position.substring(0, separator);
+            String name = position.substring(separator + 1);
+            int low = 0;
+            int high = conferences.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int comparison = name(conferences[middle]).compareTo(name);
+                if (comparison == 0) {
+                    comparison = websafeKeys[middle].compareTo(websafeKey);
+                }
+                if (comparison <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns one page of the conferences that match the filters.
+         */
+        Page page(List<Filter> filters, String pageToken, int pageSize) {
+            BitSet matching = matching(filters);
+            List<Conference> result = new ArrayList<>(pageSize);
+            int number = matching.nextSetBit(start(pageToken));
+            while (number >= 0 && result.size() < pageSize) {
+                result.add(conferences[number]);
+                number = matching.nextSetBit(number + 1);
+            }
+            String nextPageToken = null;
+            if (number >= 0 && !result.isEmpty()) {
+                Conference last = result.get(result.size() - 1);
+                nextPageToken = PAGE_TOKEN_PREFIX + last.getWebsafeKey() + ":" + name(last);
+            }
+            return new Page(result, nextPageToken);
+        }
+
+        /**
+         * Returns a snapshot with the given conferences reloaded.
+         *
+         * When every changed conference is still there under the same name, such as after a
+         * registration, the conferences keep their numbers and only their index entries are
+         * replaced. When a conference is added, removed or renamed, the numbers move, and the
+         * snapshot is sorted and indexed again whole. That costs a sort of the catalog, which
+         * happens at most once per conference.catalog.maxStalenessMillis on an instance, since
+         * the change log is read no more often, and the other requests keep using this
+         * snapshot meanwhile.
+         *
+         * @param changed the web-safe keys of the conferences that have changed.
+         */
+        Snapshot update(Set<String> changed, long version, long now) {
+            Map<Key<Conference>, Conference> reloaded = load(changed);
+            Map<Integer, Conference> replacements = replacementsInPlace(changed, reloaded);
+            if (replacements != null) {
+                return new Snapshot(this, replacements, version, now, changed);
+            }
+            List<Conference> updated = new ArrayList<>(conferences.length + changed.size());
+            for (int number = 0; number < conferences.length; number++) {
+                if (!changed.contains(websafeKeys[number])) {
+                    updated.add(conferences[number]);
+                }
+            }
+            updated.addAll(reloaded.values());
+            return new Snapshot(updated, version, loadedAt, now, this, changed);
+        }
+
+        /**
+         * Returns the reloaded conferences by number, or null if one of them is new, has been
+         * deleted or has a new name, which changes the numbers.
+         */
+        private Map<Integer, Conference> replacementsInPlace(Set<String> changed,
+                Map<Key<Conference>, Conference> reloaded) {
+            if (reloaded.size() != changed.size()) {
+                return null;
+            }
+            Map<Integer, Conference> replacements = new HashMap<>();
+            for (String websafeKey : changed) {
+                Conference conference = reloaded.get(Key.<Conference>create(websafeKey));
+                if (conference == null) {
+                    return null;
+                }
+                // Found by its new name only if it hasn't been renamed.
+                int number = numberOf(name(conference), websafeKey);
+                if (number < 0) {
+                    return null;
+                }
+                replacements.put(number, conference);
+            }
+            return replacements;
+        }
+
+        /**
+         * Returns the number of the conference with the given name and web-safe key, found by
+         * bisection in the order of the snapshot, or -1 if there is none.
+         */
+        private int numberOf(String name, String websafeKey) {
+            int low = 0;
+            int high = conferences.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = name(conferences[middle]).compareTo(name);
+                if (comparison == 0) {
+                    comparison = websafeKeys[middle].compareTo(websafeKey);
+                }
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the search index of the snapshot, built from the previous one if there is one.
+         */
+        ConferenceSearchIndex searchIndex() {
+            ConferenceSearchIndex index = searchIndex;
+            if (index == null) {
+                synchronized (this) {
+                    index = searchIndex;
+                    if (index == null) {
+                        if (changedNumbers != null
+                                && previousSearchIndex.isNumberedBy(websafeKeys)) {
+                            index = ConferenceSearchIndex.update(previousSearchIndex,
+                                    conferences, changedNumbers);
+                        } else {
+                            index = new ConferenceSearchIndex(conferences, websafeKeys,
+                                    previousSearchIndex, changed);
+                        }
+                        searchIndex = index;
+                        previousSearchIndex = null;
+                    }
+                }
+            }
+            return index;
+        }
+
+        /**
+         * Returns one page of the conferences that contain every word of the query.
+         */
+        Page search(String query, String pageToken, int pageSize) {
+            int offset = 0;
+            if (pageToken != null && !pageToken.isEmpty()) {
+                try {
+                    offset = Integer.parseInt(pageToken);
+                } catch (NumberFormatException e) {
+                    offset = -1;
+                }
+                if (offset < 0) {
+                    throw new IllegalArgumentException("Invalid page token " + pageToken);
+                }
+            }
+            ConferenceSearchIndex.Result result = searchIndex().search(query, offset, pageSize);
+            int[] numbers = result.getNumbers();
+            List<Conference> matches = new ArrayList<>(numbers.length);
+            for (int number : numbers) {
+                matches.add(conferences[number]);
+            }
+            return new Page(matches,
+                    result.hasMore() ? String.valueOf(offset + numbers.length) : null);
+        }
+    }
+
+    /**
+     * Returns the name the conference is ordered by; a conference without a name comes first.
+     */
+    private static String name(Conference conference) {
+        return Strings.nullToEmpty(conference.getName());
+    }
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+    }
+
+    /**
+     * Returns true if conference queries are answered by the catalog.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Returns true if the catalog is enabled and the cursor is a page token returned by it, or
+     * null for the first page.
+     *
+     * @param cursor the cursor of a ConferenceQueryForm.
+     */
+    public static boolean canServe(String cursor) {
+        return isEnabled()
+                && (cursor == null || cursor.isEmpty() || cursor.startsWith(PAGE_TOKEN_PREFIX));
+    }
+
+    /**
+     * Returns one page of the conferences that match all the filters, ordered by name.
+     *
+     * @param filters the filters of the query.
+     * @param pageToken the token returned with the previous page, or null for the first page.
+     * @param pageSize the number of conferences on the page.
+     * @return the page.
+     * @throws IllegalArgumentException if the page token is not one returned by this query.
+     */
+    public static Page query(List<Filter> filters, String pageToken, int pageSize) {
+        return current().page(filters, pageToken, pageSize);
+    }
+
+    /**
+     * Returns one page of the conferences whose name, description or topics contain every word
+     * of the query, best match first. Search doesn't depend on conference.catalog.enabled.
+     *
+     * @param query the words to search for.
+     * @param pageToken the token returned with the previous page, or null for the first page.
+     * @param pageSize the number of conferences on the page.
+     * @return the page.
+     * @throws IllegalArgumentException if the page token is not one returned by a search.
+     */
+    public static Page search(String query, String pageToken, int pageSize) {
+        return current().search(query, pageToken, pageSize);
+    }
+
+    /**
+     * Returns the conferences with a word in their name that starts with the prefix, the ones
+     * with the most seats booked first. Suggestions don't depend on conference.catalog.enabled.
+     *
+     * The name index is checked against the change log like a snapshot, and while one request
+     * refreshes it, the others keep using the previous one. When this instance has a snapshot
+     * and the conferences have kept their names, only the ranking of the index is updated from
+     * the snapshot. Otherwise an index of the current version is read from memcache when
+     * another instance has stored one, so that suggestions don't need the whole catalog to be
+     * loaded, or it is built from the snapshot and stored for the other instances.
+     *
+     * @param prefix what the user has typed.
+     * @param limit the largest number of suggestions.
+     * @return the suggestions.
+     */
+    public static List<ConferenceSuggestion> suggest(String prefix, int limit) {
+        return currentNameIndex().suggest(prefix, limit);
+    }
+
+    /**
+     * Returns a name index checked against the change log within the staleness bound, like
+     * {@link #current()}.
+     */
+    private static ConferenceNameIndex currentNameIndex() {
+        ConferenceNameIndex index = nameIndex;
+        if (index != null
+                && System.currentTimeMillis() - nameIndexCheckedAt < maxStalenessMillis()) {
+            return index;
+        }
+        if (index == null) {
+            nameIndexLock.lock();
+        } else if (!nameIndexLock.tryLock()) {
+            return index;
+        }
+        try {
+            index = nameIndex;
+            long now = System.currentTimeMillis();
+            if (index == null || now - nameIndexCheckedAt >= maxStalenessMillis()) {
+                index = refreshNameIndex(index, now);
+                nameIndex = index;
+                nameIndexCheckedAt = now;
+            }
+            return index;
+        } finally {
+            nameIndexLock.unlock();
+        }
+    }
+
+    private static ConferenceNameIndex refreshNameIndex(ConferenceNameIndex current, long now) {
+        MemcacheService memcache = memcache();
+        long version = readVersion(memcache, now);
+        if (current != null && current.getVersion() == version) {
+            return current;
+        }
+        // Re-ranking the index is cheaper than reading it from memcache, and isn't stored:
+        // the other instances with an index re-rank theirs.
+        if (current != null && snapshot != null) {
+            Snapshot latest = current();
+            ConferenceNameIndex reranked =
+                    current.withSeatsBooked(latest.conferences, latest.websafeKeys, latest.version);
+            if (reranked != null) {
+                return reranked;
+            }
+        }
+        ConferenceNameIndex stored = readNameIndex(memcache, version);
+        if (stored != null) {
+            return stored;
+        }
+        Snapshot latest = current();
+        ConferenceNameIndex built =
+                new ConferenceNameIndex(latest.conferences, latest.websafeKeys, latest.version);
+        writeNameIndex(memcache, built);
+        return built;
+    }
+
+    /**
+     * Reads the name index of the version from memcache, or returns null if it isn't there.
+     */
+    private static ConferenceNameIndex readNameIndex(MemcacheService memcache, long version) {
+        String key = NAME_INDEX_KEY_PREFIX + version;
+        Object chunkCount = memcache.get(key);
+        if (chunkCount == null) {
+            return null;
+        }
+        List<String> chunkKeys = new ArrayList<>();
+        for (int i = 0; i < (Integer) chunkCount; i++) {
+            chunkKeys.add(key + "-" + i);
+        }
+        Map<String, Object> chunks = memcache.getAll(chunkKeys);
+        if (chunks.size() < chunkKeys.size()) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String chunkKey : chunkKeys) {
+            byte[] chunk = (byte[]) chunks.get(chunkKey);
+            bytes.write(chunk, 0, chunk.length);
+        }
+        try {
+            return ConferenceNameIndex.fromBytes(bytes.toByteArray());
+        } catch (IOException e) {
+            LOG.warning("Ignoring an unreadable name index: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the name index in memcache, in pieces, and then the number of pieces.
+     */
+    private static void writeNameIndex(MemcacheService memcache, ConferenceNameIndex index) {
+        String key = NAME_INDEX_KEY_PREFIX + index.getVersion();
+        byte[] bytes = index.toBytes();
+        Map<String, byte[]> chunks = new HashMap<>();
+        for (int i = 0; i * NAME_INDEX_CHUNK_BYTES < bytes.length || i == 0; i++) {
+            chunks.put(key + "-" + i, Arrays.copyOfRange(bytes, i * NAME_INDEX_CHUNK_BYTES,
+                    Math.min(bytes.length, (i + 1) * NAME_INDEX_CHUNK_BYTES)));
+        }
+        Expiration expiration = Expiration.byDeltaSeconds(CHANGE_EXPIRATION_SECONDS);
+        memcache.putAll(chunks, expiration);
+        memcache.put(key, chunks.size(), expiration);
+    }
+
+    /**
+     * Returns the names of the conferences whose seats available are from low to high, both
+     * included, ordered by name.
+     */
+    public static List<String> namesBySeatsAvailable(int low, int high) {
+        Snapshot current = current();
+        BitSet matching = current.seatsAvailable.between(low, high);
+        List<String> names = new ArrayList<>(matching.cardinality());
+        for (int number = matching.nextSetBit(0); number >= 0;
+                number = matching.nextSetBit(number + 1)) {
+            names.add(current.conferences[number].getName());
+        }
+        return names;
+    }
+
+    /**
+     * Records that a Conference or its seats have been written, so that every instance reloads
+     * it within the staleness bound. Call this after the write has committed.
+     *
+     * @param websafeConferenceKey the web-safe key of the conference.
+     */
+    public static void recordChange(String websafeConferenceKey) {
+        recordChanges(Collections.singletonList(websafeConferenceKey));
+    }
+
+    /**
+     * Records that several Conferences have been written, with one version increment and one
+     * batch put for all of them. Call this after the writes have committed.
+     *
+     * @param websafeConferenceKeys the web-safe keys of the conferences.
+     */
+    public static void recordChanges(List<String> websafeConferenceKeys) {
+        if (websafeConferenceKeys.isEmpty()) {
+            return;
+        }
+        MemcacheService memcache = memcache();
+        // When memcache has lost the version, it restarts from the time, past the versions of
+        // the snapshots, which then find the log incomplete and reload.
+        Long version = memcache.increment(VERSION_KEY, (long) websafeConferenceKeys.size(),
+                System.currentTimeMillis());
+        if (version != null) {
+            long first = version - websafeConferenceKeys.size() + 1;
+            Map<String, String> changes = new HashMap<>();
+            for (int i = 0; i < websafeConferenceKeys.size(); i++) {
+                changes.put(CHANGE_KEY_PREFIX + (first + i), websafeConferenceKeys.get(i));
+            }
+            memcache.putAll(changes, Expiration.byDeltaSeconds(CHANGE_EXPIRATION_SECONDS));
+        }
+    }
+
+    /**
+     * Drops the snapshot and the name index of this instance, so that the next query loads the
+     * catalog again.
+     */
+    public static void reset() {
+        snapshot = null;
+        nameIndex = null;
+    }
+
+    private static long maxStalenessMillis() {
+        return Long.getLong(MAX_STALENESS_PROPERTY, DEFAULT_MAX_STALENESS_MILLIS);
+    }
+
+    /**
+     * Returns a snapshot checked against the change log within the staleness bound. While one
+     * request refreshes the snapshot, the others keep using the previous one.
+     */
+    private static Snapshot current() {
+        Snapshot current = snapshot;
+        if (current != null
+                && System.currentTimeMillis() - current.checkedAt < maxStalenessMillis()) {
+            return current;
+        }
+        if (current == null) {
+            refreshLock.lock();
+        } else if (!refreshLock.tryLock()) {
+            return current;
+        }
+        try {
+            current = snapshot;
+            long now = System.currentTimeMillis();
+            if (current == null || now - current.checkedAt >= maxStalenessMillis()) {
+                current = refresh(current, now);
+                snapshot = current;
+            }
+            return current;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current version of the change log. If memcache has lost it, it restarts from
+     * the current time.
+     */
+    private static long readVersion(MemcacheService memcache, long now) {
+        Object value = memcache.get(VERSION_KEY);
+        if (value == null) {
+            memcache.put(VERSION_KEY, now, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            value = memcache.get(VERSION_KEY);
+        }
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    private static Snapshot refresh(Snapshot current, long now) {
+        MemcacheService memcache = memcache();
+        long version = readVersion(memcache, now);
+        if (current != null && now - current.loadedAt < FULL_RELOAD_MILLIS) {
+            long changes = version - current.version;
+            if (changes == 0) {
+                current.checkedAt = now;
+                return current;
+            }
+            if (changes > 0 && changes <= MAX_LOGGED_CHANGES) {
+                Set<String> changed = changes(memcache, current.version + 1, version, true);
+                if (changed != null) {
+                    LOG.fine("Reloading " + changed.size() + " changed conferences");
+                    return current.update(changed, version, now);
+                }
+            }
+        }
+        return loadAll(memcache, version, now);
+    }
+
+    /**
+     * Returns the web-safe keys of the conferences changed in the given versions.
+     *
+     * @param complete whether every version must be found in the log.
+     * @return the keys, or null if a version that must be found is missing.
+     */
+    private static Set<String> changes(MemcacheService memcache, long from, long to,
+            boolean complete) {
+        List<String> changeKeys = new ArrayList<>();
+        for (long version = from; version <= to; version++) {
+            changeKeys.add(CHANGE_KEY_PREFIX + version);
+        }
+        Map<String, Object> logged = memcache.getAll(changeKeys);
+        if (complete && logged.size() < changeKeys.size()) {
+            return null;
+        }
+        Set<String> changed = new HashSet<>();
+        for (Object websafeKey : logged.values()) {
+            changed.add((String) websafeKey);
+        }
+        return changed;
+    }
+
+    /**
+     * Loads the whole catalog with one query. The conferences in the recent change log are
+     * also read by key, as the query may not see the latest writes yet.
+     */
+    private static Snapshot loadAll(MemcacheService memcache, long version, long now) {
+        long startNanos = System.nanoTime();
+        // A session of its own keeps the snapshot's conferences out of the request's session.
+        Objectify ofy = factory().begin();
+        Map<String, Conference> conferences = new HashMap<>();
+        for (Conference conference : ofy.load().type(Conference.class).chunkAll()) {
+            conferences.put(conference.getWebsafeKey(), conference);
+        }
+        Set<String> recent = changes(memcache,
+                Math.max(1, version - MAX_LOGGED_CHANGES + 1), version, false);
+        // Another session, or the gets would return the entities the query has just loaded.
+        for (Conference conference : load(factory().begin(), recent).values()) {
+            conferences.put(conference.getWebsafeKey(), conference);
+        }
+        SeatShardService.hydrateSeats(conferences.values());
+        LOG.info("Loaded " + conferences.size() + " conferences into the catalog in "
+                + (System.nanoTime() - startNanos) / 1000000 + " ms");
+        return new Snapshot(conferences.values(), version, now, now, null,
+                Collections.<String>emptySet());
+    }
+
+    /**
+     * Loads the given conferences with one batch get and hydrates their seats.
+     */
+    private static Map<Key<Conference>, Conference> load(Set<String> websafeKeys) {
+        Map<Key<Conference>, Conference> conferences = load(factory().begin(), websafeKeys);
+        SeatShardService.hydrateSeats(conferences.values());
+        return conferences;
+    }
+
+    private static Map<Key<Conference>, Conference> load(Objectify ofy,
+            Set<String> websafeKeys) {
+        List<Key<Conference>> keys = new ArrayList<>(websafeKeys.size());
+        for (String websafeKey : websafeKeys) {
+            keys.add(Key.<Conference>create(websafeKey));
+        }
+        return ofy.load().keys(keys);
+    }
+}
@@ -0,0 +1,151 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.Futures;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.concurrent.Future;
+
+/**
+ * Hands out conference IDs from blocks reserved with allocateIds, so that creating a
+ * conference doesn't cost an ID allocation RPC.
+ *
+ * A conference ID is only unique under its parent Profile, so the blocks are reserved, and
+ * pooled, per Profile: an ID from another space could be one that an existing conference of
+ * the same organizer already has. When a pool gets down to a quarter of a block, the next
+ * block is reserved asynchronously, so a burst of creates by one organizer, such as a bulk
+ * import, only waits for the first allocation. A batch of IDs is taken from the pool and the
+ * rest reserved with one allocation. The pools are per instance; the IDs left in a pool when
+ * the instance goes away are never used, which only leaves gaps.
+ *
+ * The block size is read from the system property conference.idAllocator.blockSize.
+ */
+public class ConferenceIdAllocator {
+
+    /**
+     * The system property with the number of IDs reserved at once.
+     */
+    public static final String BLOCK_SIZE_PROPERTY = "conference.idAllocator.blockSize";
+
+    private static final int DEFAULT_BLOCK_SIZE = 20;
+
+    /**
+     * The largest number of organizers whose pools are kept.
+     */
+    private static final int MAX_POOLS = 1000;
+
+    private static volatile LoadingCache<Key<Profile>, Pool> pools = newPools();
+
+    /**
+     * The IDs reserved for the conferences of one organizer.
+     */
+    private static class Pool {
+        private final Key<Profile> profileKey;
+
+        private long next;
+
+        /**
+         * The end of the current block, exclusive.
+         */
+        private long end;
+
+        private Future<KeyRange> refill;
+
+        Pool(Key<Profile> profileKey) {
+            this.profileKey = profileKey;
+        }
+
+        synchronized long nextId() {
+            int blockSize = blockSize();
+            if (next == end) {
+                Future<KeyRange> pending = refill == null ? allocate(blockSize) : refill;
+                // Cleared first, so that a failed allocation is retried by the next call
+                // instead of being thrown again.
+                refill = null;
+                KeyRange range = Futures.getUnchecked(pending);
+                next = range.getStart().getId();
+                end = range.getEnd().getId() + 1;
+            }
+            long id = next++;
+            if (refill == null && end - next <= Math.max(1, blockSize / 4)) {
+                refill = allocate(blockSize);
+            }
+            return id;
+        }
+
+        /**
+         * Takes what is left in the pool and reserves the rest with a single allocation,
+         * without waiting for a refill in flight.
+         */
+        synchronized long[] nextIds(int count) {
+            long[] ids = new long[count];
+            int taken = 0;
+            while (taken < count && next < end) {
+                ids[taken++] = next++;
+            }
+            if (taken < count) {
+                KeyRange range = Futures.getUnchecked(allocate(count - taken));
+                for (long id = range.getStart().getId(); taken < count; id++) {
+                    ids[taken++] = id;
+                }
+            }
+            return ids;
+        }
+
+        private Future<KeyRange> allocate(int blockSize) {
+            return DatastoreServiceFactory.getAsyncDatastoreService().allocateIds(
+                    profileKey.getRaw(), Key.getKind(Conference.class), blockSize);
+        }
+    }
+
+    private static LoadingCache<Key<Profile>, Pool> newPools() {
+        return CacheBuilder.newBuilder().maximumSize(MAX_POOLS)
+                .build(new CacheLoader<Key<Profile>, Pool>() {
+                    @Override
+                    public Pool load(Key<Profile> profileKey) {
+                        return new Pool(profileKey);
+                    }
+                });
+    }
+
+    private static int blockSize() {
+        return Math.max(1, Integer.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE));
+    }
+
+    /**
+     * Returns an ID for a new conference of the organizer, which no other conference of the
+     * organizer has or will get. It only waits for an RPC when the pool of the organizer is
+     * empty.
+     *
+     * @param profileKey the key of the Profile of the organizer, the parent of the conference.
+     * @return the ID.
+     */
+    public static long nextId(Key<Profile> profileKey) {
+        return pools.getUnchecked(profileKey).nextId();
+    }
+
+    /**
+     * Returns IDs for new conferences of the organizer, with at most one RPC however many are
+     * asked for.
+     *
+     * @param profileKey the key of the Profile of the organizer, the parent of the conferences.
+     * @param count the number of IDs.
+     * @return the IDs.
+     */
+    public static long[] nextIds(Key<Profile> profileKey, int count) {
+        return pools.getUnchecked(profileKey).nextIds(count);
+    }
+
+    /**
+     * Drops the pools of this instance, so that the next IDs come from new blocks.
+     */
+    public static void reset() {
+        pools = newPools();
+    }
+}
@@ -0,0 +1,325 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSuggestion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A prefix index of conference names, for typeahead suggestions.
+ *
+ * Every word of every name is an entry: the number of the conference and the offset of the
+ * word in its lowercase name, so that "kub" finds "Cloud Kubernetes Day" as well as
+ * "Kubernetes Day". The entries are sorted by the rest of the name from their offset, so the
+ * entries that start with a prefix are found with two binary searches, without storing a
+ * string per entry. The matches are ranked by the number of seats booked, then in the order
+ * of the conferences, which is the order of their names.
+ *
+ * The index is built from a catalog snapshot and shared between instances through memcache in
+ * the compact form written by {@link #toBytes()}. When only seats have been booked since, it is
+ * brought up to date by {@link #withSeatsBooked}, which shares the entries.
+ */
+public class ConferenceNameIndex {
+
+    private final long version;
+
+    /**
+     * The web-safe keys of the snapshot the index was built from, or null if it was read from
+     * memcache.
+     */
+    private final String[] numberedBy;
+
+    private final String[] names;
+
+    private final String[] websafeKeys;
+
+    private final int[] seatsBooked;
+
+    private final String[] lowerCaseNames;
+
+    /**
+     * The conference number of every entry, in the order of the entries.
+     */
+    private final int[] entryNumbers;
+
+    /**
+     * The offset of the word of every entry in the lowercase name.
+     */
+    private final int[] entryOffsets;
+
+    /**
+     * Indexes the names of the conferences.
+     *
+     * @param conferences the conferences in the order of their names, with their seats
+     *            hydrated.
+     * @param websafeKeys the web-safe keys of the conferences, in the same order.
+     * @param version the version of the change log the conferences are from.
+     */
+    public ConferenceNameIndex(Conference[] conferences, String[] websafeKeys, long version) {
+        this.version = version;
+        this.numberedBy = websafeKeys;
+        this.names = new String[conferences.length];
+        this.websafeKeys = websafeKeys.clone();
+        this.seatsBooked = new int[conferences.length];
+        for (int number = 0; number < conferences.length; number++) {
+            String name = conferences[number].getName();
+            names[number] = name == null ? "" : name;
+            seatsBooked[number] = conferences[number].getMaxAttendees()
+                    - conferences[number].getSeatsAvailable();
+        }
+        this.lowerCaseNames = lowerCase(names);
+        List<Long> entries = new ArrayList<>();
+        for (int number = 0; number < conferences.length; number++) {
+            String lowerCaseName = lowerCaseNames[number];
+            for (int offset = 0; offset < lowerCaseName.length(); offset++) {
+                if (Character.isLetterOrDigit(lowerCaseName.charAt(offset))
+                        && (offset == 0
+                                || !Character.isLetterOrDigit(lowerCaseName.charAt(offset - 1)))) {
+                    entries.add(((long) number << 32) | offset);
+                }
+            }
+        }
+        Long[] sorted = entries.toArray(new Long[entries.size()]);
+        Arrays.sort(sorted, new Comparator<Long>() {
+            @Override
+            public int compare(Long left, Long right) {
+                return compareEntries(left, right);
+            }
+        });
+        entryNumbers = new int[sorted.length];
+        entryOffsets = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            entryNumbers[i] = (int) (sorted[i] >>> 32);
+            entryOffsets[i] = (int) (long) sorted[i];
+        }
+    }
+
+    private ConferenceNameIndex(long version, String[] numberedBy, String[] names,
+            String[] websafeKeys, int[] seatsBooked, String[] lowerCaseNames, int[] entryNumbers,
+            int[] entryOffsets) {
+        this.version = version;
+        this.numberedBy = numberedBy;
+        this.names = names;
+        this.websafeKeys = websafeKeys;
+        this.seatsBooked = seatsBooked;
+        this.lowerCaseNames = lowerCaseNames;
+        this.entryNumbers = entryNumbers;
+        this.entryOffsets = entryOffsets;
+    }
+
+    /**
+     * Returns an index of the same entries ranked by the seats booked of the conferences, if
+     * they are the conferences of the index with the same names, in the same order, as in a
+     * snapshot updated in place since the index was built.
+     *
+     * @param conferences the conferences in the order of their names, with their seats
+     *            hydrated.
+     * @param websafeKeys the web-safe keys of the conferences, in the same order.
+     * @param version the version of the change log the conferences are from.
+     * @return the index, or null if a conference has been added, removed or renamed.
+     */
+    public ConferenceNameIndex withSeatsBooked(Conference[] conferences, String[] websafeKeys,
+            long version) {
+        if (conferences.length != names.length) {
+            return null;
+        }
+        boolean sameNumbering = websafeKeys == numberedBy;
+        int[] newSeatsBooked = new int[conferences.length];
+        for (int number = 0; number < conferences.length; number++) {
+            if (!sameNumbering) {
+                String name = conferences[number].getName();
+                if (!websafeKeys[number].equals(this.websafeKeys[number])
+                        || !(name == null ? "" : name).equals(names[number])) {
+                    return null;
+                }
+            }
+            newSeatsBooked[number] = conferences[number].getMaxAttendees()
+                    - conferences[number].getSeatsAvailable();
+        }
+        return new ConferenceNameIndex(version, websafeKeys, names, this.websafeKeys,
+                newSeatsBooked, lowerCaseNames, entryNumbers, entryOffsets);
+    }
+
+    private static String[] lowerCase(String[] names) {
+        String[] lowerCaseNames = new String[names.length];
+        for (int number = 0; number < names.length; number++) {
+            lowerCaseNames[number] = names[number].toLowerCase(Locale.ROOT);
+        }
+        return lowerCaseNames;
+    }
+
+    private int compareEntries(long left, long right) {
+        String leftName = lowerCaseNames[(int) (left >>> 32)];
+        String rightName = lowerCaseNames[(int) (right >>> 32)];
+        int leftOffset = (int) left;
+        int rightOffset = (int) right;
+        int length = Math.min(leftName.length() - leftOffset, rightName.length() - rightOffset);
+        for (int i = 0; i < length; i++) {
+            int comparison = leftName.charAt(leftOffset + i) - rightName.charAt(rightOffset + i);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return (leftName.length() - leftOffset) - (rightName.length() - rightOffset);
+    }
+
+    /**
+     * Compares the rest of the name of an entry, cut to the length of the prefix, with the
+     * prefix.
+     */
+    private int comparePrefix(int entry, String prefix) {
+        String name = lowerCaseNames[entryNumbers[entry]];
+        int offset = entryOffsets[entry];
+        int length = Math.min(name.length() - offset, prefix.length());
+        for (int i = 0; i < length; i++) {
+            int comparison = name.charAt(offset + i) - prefix.charAt(i);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length < prefix.length() ? -1 : 0;
+    }
+
+    /**
+     * Returns the first entry that doesn't compare below the prefix, or that compares above it
+     * when upper is true.
+     */
+    private int bound(String prefix, boolean upper) {
+        int low = 0;
+        int high = entryNumbers.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = comparePrefix(middle, prefix);
+            if (comparison < 0 || (upper && comparison == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the conferences with a word in their name that starts with the prefix, ignoring
+     * case, the ones with the most seats booked first.
+     *
+     * @param prefix what the user has typed.
+     * @param limit the largest number of suggestions.
+     * @return the suggestions.
+     */
+    public List<ConferenceSuggestion> suggest(String prefix, int limit) {
+        String normalized = prefix == null ? ""
+                : prefix.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        if (normalized.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        int from = bound(normalized, false);
+        int to = bound(normalized, true);
+        // Keep the best matches in an array sorted from best to worst; a name with two
+        // matching words is only kept once.
+        int[] best = new int[Math.min(limit, to - from)];
+        int size = 0;
+        for (int entry = from; entry < to; entry++) {
+            int number = entryNumbers[entry];
+            if (size == best.length && !ranksBefore(number, best[size - 1])) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (int i = 0; i < size && !duplicate; i++) {
+                duplicate = best[i] == number;
+            }
+            if (duplicate) {
+                continue;
+            }
+            int position = size == best.length ? size - 1 : size++;
+            while (position > 0 && ranksBefore(number, best[position - 1])) {
+                best[position] = best[position - 1];
+                position--;
+            }
+            best[position] = number;
+        }
+        List<ConferenceSuggestion> suggestions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            suggestions.add(new ConferenceSuggestion(websafeKeys[best[i]], names[best[i]]));
+        }
+        return suggestions;
+    }
+
+    private boolean ranksBefore(int number, int other) {
+        if (seatsBooked[number] != seatsBooked[other]) {
+            return seatsBooked[number] > seatsBooked[other];
+        }
+        return number < other;
+    }
+
+    /**
+     * Returns the index in a compact, compressed form.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeLong(version);
+            out.writeInt(names.length);
+            for (int number = 0; number < names.length; number++) {
+                out.writeUTF(names[number]);
+                out.writeUTF(websafeKeys[number]);
+                out.writeInt(seatsBooked[number]);
+            }
+            out.writeInt(entryNumbers.length);
+            for (int entry = 0; entry < entryNumbers.length; entry++) {
+                out.writeInt(entryNumbers[entry]);
+                out.writeShort(entryOffsets[entry]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write the name index", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an index written by {@link #toBytes()}.
+     *
+     * @param bytes the index.
+     * @return the index.
+     * @throws IOException if the bytes are not an index.
+     */
+    public static ConferenceNameIndex fromBytes(byte[] bytes) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(bytes)))) {
+            long version = in.readLong();
+            int count = in.readInt();
+            String[] names = new String[count];
+            String[] websafeKeys = new String[count];
+            int[] seatsBooked = new int[count];
+            for (int number = 0; number < count; number++) {
+                names[number] = in.readUTF();
+                websafeKeys[number] = in.readUTF();
+                seatsBooked[number] = in.readInt();
+            }
+            int entries = in.readInt();
+            int[] entryNumbers = new int[entries];
+            int[] entryOffsets = new int[entries];
+            for (int entry = 0; entry < entries; entry++) {
+                entryNumbers[entry] = in.readInt();
+                entryOffsets[entry] = in.readUnsignedShort();
+            }
+            return new ConferenceNameIndex(version, null, names, websafeKeys, seatsBooked,
+                    lowerCase(names), entryNumbers, entryOffsets);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.FieldType;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Caches pages of queryConferences results in memcache.
+ *
+ * A page is stored as the list of web-safe conference keys and the next page token, so a hit
+ * costs one batch get of the conferences instead of a datastore query. Entries are keyed by a
+ * normalized form of the query, so the order in which the filters are sent does not matter.
+ * Every key also contains a generation number, which is bumped by {@link #invalidate()}
+ * whenever a Conference is written; entries of older generations are never read again and
+ * simply expire.
+ */
+public class ConferenceQueryCache {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceQueryCache.class.getName());
+
+    private static final String NAMESPACE = "ConferenceQueryCache";
+
+    private static final String GENERATION_KEY = "generation";
+
+    /**
+     * How long a cached page lives, in seconds.
+     */
+    private static final int EXPIRATION_SECONDS = 60;
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A cached page of conference keys.
+     */
+    public static class CachedPage implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> websafeKeys;
+
+        private final String nextPageToken;
+
+        public CachedPage(List<String> websafeKeys, String nextPageToken) {
+            this.websafeKeys = new ArrayList<>(websafeKeys);
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<String> getWebsafeKeys() {
+            return Collections.unmodifiableList(websafeKeys);
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+    }
+
+    /**
+     * Returns the current generation. If memcache has lost it, the generation restarts from the
+     * current time, so that it doesn't come back to a number used before.
+     */
+    private static long currentGeneration() {
+        MemcacheService memcache = memcache();
+        Object generation = memcache.get(GENERATION_KEY);
+        if (generation == null) {
+            memcache.put(GENERATION_KEY, System.currentTimeMillis(), null,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            generation = memcache.get(GENERATION_KEY);
+        }
+        return generation == null ? 0L : ((Number) generation).longValue();
+    }
+
+    /**
+     * Returns the normalized form of the query: the filters sorted by field, operator and value,
+     * with integer values in canonical form and the values of IN filters sorted, followed by the page size and the cursor.
+     *
+     * @param conferenceQueryForm the query.
+     * @return a String that is the same for equivalent queries.
+     */
+    public static String normalize(ConferenceQueryForm conferenceQueryForm) {
+        List<String> filters = new ArrayList<>();
+        for (Filter filter : conferenceQueryForm.getFilters()) {
+            List<String> values = new ArrayList<>();
+            for (String value : filter.getValue() == null
+                    ? Collections.singletonList("") : filter.getValues()) {
+                value = value == null ? "" : value.trim();
+                if (filter.getField().getFieldType() == FieldType.INTEGER) {
+                    try {
+                        value = String.valueOf(Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        // Leave it as it is, the query fails on it.
+                    }
+                }
+                values.add(value);
+            }
+            // The values of an IN filter can be in any order.
+            Collections.sort(values);
+            String value = Joiner.on(',').join(values);
+            filters.add(filter.getField().name() + " " + filter.getOperator().name() + " " + value);
+        }
+        Collections.sort(filters);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String filter : filters) {
+            stringBuilder.append(filter).append('\n');
+        }
+        stringBuilder.append("pageSize ").append(conferenceQueryForm.getPageSize()).append('\n');
+        if (conferenceQueryForm.getCursor() != null) {
+            stringBuilder.append("cursor ").append(conferenceQueryForm.getCursor());
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the memcache key for the query in the current generation. The same key must be
+     * used to look the page up and to store it, so that a page computed before an invalidation
+     * is never stored under the new generation.
+     *
+     * @param conferenceQueryForm the query.
+     * @return the memcache key.
+     */
+    public static String cacheKey(ConferenceQueryForm conferenceQueryForm) {
+        return currentGeneration() + "\n" + normalize(conferenceQueryForm);
+    }
+
+    /**
+     * Looks up a cached page and counts the hit or miss.
+     *
+     * @param cacheKey the key returned by {@link #cacheKey(ConferenceQueryForm)}.
+     * @return the cached page, or null on a miss.
+     */
+    public static CachedPage get(String cacheKey) {
+        CachedPage cachedPage = (CachedPage) memcache().get(cacheKey);
+        if (cachedPage == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cachedPage;
+    }
+
+    /**
+     * Stores a page.
+     *
+     * @param cacheKey the key returned by {@link #cacheKey(ConferenceQueryForm)}.
+     * @param cachedPage the page.
+     */
+    public static void put(String cacheKey, CachedPage cachedPage) {
+        memcache().put(cacheKey, cachedPage, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Invalidates every cached page. Call this after writing a Conference.
+     */
+    public static void invalidate() {
+        MemcacheService memcache = memcache();
+        if (memcache.increment(GENERATION_KEY, 1L) == null) {
+            // The generation has been evicted, so is every entry of it; start a new one.
+            memcache.put(GENERATION_KEY, System.currentTimeMillis(), null,
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+        LOG.fine("Invalidated the conference query cache");
+    }
+
+    /**
+     * Returns the number of lookups that found a page on this instance.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that didn't find a page on this instance.
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,765 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Ordering;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.FieldType;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plans conference queries whose inequality filters are on more than one field.
+ *
+ * The datastore only allows inequality filters on one property per query. The planner sends
+ * the inequality filters of the most selective field to the datastore, together with all the
+ * equality filters, and leaves the other inequality filters to be applied in memory to the
+ * results as they are streamed.
+ *
+ * The selectivity of the filters on an integer field is estimated from the range of its
+ * values, assuming they are spread evenly: the months are always 1 to 12, and the range of
+ * maxAttendees is read with two projection queries and kept on the instance for a while. The
+ * selectivity of inequality filters on string fields is a fixed guess.
+ *
+ * An IN filter is run as one datastore query per value, or per combination of values when
+ * there are several IN filters. The results of the queries are merged in the order of the plan.
+ *
+ * Not-equal filters are rewritten unless conference.query.rewriteNotEqual is false, instead of
+ * leaving them to the datastore, which splits them into two queries internally, uses up the
+ * inequality filter of the query and doesn't support cursors. A not-equal filter on the month,
+ * when another field has inequality filters, becomes an IN filter of the months that match all
+ * the month filters, so the inequality filters of the other field can be applied by the
+ * datastore. A not-equal filter on a string field is applied in memory when it's estimated to
+ * keep most of the results. Other not-equal filters applied by the datastore are run as a pair
+ * of less-than and greater-than queries, merged by the planner.
+ */
+public class ConferenceQueryPlanner {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceQueryPlanner.class.getName());
+
+    /**
+     * The estimated fraction of conferences matching a range filter on a string field.
+     */
+    private static final double STRING_RANGE_SELECTIVITY = 1.0 / 3;
+
+    /**
+     * The estimated fraction of conferences matching a not-equal filter on a string field.
+     */
+    private static final double STRING_NOT_EQUAL_SELECTIVITY = 0.9;
+
+    /**
+     * How long the range of values of a field is kept, in milliseconds.
+     */
+    private static final long RANGE_EXPIRATION_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * The maximum number of datastore queries that the IN filters of one query can expand to,
+     * the same as the datastore's own limit.
+     */
+    public static final int MAX_QUERIES = 30;
+
+    /**
+     * The system property that turns the rewriting of not-equal filters off when false.
+     */
+    public static final String REWRITE_NOT_EQUAL_PROPERTY = "conference.query.rewriteNotEqual";
+
+    /**
+     * The smallest estimated selectivity of the not-equal filters on a string field for them to
+     * be applied in memory, so that at most half the conferences read are dropped.
+     */
+    private static final double MIN_IN_MEMORY_NOT_EQUAL_SELECTIVITY = 0.5;
+
+    /**
+     * The ranges of values of the integer fields, with the time they were read.
+     */
+    private static final ConcurrentMap<Field, long[]> ranges = new ConcurrentHashMap<>();
+
+    /**
+     * How a query is run: which filters the datastore applies, and which are left to be
+     * applied in memory by {@link #apply(Conference)}.
+     */
+    public static class Plan implements Predicate<Conference> {
+        private final Field pushedDownField;
+
+        private final List<Filter> datastoreFilters;
+
+        private final List<Filter> residualFilters;
+
+        private final Map<Field, Double> selectivities;
+
+        /**
+         * Whether not-equal filters are run as a pair of range queries.
+         */
+        private final boolean splitNotEqual;
+
+        private Plan(Field pushedDownField, List<Filter> datastoreFilters,
+                List<Filter> residualFilters, Map<Field, Double> selectivities,
+                boolean splitNotEqual) {
+            this.pushedDownField = pushedDownField;
+            this.datastoreFilters = datastoreFilters;
+            this.residualFilters = residualFilters;
+            this.selectivities = selectivities;
+            this.splitNotEqual = splitNotEqual;
+        }
+
+        /**
+         * Returns the field of the inequality filters applied by the datastore, or null if
+         * there are no inequality filters.
+         */
+        public Field getPushedDownField() {
+            return pushedDownField;
+        }
+
+        public List<Filter> getDatastoreFilters() {
+            return Collections.unmodifiableList(datastoreFilters);
+        }
+
+        /**
+         * Returns the inequality filters applied in memory.
+         */
+        public List<Filter> getResidualFilters() {
+            return Collections.unmodifiableList(residualFilters);
+        }
+
+        public boolean hasResidualFilters() {
+            return !residualFilters.isEmpty();
+        }
+
+        /**
+         * Returns the filters that replace the filter in the queries of the plan, one per query:
+         * an equality filter per value of an IN filter, and a less-than and a greater-than
+         * filter for a not-equal filter when not-equal filters are split.
+         */
+        private List<Filter> alternatives(Filter filter) {
+            List<Filter> alternatives = new ArrayList<>();
+            if (filter.getOperator() == Operator.IN) {
+                for (String value : filter.getValues()) {
+                    alternatives.add(new Filter(filter.getField(), Operator.EQ, value));
+                }
+            } else if (filter.getOperator() == Operator.NE && splitNotEqual) {
+                alternatives.add(new Filter(filter.getField(), Operator.LT, filter.getValue()));
+                alternatives.add(new Filter(filter.getField(), Operator.GT, filter.getValue()));
+            } else {
+                alternatives.add(filter);
+            }
+            return alternatives;
+        }
+
+        /**
+         * Returns the number of datastore queries of the plan.
+         */
+        public int getQueryCount() {
+            int queryCount = 1;
+            for (Filter filter : datastoreFilters) {
+                queryCount *= alternatives(filter).size();
+            }
+            return queryCount;
+        }
+
+        /**
+         * Returns true if the plan runs several datastore queries, whose results need to be
+         * merged.
+         */
+        public boolean isUnion() {
+            return getQueryCount() > 1;
+        }
+
+        /**
+         * Returns an Objectify query applying the datastore filters, ordered by the pushed-down
+         * field first, if any, and then by name.
+         *
+         * @return an Objectify Query.
+         * @throws IllegalStateException when the plan is a union; use {@link #getQueries()}.
+         */
+        public Query<Conference> getQuery() {
+            if (isUnion()) {
+                throw new IllegalStateException("The plan has several queries.");
+            }
+            Query<Conference> query = ofy().load().type(Conference.class);
+            if (pushedDownField != null) {
+                query = query.order(pushedDownField.getFieldName());
+            }
+            query = query.order("name");
+            for (Filter filter : expand().get(0)) {
+                query = query.filter(filter.getField().getFieldName() + " "
+                        + filter.getOperator().getQueryOperator(), propertyValue(filter));
+            }
+            return query;
+        }
+
+        /**
+         * Returns the filters of every query of the plan.
+         */
+        private List<List<Filter>> expand() {
+            List<List<Filter>> expanded = new ArrayList<>();
+            expanded.add(new ArrayList<Filter>());
+            for (Filter filter : datastoreFilters) {
+                List<List<Filter>> next = new ArrayList<>();
+                for (List<Filter> filters : expanded) {
+                    for (Filter alternative : alternatives(filter)) {
+                        List<Filter> nextFilters = new ArrayList<>(filters);
+                        nextFilters.add(alternative);
+                        next.add(nextFilters);
+                    }
+                }
+                expanded = next;
+            }
+            return expanded;
+        }
+
+        /**
+         * Returns the low-level datastore queries to run for the plan: one for every
+         * combination of the values of the IN filters, each with equality filters in place of
+         * the IN filters, and of the ranges of the split not-equal filters. The results of the
+         * queries need to be merged in {@link #getOrder()} and de-duplicated.
+         *
+         * The queries are low-level ones because a cursor can be read after every result of a
+         * low-level query without a datastore call, unlike an Objectify query.
+         *
+         * @return the queries of Conference entities, in the order of the values of the IN
+         *         filters.
+         */
+        public List<com.google.appengine.api.datastore.Query> getQueries() {
+            List<com.google.appengine.api.datastore.Query> queries = new ArrayList<>();
+            for (List<Filter> filters : expand()) {
+                queries.add(setFiltersAndSorts(
+                        new com.google.appengine.api.datastore.Query(
+                                Key.getKind(Conference.class)), filters));
+            }
+            return queries;
+        }
+
+        /**
+         * Returns the order of the results of the queries: by the pushed-down field, if any,
+         * then by name, then by key, as the datastore orders them. A list field is ordered by
+         * its smallest value that matches the pushed-down filters.
+         *
+         * @return the order of Conference entities.
+         */
+        public Ordering<Entity> getOrder() {
+            final List<Filter> pushedDownFilters = new ArrayList<>();
+            for (Filter filter : datastoreFilters) {
+                if (filter.getField() == pushedDownField
+                        && filter.getOperator().isInequalityFilter()) {
+                    pushedDownFilters.add(filter);
+                }
+            }
+            return new Ordering<Entity>() {
+                @Override
+                @SuppressWarnings({"rawtypes", "unchecked"})
+                public int compare(Entity left, Entity right) {
+                    if (pushedDownField != null) {
+                        int comparison = Ordering.natural().nullsFirst().compare(
+                                (Comparable) sortValue(values(left, pushedDownField),
+                                        pushedDownFilters),
+                                (Comparable) sortValue(values(right, pushedDownField),
+                                        pushedDownFilters));
+                        if (comparison != 0) {
+                            return comparison;
+                        }
+                    }
+                    int comparison = Ordering.natural().nullsFirst()
+                            .compare((String) left.getProperty("name"),
+                                    (String) right.getProperty("name"));
+                    if (comparison != 0) {
+                        return comparison;
+                    }
+                    return left.getKey().compareTo(right.getKey());
+                }
+            };
+        }
+
+        /**
+         * Returns the values of the fields that have an equality filter, by property name. These
+         * fields can't be projected, but have the same value in every result.
+         *
+         * @return the values of the fields with an equality filter.
+         */
+        public Map<String, Object> getEqualityValues() {
+            Map<String, Object> values = new HashMap<>();
+            for (Filter filter : datastoreFilters) {
+                if (filter.getOperator() == Operator.EQ) {
+                    values.put(filter.getField().getFieldName(), propertyValue(filter));
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Returns a low-level projection query for the ConferenceSummary of the conferences,
+         * with the same filters and sort orders as {@link #getQuery()}.
+         *
+         * @return a datastore Query.
+         */
+        public com.google.appengine.api.datastore.Query getSummaryQuery() {
+            return setFiltersAndSorts(
+                    ConferenceSummary.newProjectionQuery(getEqualityValues().keySet()),
+                    datastoreFilters);
+        }
+
+        private com.google.appengine.api.datastore.Query setFiltersAndSorts(
+                com.google.appengine.api.datastore.Query query, List<Filter> filters) {
+            if (pushedDownField != null) {
+                query.addSort(pushedDownField.getFieldName());
+            }
+            query.addSort("name");
+            List<com.google.appengine.api.datastore.Query.Filter> predicates = new ArrayList<>();
+            for (Filter filter : filters) {
+                Object value = propertyValue(filter);
+                if (filter.getOperator() == Operator.IN) {
+                    List<Object> values = new ArrayList<>();
+                    for (String inValue : filter.getValues()) {
+                        values.add(propertyValue(filter.getField(), inValue));
+                    }
+                    value = values;
+                }
+                predicates.add(new FilterPredicate(filter.getField().getFieldName(),
+                        filter.getOperator().getFilterOperator(), value));
+            }
+            if (predicates.size() == 1) {
+                query.setFilter(predicates.get(0));
+            } else if (predicates.size() > 1) {
+                query.setFilter(CompositeFilterOperator.and(predicates));
+            }
+            return query;
+        }
+
+        /**
+         * Returns true if the values of the fields of a conference match the residual filters.
+         *
+         * Like the datastore, a list field matches the filters on it when one of its values
+         * matches all of them.
+         */
+        private boolean matchesResidualFilters(Function<Field, Collection<?>> values) {
+            Map<Field, List<Filter>> filtersByField = new EnumMap<>(Field.class);
+            for (Filter filter : residualFilters) {
+                if (!filtersByField.containsKey(filter.getField())) {
+                    filtersByField.put(filter.getField(), new ArrayList<Filter>());
+                }
+                filtersByField.get(filter.getField()).add(filter);
+            }
+            for (Map.Entry<Field, List<Filter>> entry : filtersByField.entrySet()) {
+                if (!anyValueMatches(values.apply(entry.getKey()), entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the conference matches the residual filters.
+         */
+        @Override
+        public boolean apply(final Conference conference) {
+            return matchesResidualFilters(new Function<Field, Collection<?>>() {
+                @Override
+                public Collection<?> apply(Field field) {
+                    return values(conference, field);
+                }
+            });
+        }
+
+        /**
+         * Returns a predicate that is true for the Conference entities that match the residual
+         * filters.
+         *
+         * @return the residual filters as a predicate of entities.
+         */
+        public Predicate<Entity> getEntityPredicate() {
+            return new Predicate<Entity>() {
+                @Override
+                public boolean apply(final Entity entity) {
+                    return matchesResidualFilters(new Function<Field, Collection<?>>() {
+                        @Override
+                        public Collection<?> apply(Field field) {
+                            return values(entity, field);
+                        }
+                    });
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            if (pushedDownField == null) {
+                return "no inequality filters; datastore filters " + describe(datastoreFilters);
+            }
+            StringBuilder stringBuilder = new StringBuilder("pushed down ")
+                    .append(pushedDownField.getFieldName());
+            if (selectivities.containsKey(pushedDownField)) {
+                stringBuilder.append(String.format(" (estimated selectivity %.3f)",
+                        selectivities.get(pushedDownField)));
+            }
+            stringBuilder.append("; datastore filters ").append(describe(datastoreFilters));
+            if (!residualFilters.isEmpty()) {
+                stringBuilder.append("; in memory ").append(describe(residualFilters));
+                for (Map.Entry<Field, Double> entry : selectivities.entrySet()) {
+                    if (entry.getKey() != pushedDownField) {
+                        stringBuilder.append(String.format(" %s %.3f",
+                                entry.getKey().getFieldName(), entry.getValue()));
+                    }
+                }
+            }
+            return stringBuilder.toString();
+        }
+    }
+
+    private static String describe(List<Filter> filters) {
+        List<String> descriptions = new ArrayList<>(filters.size());
+        for (Filter filter : filters) {
+            descriptions.add(filter.getField().getFieldName() + " "
+                    + filter.getOperator().getQueryOperator() + " " + filter.getValue());
+        }
+        return descriptions.toString();
+    }
+
+    /**
+     * Returns the value of the filter in the type of the datastore property.
+     */
+    private static Object propertyValue(Filter filter) {
+        return propertyValue(filter.getField(), filter.getValue());
+    }
+
+    static Object propertyValue(Field field, String value) {
+        return field.getFieldType() == FieldType.INTEGER ? (Object) Long.parseLong(value) : value;
+    }
+
+    /**
+     * Returns the smallest of the values that matches the filters.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Object sortValue(Collection<?> values, List<Filter> filters) {
+        Comparable smallest = null;
+        for (Object value : values) {
+            if (anyValueMatches(Collections.singletonList(value), filters)
+                    && (smallest == null || smallest.compareTo(value) > 0)) {
+                smallest = (Comparable) value;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * Returns the values of a field of the conference; a list for topics, one value otherwise.
+     */
+    static Collection<?> values(Conference conference, Field field) {
+        switch (field) {
+            case CITY:
+                return Collections.singletonList(conference.getCity());
+            case TOPIC:
+                List<String> topics = conference.getTopics();
+                return topics == null ? Collections.emptyList() : topics;
+            case MONTH:
+                return Collections.singletonList((long) conference.getMonth());
+            case MAX_ATTENDEES:
+                return Collections.singletonList((long) conference.getMaxAttendees());
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    /**
+     * Returns the values of a field of a Conference entity; a list for topics, one value
+     * otherwise.
+     */
+    private static Collection<?> values(Entity entity, Field field) {
+        Object value = entity.getProperty(field.getFieldName());
+        return value instanceof Collection ? (Collection<?>) value
+                : Collections.singletonList(value);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static boolean anyValueMatches(Collection<?> values, List<Filter> filters) {
+        for (Object value : values) {
+            boolean matches = value != null;
+            for (Filter filter : filters) {
+                if (!matches) {
+                    break;
+                }
+                int comparison = ((Comparable) value).compareTo(propertyValue(filter));
+                switch (filter.getOperator()) {
+                    case EQ:
+                        matches = comparison == 0;
+                        break;
+                    case LT:
+                        matches = comparison < 0;
+                        break;
+                    case GT:
+                        matches = comparison > 0;
+                        break;
+                    case LTEQ:
+                        matches = comparison <= 0;
+                        break;
+                    case GTEQ:
+                        matches = comparison >= 0;
+                        break;
+                    case NE:
+                        matches = comparison != 0;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Can't apply " + filter.getOperator() + " in memory");
+                }
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the smallest and largest values of an integer field, or null when there are no
+     * conferences.
+     */
+    private static long[] range(Field field) {
+        if (field == Field.MONTH) {
+            return new long[] {1, 12};
+        }
+        long[] range = ranges.get(field);
+        long now = System.currentTimeMillis();
+        if (range == null || now - range[2] > RANGE_EXPIRATION_MILLIS) {
+            Long min = extremeValue(field, SortDirection.ASCENDING);
+            Long max = extremeValue(field, SortDirection.DESCENDING);
+            if (min == null || max == null) {
+                return null;
+            }
+            range = new long[] {min, max, now};
+            ranges.put(field, range);
+        }
+        return range;
+    }
+
+    private static Long extremeValue(Field field, SortDirection direction) {
+        com.google.appengine.api.datastore.Query query =
+                new com.google.appengine.api.datastore.Query(Key.getKind(Conference.class))
+                        .addProjection(new PropertyProjection(field.getFieldName(), Long.class))
+                        .addSort(field.getFieldName(), direction);
+        List<Entity> entities = DatastoreServiceFactory.getDatastoreService().prepare(query)
+                .asList(FetchOptions.Builder.withLimit(1));
+        return entities.isEmpty() ? null : (Long) entities.get(0).getProperty(field.getFieldName());
+    }
+
+    /**
+     * Estimates the fraction of conferences matching all the given inequality filters on one
+     * field.
+     */
+    static double selectivity(Field field, List<Filter> filters) {
+        if (field.getFieldType() == FieldType.STRING) {
+            double selectivity = 1;
+            for (Filter filter : filters) {
+                selectivity *= filter.getOperator() == Operator.NE
+                        ? STRING_NOT_EQUAL_SELECTIVITY : STRING_RANGE_SELECTIVITY;
+            }
+            return selectivity;
+        }
+        long[] range = range(field);
+        if (range == null) {
+            return STRING_RANGE_SELECTIVITY;
+        }
+        double values = range[1] - range[0] + 1;
+        double lower = range[0];
+        double upper = range[1];
+        double notEqual = 1;
+        for (Filter filter : filters) {
+            long value = Long.parseLong(filter.getValue());
+            switch (filter.getOperator()) {
+                case LT:
+                    upper = Math.min(upper, value - 1);
+                    break;
+                case LTEQ:
+                    upper = Math.min(upper, value);
+                    break;
+                case GT:
+                    lower = Math.max(lower, value + 1);
+                    break;
+                case GTEQ:
+                    lower = Math.max(lower, value);
+                    break;
+                case NE:
+                    notEqual *= 1 - 1 / values;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return Math.max(0, upper - lower + 1) / values * notEqual;
+    }
+
+    /**
+     * Plans a query with the given filters.
+     *
+     * Not-equal filters are rewritten first. When the inequality filters are then on one field
+     * only, they are all applied by the datastore and no statistics are read. Otherwise the
+     * inequality filters of the field with the lowest estimated selectivity are applied by the
+     * datastore, and the others in memory.
+     *
+     * @param filters the filters of the query.
+     * @return the plan.
+     * @throws IllegalArgumentException when the IN and not-equal filters expand to more than
+     *             {@link #MAX_QUERIES} queries.
+     */
+    public static Plan plan(List<Filter> filters) {
+        boolean rewriteNotEqual =
+                !"false".equals(System.getProperty(REWRITE_NOT_EQUAL_PROPERTY));
+        Set<Field> inMemoryFields = EnumSet.noneOf(Field.class);
+        if (rewriteNotEqual) {
+            inMemoryFields = inMemoryNotEqualFields(filters);
+            filters = enumerateMonths(filters, inMemoryFields);
+        }
+        Map<Field, List<Filter>> inequalities = new EnumMap<>(Field.class);
+        Field firstInequalityField = null;
+        for (Filter filter : filters) {
+            if (filter.getOperator().isInequalityFilter()
+                    && !inMemoryFields.contains(filter.getField())) {
+                if (firstInequalityField == null) {
+                    firstInequalityField = filter.getField();
+                }
+                if (!inequalities.containsKey(filter.getField())) {
+                    inequalities.put(filter.getField(), new ArrayList<Filter>());
+                }
+                inequalities.get(filter.getField()).add(filter);
+            }
+        }
+        Field pushedDownField = firstInequalityField;
+        Map<Field, Double> selectivities = new EnumMap<>(Field.class);
+        if (inequalities.size() > 1) {
+            for (Map.Entry<Field, List<Filter>> entry : inequalities.entrySet()) {
+                selectivities.put(entry.getKey(), selectivity(entry.getKey(), entry.getValue()));
+            }
+            for (Map.Entry<Field, Double> entry : selectivities.entrySet()) {
+                if (entry.getValue() < selectivities.get(pushedDownField)) {
+                    pushedDownField = entry.getKey();
+                }
+            }
+        }
+        List<Filter> datastoreFilters = new ArrayList<>();
+        List<Filter> residualFilters = new ArrayList<>();
+        for (Filter filter : filters) {
+            if (filter.getOperator().isInequalityFilter()
+                    && filter.getField() != pushedDownField) {
+                residualFilters.add(filter);
+            } else {
+                datastoreFilters.add(filter);
+            }
+        }
+        Plan plan = new Plan(pushedDownField, datastoreFilters, residualFilters, selectivities,
+                rewriteNotEqual);
+        if (plan.getQueryCount() > MAX_QUERIES) {
+            throw new IllegalArgumentException("The filters expand to " + plan.getQueryCount()
+                    + " queries, more than " + MAX_QUERIES);
+        }
+        // Every query is planned, so the plan is only described when it is logged.
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Conference query plan: " + plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Returns the string fields whose inequality filters are all not-equal filters that keep
+     * most of the conferences, which are cheaper to apply in memory than in the datastore.
+     */
+    private static Set<Field> inMemoryNotEqualFields(List<Filter> filters) {
+        Map<Field, List<Filter>> notEqualFilters = new EnumMap<>(Field.class);
+        Set<Field> rangeFields = EnumSet.noneOf(Field.class);
+        for (Filter filter : filters) {
+            if (filter.getField().getFieldType() != FieldType.STRING
+                    || !filter.getOperator().isInequalityFilter()) {
+                continue;
+            }
+            if (filter.getOperator() != Operator.NE) {
+                rangeFields.add(filter.getField());
+            } else {
+                if (!notEqualFilters.containsKey(filter.getField())) {
+                    notEqualFilters.put(filter.getField(), new ArrayList<Filter>());
+                }
+                notEqualFilters.get(filter.getField()).add(filter);
+            }
+        }
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        for (Map.Entry<Field, List<Filter>> entry : notEqualFilters.entrySet()) {
+            if (!rangeFields.contains(entry.getKey()) && selectivity(entry.getKey(),
+                    entry.getValue()) >= MIN_IN_MEMORY_NOT_EQUAL_SELECTIVITY) {
+                fields.add(entry.getKey());
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Replaces the inequality filters on the month by an IN filter of the months that match
+     * them, when one of them is a not-equal filter and another field has inequality filters
+     * that the datastore could apply instead. The filters are returned unchanged when no month
+     * matches, or when the IN filter would expand the query to more than {@link #MAX_QUERIES}
+     * queries.
+     */
+    private static List<Filter> enumerateMonths(List<Filter> filters, Set<Field> inMemoryFields) {
+        List<Filter> monthFilters = new ArrayList<>();
+        boolean notEqual = false;
+        boolean otherInequalities = false;
+        int queries = 1;
+        for (Filter filter : filters) {
+            if (filter.getField() == Field.MONTH) {
+                if (!filter.getOperator().isInequalityFilter()) {
+                    // The month is fixed already.
+                    return filters;
+                }
+                monthFilters.add(filter);
+                notEqual |= filter.getOperator() == Operator.NE;
+            } else if (filter.getOperator().isInequalityFilter()) {
+                otherInequalities |= !inMemoryFields.contains(filter.getField());
+            } else {
+                queries *= filter.getValues().size();
+            }
+        }
+        if (!notEqual || !otherInequalities) {
+            return filters;
+        }
+        List<String> months = new ArrayList<>();
+        for (long month = 1; month <= 12; month++) {
+            if (anyValueMatches(Collections.singletonList(month), monthFilters)) {
+                months.add(String.valueOf(month));
+            }
+        }
+        if (months.isEmpty() || queries * months.size() > MAX_QUERIES) {
+            return filters;
+        }
+        List<Filter> rewritten = new ArrayList<>();
+        for (Filter filter : filters) {
+            if (filter.getField() != Field.MONTH) {
+                rewritten.add(filter);
+            }
+        }
+        rewritten.add(new Filter(Field.MONTH, Operator.IN, Joiner.on(',').join(months)));
+        return rewritten;
+    }
+}
@@ -0,0 +1,636 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devrel.training.conference.domain.Conference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An inverted index of the words in the name, description and topics of the conferences of a
+ * catalog snapshot, for keyword search.
+ *
+ * Text is split into lowercase words of letters and digits, common English words are dropped
+ * and the rest are reduced to a stem by {@link #stem(String)}, so that "Kubernetes" matches
+ * "kubernetes" and "workshops" matches "workshop". Every stem has a posting list: the numbers
+ * of the conferences that contain it, ascending, next to how often they contain it, with a
+ * word in the name counting {@link #NAME_WEIGHT} times and in a topic {@link #TOPIC_WEIGHT}
+ * times. A search returns the conferences that contain every word of the query, found by
+ * intersecting the posting lists from the shortest one, ranked by BM25.
+ *
+ * The analyzed words of a conference are kept, so an index built from the previous one only
+ * analyzes the conferences that have changed. When the conferences have kept their numbers,
+ * {@link #update(ConferenceSearchIndex, Conference[], Set)} goes further: it returns the
+ * previous index itself when the words of the changed conferences are the same, as after a
+ * registration, and otherwise copies only the posting lists of the words they had or have.
+ * The copied lists are kept next to the shared ones of the index they were patched from, and
+ * merged into a new map of all the lists once there are more than
+ * {@link #MAX_PATCHED_POSTINGS_FRACTION} of them.
+ */
+public class ConferenceSearchIndex {
+
+    private static final int NAME_WEIGHT = 3;
+
+    private static final int TOPIC_WEIGHT = 2;
+
+    private static final int DESCRIPTION_WEIGHT = 1;
+
+    /**
+     * The BM25 parameters: how quickly more occurrences of a word stop raising the score, and
+     * how much a long text is penalized.
+     */
+    private static final double K1 = 1.2;
+
+    private static final double B = 0.75;
+
+    /**
+     * The fraction of the posting lists that an updated index copies before it copies them
+     * all into one map again.
+     */
+    private static final double MAX_PATCHED_POSTINGS_FRACTION = 0.125;
+
+    private static final Set<String> STOP_WORDS = ImmutableSet.of("a", "an", "and", "are", "as",
+            "at", "be", "by", "for", "from", "in", "is", "it", "of", "on", "or", "the", "to",
+            "with");
+
+    /**
+     * The analyzed words of one conference.
+     */
+    static class Document {
+        private final String[] terms;
+
+        private final int[] frequencies;
+
+        private final int length;
+
+        private Document(Map<String, Integer> frequencies) {
+            this.terms = new String[frequencies.size()];
+            this.frequencies = new int[frequencies.size()];
+            int i = 0;
+            int length = 0;
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                terms[i] = entry.getKey();
+                this.frequencies[i] = entry.getValue();
+                length += entry.getValue();
+                i++;
+            }
+            this.length = length;
+        }
+
+        boolean hasSameTerms(Document other) {
+            return Arrays.equals(terms, other.terms)
+                    && Arrays.equals(frequencies, other.frequencies);
+        }
+    }
+
+    /**
+     * The numbers of the conferences that contain a stem, ascending, and its weighted
+     * frequency in each of them.
+     */
+    private static class Postings {
+        private int[] numbers = new int[4];
+
+        private int[] frequencies = new int[4];
+
+        private int size;
+
+        void add(int number, int frequency) {
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            numbers[size] = number;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        Postings copy() {
+            Postings copy = new Postings();
+            copy.numbers = Arrays.copyOf(numbers, size + 1);
+            copy.frequencies = Arrays.copyOf(frequencies, size + 1);
+            copy.size = size;
+            return copy;
+        }
+
+        /**
+         * Sets the frequency of a number, inserting the number in order if it isn't there.
+         */
+        void put(int number, int frequency) {
+            int position = advance(0, number);
+            if (position < size && numbers[position] == number) {
+                frequencies[position] = frequency;
+                return;
+            }
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2 + 1);
+                frequencies = Arrays.copyOf(frequencies, size * 2 + 1);
+            }
+            System.arraycopy(numbers, position, numbers, position + 1, size - position);
+            System.arraycopy(frequencies, position, frequencies, position + 1, size - position);
+            numbers[position] = number;
+            frequencies[position] = frequency;
+            size++;
+        }
+
+        void remove(int number) {
+            int position = advance(0, number);
+            if (position < size && numbers[position] == number) {
+                System.arraycopy(numbers, position + 1, numbers, position, size - position - 1);
+                System.arraycopy(frequencies, position + 1, frequencies, position,
+                        size - position - 1);
+                size--;
+            }
+        }
+
+        /**
+         * Returns the position of the first number that is at least the given one, searching
+         * from the given position with steps that double, then by bisection.
+         */
+        int advance(int from, int number) {
+            int step = 1;
+            int low = from;
+            int high = from;
+            while (high < size && numbers[high] < number) {
+                low = high + 1;
+                high += step;
+                step *= 2;
+            }
+            high = Math.min(high, size);
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (numbers[middle] < number) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static class Result {
+        private final int[] numbers;
+
+        private final boolean more;
+
+        private Result(int[] numbers, boolean more) {
+            this.numbers = numbers;
+            this.more = more;
+        }
+
+        /**
+         * Returns the numbers of the conferences on the page, best match first.
+         */
+        public int[] getNumbers() {
+            return numbers.clone();
+        }
+
+        /**
+         * Returns true if more conferences match after this page.
+         */
+        public boolean hasMore() {
+            return more;
+        }
+    }
+
+    /**
+     * The web-safe keys of the conferences, by number; an updated index shares them with the
+     * snapshot it was updated for.
+     */
+    private final String[] websafeKeys;
+
+    private final Document[] documents;
+
+    private final Map<String, Postings> postings;
+
+    /**
+     * The posting lists copied and patched since {@link #postings} was built, which take
+     * precedence over it; a list without numbers is one of a word no conference has anymore.
+     */
+    private final Map<String, Postings> patchedPostings;
+
+    private final int[] lengths;
+
+    private final long totalLength;
+
+    private final double averageLength;
+
+    /**
+     * Indexes the conferences.
+     *
+     * @param conferences the conferences, by number.
+     * @param websafeKeys the web-safe keys of the conferences, by number.
+     * @param previous the index of the previous snapshot, or null.
+     * @param changed the web-safe keys of the conferences that have changed since the previous
+     *            index; the others are not analyzed again.
+     */
+    public ConferenceSearchIndex(Conference[] conferences, String[] websafeKeys,
+            ConferenceSearchIndex previous, Set<String> changed) {
+        this.websafeKeys = websafeKeys;
+        Map<String, Document> previousDocuments = new HashMap<>();
+        if (previous != null) {
+            for (int number = 0; number < previous.documents.length; number++) {
+                if (!changed.contains(previous.websafeKeys[number])) {
+                    previousDocuments.put(previous.websafeKeys[number],
+                            previous.documents[number]);
+                }
+            }
+        }
+        documents = new Document[conferences.length];
+        postings = new HashMap<>();
+        patchedPostings = Collections.emptyMap();
+        lengths = new int[conferences.length];
+        long totalLength = 0;
+        for (int number = 0; number < conferences.length; number++) {
+            Document document = previousDocuments.get(websafeKeys[number]);
+            if (document == null) {
+                document = analyze(conferences[number]);
+            }
+            documents[number] = document;
+            lengths[number] = document.length;
+            totalLength += document.length;
+            for (int i = 0; i < document.terms.length; i++) {
+                Postings termPostings = postings.get(document.terms[i]);
+                if (termPostings == null) {
+                    termPostings = new Postings();
+                    postings.put(document.terms[i], termPostings);
+                }
+                termPostings.add(number, document.frequencies[i]);
+            }
+        }
+        this.totalLength = totalLength;
+        averageLength = conferences.length == 0 ? 0 : (double) totalLength / conferences.length;
+    }
+
+    private ConferenceSearchIndex(String[] websafeKeys, Document[] documents,
+            Map<String, Postings> postings, Map<String, Postings> patchedPostings, int[] lengths,
+            long totalLength) {
+        this.websafeKeys = websafeKeys;
+        this.documents = documents;
+        this.postings = postings;
+        this.patchedPostings = patchedPostings;
+        this.lengths = lengths;
+        this.totalLength = totalLength;
+        averageLength = lengths.length == 0 ? 0 : (double) totalLength / lengths.length;
+    }
+
+    /**
+     * Returns the index of conferences that have the same numbers as the ones of the previous
+     * index, some of them changed. Only the changed conferences are analyzed, and only the
+     * posting lists of the words they had or have are copied.
+     *
+     * @param previous the index of the conferences before the changes.
+     * @param conferences the conferences, by number.
+     * @param changed the numbers of the conferences that have changed.
+     * @return the previous index itself if the words of the changed conferences are the same.
+     */
+    public static ConferenceSearchIndex update(ConferenceSearchIndex previous,
+            Conference[] conferences, Set<Integer> changed) {
+        Map<Integer, Document> changedDocuments = new HashMap<>();
+        for (int number : changed) {
+            Document document = analyze(conferences[number]);
+            if (!document.hasSameTerms(previous.documents[number])) {
+                changedDocuments.put(number, document);
+            }
+        }
+        if (changedDocuments.isEmpty()) {
+            return previous;
+        }
+        Document[] documents = previous.documents.clone();
+        int[] lengths = previous.lengths.clone();
+        long totalLength = previous.totalLength;
+        Map<String, Postings> patchedPostings = new HashMap<>(previous.patchedPostings);
+        Set<Postings> copied =
+                Collections.newSetFromMap(new IdentityHashMap<Postings, Boolean>());
+        for (Map.Entry<Integer, Document> entry : changedDocuments.entrySet()) {
+            int number = entry.getKey();
+            Document document = entry.getValue();
+            Document replaced = documents[number];
+            for (String term : replaced.terms) {
+                previous.patchOnce(patchedPostings, term, copied).remove(number);
+            }
+            for (int i = 0; i < document.terms.length; i++) {
+                previous.patchOnce(patchedPostings, document.terms[i], copied)
+                        .put(number, document.frequencies[i]);
+            }
+            documents[number] = document;
+            lengths[number] = document.length;
+            totalLength += document.length - replaced.length;
+        }
+        Map<String, Postings> postings = previous.postings;
+        if (patchedPostings.size() > postings.size() * MAX_PATCHED_POSTINGS_FRACTION) {
+            postings = new HashMap<>(postings);
+            for (Map.Entry<String, Postings> entry : patchedPostings.entrySet()) {
+                if (entry.getValue().size == 0) {
+                    postings.remove(entry.getKey());
+                } else {
+                    postings.put(entry.getKey(), entry.getValue());
+                }
+            }
+            patchedPostings = Collections.emptyMap();
+        }
+        return new ConferenceSearchIndex(previous.websafeKeys, documents, postings,
+                patchedPostings, lengths, totalLength);
+    }
+
+    /**
+     * Returns the patched posting list of a word in an index being updated from this one,
+     * copying this index's list first unless it has already been copied.
+     */
+    private Postings patchOnce(Map<String, Postings> patchedPostings, String term,
+            Set<Postings> copied) {
+        Postings termPostings = patchedPostings.get(term);
+        if (termPostings != null && copied.contains(termPostings)) {
+            return termPostings;
+        }
+        if (termPostings == null) {
+            termPostings = postings.get(term);
+        }
+        termPostings = termPostings == null ? new Postings() : termPostings.copy();
+        copied.add(termPostings);
+        patchedPostings.put(term, termPostings);
+        return termPostings;
+    }
+
+    /**
+     * Returns whether the conferences of this index are numbered by the given web-safe keys,
+     * so that it can be updated with {@link #update(ConferenceSearchIndex, Conference[], Set)}.
+     */
+    boolean isNumberedBy(String[] websafeKeys) {
+        return this.websafeKeys == websafeKeys;
+    }
+
+    /**
+     * Returns the posting list of a stem, or null if no conference contains it.
+     */
+    private Postings postings(String term) {
+        Postings termPostings = patchedPostings.get(term);
+        if (termPostings == null) {
+            termPostings = postings.get(term);
+        }
+        return termPostings == null || termPostings.size == 0 ? null : termPostings;
+    }
+
+    private static Document analyze(Conference conference) {
+        Map<String, Integer> frequencies = new LinkedHashMap<>();
+        addTerms(frequencies, conference.getName(), NAME_WEIGHT);
+        addTerms(frequencies, conference.getDescription(), DESCRIPTION_WEIGHT);
+        List<String> topics = conference.getTopics();
+        if (topics != null) {
+            for (String topic : topics) {
+                addTerms(frequencies, topic, TOPIC_WEIGHT);
+            }
+        }
+        return new Document(frequencies);
+    }
+
+    private static void addTerms(Map<String, Integer> frequencies, String text, int weight) {
+        for (String term : terms(text)) {
+            Integer frequency = frequencies.get(term);
+            frequencies.put(term, frequency == null ? weight : frequency + weight);
+        }
+    }
+
+    /**
+     * Returns the stems of the words of the text, in order, without the stop words.
+     *
+     * @param text the text, or null.
+     * @return the stems.
+     */
+    public static List<String> terms(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        List<String> terms = new ArrayList<>();
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            boolean wordCharacter =
+                    i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                String word = lowerCase.substring(start, i);
+                if (!STOP_WORDS.contains(word)) {
+                    terms.add(stem(word));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Reduces a lowercase word to its stem by removing the common English inflections: plurals,
+     * "-ing", "-ed" and "-ly". Words of up to three letters are left as they are.
+     *
+     * @param word the word.
+     * @return the stem.
+     */
+    static String stem(String word) {
+        if (word.length() <= 3) {
+            return word;
+        }
+        if (word.endsWith("sses")) {
+            return word.substring(0, word.length() - 2);
+        }
+        if (word.endsWith("ies") && word.length() > 4) {
+            return word.substring(0, word.length() - 3) + "y";
+        }
+        if (word.endsWith("xes") || word.endsWith("ches") || word.endsWith("shes")) {
+            return word.substring(0, word.length() - 2);
+        }
+        if (word.endsWith("s") && !word.endsWith("ss") && !word.endsWith("us")
+                && !word.endsWith("is")) {
+            return word.substring(0, word.length() - 1);
+        }
+        for (String suffix : new String[] {"ing", "ed", "ly"}) {
+            if (word.endsWith(suffix) && word.length() - suffix.length() >= 3
+                    && hasVowel(word, word.length() - suffix.length())) {
+                String stem = word.substring(0, word.length() - suffix.length());
+                char last = stem.charAt(stem.length() - 1);
+                if (last == stem.charAt(stem.length() - 2) && "aeioulsz".indexOf(last) < 0) {
+                    // "running" -> "run"
+                    stem = stem.substring(0, stem.length() - 1);
+                }
+                return stem;
+            }
+        }
+        return word;
+    }
+
+    private static boolean hasVowel(String word, int end) {
+        for (int i = 0; i < end; i++) {
+            if ("aeiouy".indexOf(word.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns one page of the conferences that contain every word of the query, best match
+     * first; conferences with the same score are in the order of their numbers.
+     *
+     * @param query the words to search for.
+     * @param offset the number of matches to skip.
+     * @param pageSize the number of matches on the page.
+     * @return the page.
+     */
+    public Result search(String query, int offset, int pageSize) {
+        Set<String> terms = new LinkedHashSet<>(terms(query));
+        if (terms.isEmpty()) {
+            return new Result(new int[0], false);
+        }
+        Postings[] lists = new Postings[terms.size()];
+        double[] idfs = new double[terms.size()];
+        int i = 0;
+        for (String term : terms) {
+            lists[i] = postings(term);
+            if (lists[i] == null) {
+                return new Result(new int[0], false);
+            }
+            i++;
+        }
+        // Intersect from the rarest word, which has the fewest candidates.
+        Arrays.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings left, Postings right) {
+                return Integer.compare(left.size, right.size);
+            }
+        });
+        int count = lengths.length;
+        for (i = 0; i < lists.length; i++) {
+            int documentFrequency = lists[i].size;
+            idfs[i] = Math.log(1 + (count - documentFrequency + 0.5) / (documentFrequency + 0.5));
+        }
+        TopMatches top = new TopMatches(offset + pageSize + 1);
+        int[] positions = new int[lists.length];
+        Postings rarest = lists[0];
+        candidates:
+        for (int candidate = 0; candidate < rarest.size; candidate++) {
+            int number = rarest.numbers[candidate];
+            positions[0] = candidate;
+            for (i = 1; i < lists.length; i++) {
+                positions[i] = lists[i].advance(positions[i], number);
+                if (positions[i] == lists[i].size) {
+                    break candidates;
+                }
+                if (lists[i].numbers[positions[i]] != number) {
+                    continue candidates;
+                }
+            }
+            double normalization = K1 * (1 - B + B * lengths[number] / averageLength);
+            double score = 0;
+            for (i = 0; i < lists.length; i++) {
+                int frequency = lists[i].frequencies[positions[i]];
+                score += idfs[i] * frequency * (K1 + 1) / (frequency + normalization);
+            }
+            top.offer(score, number);
+        }
+        int[] ranked = top.sorted();
+        if (ranked.length <= offset) {
+            return new Result(new int[0], false);
+        }
+        int end = Math.min(ranked.length, offset + pageSize);
+        return new Result(Arrays.copyOfRange(ranked, offset, end), ranked.length > end);
+    }
+
+    /**
+     * Keeps the best matches seen so far in a min-heap of primitive arrays.
+     */
+    private static class TopMatches {
+        private final double[] scores;
+
+        private final int[] numbers;
+
+        private int size;
+
+        TopMatches(int capacity) {
+            scores = new double[capacity];
+            numbers = new int[capacity];
+        }
+
+        /**
+         * Returns true if the first match ranks below the second one.
+         */
+        private boolean below(double score, int number, double otherScore, int otherNumber) {
+            return score < otherScore || (score == otherScore && number > otherNumber);
+        }
+
+        void offer(double score, int number) {
+            if (size < scores.length) {
+                scores[size] = score;
+                numbers[size] = number;
+                siftUp(size++);
+            } else if (below(scores[0], numbers[0], score, number)) {
+                scores[0] = score;
+                numbers[0] = number;
+                siftDown(0, size);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!below(scores[i], numbers[i], scores[parent], numbers[parent])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int end) {
+            while (true) {
+                int lowest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < end; child++) {
+                    if (below(scores[child], numbers[child], scores[lowest], numbers[lowest])) {
+                        lowest = child;
+                    }
+                }
+                if (lowest == i) {
+                    return;
+                }
+                swap(i, lowest);
+                i = lowest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+            int number = numbers[i];
+            numbers[i] = numbers[j];
+            numbers[j] = number;
+        }
+
+        /**
+         * Empties the heap and returns the numbers of the matches, best first.
+         */
+        int[] sorted() {
+            int[] sorted = new int[size];
+            for (int end = size; end > 0; end--) {
+                sorted[end - 1] = numbers[0];
+                swap(0, end - 1);
+                siftDown(0, end - 1);
+            }
+            size = 0;
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, error counts and latency histograms of the API methods, kept in memory per
+ * instance.
+ *
+ * Recording a call only increments atomic counters, so it takes no lock and allocates nothing
+ * once the method has been seen. A snapshot reads the counters one by one, so it may be a few
+ * calls behind the counters it was read after.
+ */
+public class EndpointMetrics {
+
+    /**
+     * The upper bounds of the latency buckets, in microseconds. One more bucket counts the
+     * calls slower than the last bound.
+     */
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+            1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000};
+
+    private static final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * The counters of one API method.
+     */
+    public static class Stats {
+        private final AtomicLong calls = new AtomicLong();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final AtomicLong totalMicros = new AtomicLong();
+
+        private final AtomicLongArray buckets =
+                new AtomicLongArray(BUCKET_BOUNDS_MICROS.length + 1);
+
+        private void record(long micros, boolean error) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            totalMicros.addAndGet(micros);
+            if (error) {
+                errors.incrementAndGet();
+            }
+            calls.incrementAndGet();
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getTotalMicros() {
+            return totalMicros.get();
+        }
+
+        /**
+         * Returns the number of calls in each latency bucket, not cumulated. The last element
+         * counts the calls slower than the last of {@link #getBucketBoundsMicros()}.
+         */
+        public long[] getBucketCounts() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Returns the upper bounds of the latency buckets, in microseconds.
+     */
+    public static long[] getBucketBoundsMicros() {
+        return BUCKET_BOUNDS_MICROS.clone();
+    }
+
+    /**
+     * Records one call of an API method.
+     *
+     * @param method the name of the API method.
+     * @param nanos how long the call took.
+     * @param error whether the call failed.
+     */
+    public static void record(String method, long nanos, boolean error) {
+        Stats methodStats = stats.get(method);
+        if (methodStats == null) {
+            stats.putIfAbsent(method, new Stats());
+            methodStats = stats.get(method);
+        }
+        methodStats.record(TimeUnit.NANOSECONDS.toMicros(nanos), error);
+    }
+
+    /**
+     * Returns the counters of every method that has been called, by method name.
+     */
+    public static SortedMap<String, Stats> snapshot() {
+        return new TreeMap<String, Stats>(stats);
+    }
+
+    /**
+     * Forgets all the methods and their counters.
+     */
+    public static void reset() {
+        stats.clear();
+    }
+
+    /**
+     * Returns the counters of the given method, or null if it hasn't been called.
+     */
+    public static Stats get(String method) {
+        return stats.get(method);
+    }
+}
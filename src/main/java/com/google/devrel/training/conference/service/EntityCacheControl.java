@@ -0,0 +1,44 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.ImmutableMap;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.cache.CacheControl;
+
+import java.util.Map;
+
+/**
+ * Decides which kinds of entity Objectify keeps in its global memcache cache, and for how
+ * long, in place of @Cache annotations, so that it can be changed without a code change.
+ *
+ * The expiration of a kind, in seconds, is read from the system property
+ * conference.entityCache.{kind}, e.g. conference.entityCache.Conference in appengine-web.xml.
+ * 0 caches without expiration, and a negative number doesn't cache the kind. A kind without
+ * a property uses its default: Profiles, which rarely change and are read by every request
+ * that shows an organizer, are cached for an hour, and the other kinds aren't cached.
+ *
+ * Objectify keeps the cache coherent with the writes made through it, transactional or not,
+ * but not with writes made with the low-level datastore API, which must go through
+ * {@link com.googlecode.objectify.ObjectifyFactory#createAsyncDatastoreService} with the
+ * global cache instead. Entities written elsewhere, e.g. in the datastore viewer, can be
+ * stale for up to the expiration of their kind.
+ */
+public class EntityCacheControl implements CacheControl {
+
+    /**
+     * The prefix of the system properties with the expiration of a kind.
+     */
+    public static final String PROPERTY_PREFIX = "conference.entityCache.";
+
+    private static final Map<String, Integer> DEFAULT_EXPIRATION_SECONDS =
+            ImmutableMap.of(com.googlecode.objectify.Key.getKind(Profile.class), 60 * 60);
+
+    @Override
+    public Integer getExpirySeconds(Key key) {
+        Integer seconds = Integer.getInteger(PROPERTY_PREFIX + key.getKind());
+        if (seconds == null) {
+            seconds = DEFAULT_EXPIRATION_SECONDS.get(key.getKind());
+        }
+        return seconds == null || seconds < 0 ? null : seconds;
+    }
+}
@@ -0,0 +1,269 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes datastore entities as newline-delimited JSON and reads them back, for the export and
+ * import of the catalog.
+ *
+ * Every entity is one line: {"kind": ..., "key": key path, "properties": {...},
+ * "unindexed": [names of the unindexed properties]}. Strings, booleans, longs, doubles and
+ * nulls are written as themselves, lists as arrays, and the other types as an object with a
+ * single member that names the type: {"date": milliseconds}, {"key": key path} or
+ * {"text": string}. The kind is only there for the readers of a dump; the key has it.
+ *
+ * A key path is an array of the kind and the ID or name of each key from the root down, such
+ * as [["Profile", "1234"], ["Conference", 5]], with the ID as a number and the name as a
+ * string. Unlike a web-safe key, it doesn't name the app, so the keys are made again in the
+ * app that reads the dump, and a dump of one app can be imported into another.
+ */
+public class EntityNdjson {
+
+    /**
+     * The kinds that make up the catalog, in the order they are exported: the Profiles before
+     * the Conferences they are the parents of, and the Conferences before their SeatShards,
+     * which hold the seats available of sharded conferences.
+     */
+    public static final List<String> KINDS = Collections.unmodifiableList(Arrays.asList(
+            com.googlecode.objectify.Key.getKind(Profile.class),
+            com.googlecode.objectify.Key.getKind(Conference.class),
+            com.googlecode.objectify.Key.getKind(SeatShard.class)));
+
+    private EntityNdjson() {}
+
+    /**
+     * Writes the entity as one line.
+     *
+     * @param entity the entity.
+     * @param out where to write it; it is neither flushed nor closed.
+     * @throws IOException if the entity can't be written.
+     * @throws IllegalArgumentException if a property has a type that isn't supported.
+     */
+    public static void write(Entity entity, Writer out) throws IOException {
+        // A JsonWriter only writes one top-level value, so there is one per line.
+        JsonWriter json = new JsonWriter(out);
+        json.setSerializeNulls(true);
+        json.beginObject();
+        json.name("kind").value(entity.getKind());
+        json.name("key");
+        writeKey(json, entity.getKey());
+        json.name("properties").beginObject();
+        List<String> unindexed = new ArrayList<>();
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+            json.name(property.getKey());
+            writeValue(json, property.getValue());
+            if (entity.isUnindexedProperty(property.getKey())) {
+                unindexed.add(property.getKey());
+            }
+        }
+        json.endObject();
+        json.name("unindexed").beginArray();
+        for (String name : unindexed) {
+            json.value(name);
+        }
+        json.endArray();
+        json.endObject();
+        out.write('\n');
+    }
+
+    private static void writeValue(JsonWriter json, Object value) throws IOException {
+        if (value == null) {
+            json.nullValue();
+        } else if (value instanceof String) {
+            json.value((String) value);
+        } else if (value instanceof Boolean) {
+            json.value((Boolean) value);
+        } else if (value instanceof Long) {
+            json.value((Long) value);
+        } else if (value instanceof Double) {
+            json.value((Double) value);
+        } else if (value instanceof Date) {
+            json.beginObject().name("date").value(((Date) value).getTime()).endObject();
+        } else if (value instanceof Key) {
+            json.beginObject().name("key");
+            writeKey(json, (Key) value);
+            json.endObject();
+        } else if (value instanceof Text) {
+            json.beginObject().name("text").value(((Text) value).getValue()).endObject();
+        } else if (value instanceof Collection) {
+            json.beginArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(json, element);
+            }
+            json.endArray();
+        } else {
+            throw new IllegalArgumentException(
+                    "Can't export a property of type " + value.getClass().getName());
+        }
+    }
+
+    private static void writeKey(JsonWriter json, Key key) throws IOException {
+        List<Key> path = new ArrayList<>();
+        for (Key ancestor = key; ancestor != null; ancestor = ancestor.getParent()) {
+            path.add(ancestor);
+        }
+        Collections.reverse(path);
+        json.beginArray();
+        for (Key element : path) {
+            json.beginArray().value(element.getKind());
+            if (element.getName() != null) {
+                json.value(element.getName());
+            } else {
+                json.value(element.getId());
+            }
+            json.endArray();
+        }
+        json.endArray();
+    }
+
+    /**
+     * Reads a key path, and makes its key in this app.
+     */
+    private static Key readKey(JsonReader in) throws IOException {
+        Key key = null;
+        in.beginArray();
+        while (in.hasNext()) {
+            in.beginArray();
+            String kind = in.nextString();
+            if (in.peek() == JsonToken.NUMBER) {
+                key = KeyFactory.createKey(key, kind, in.nextLong());
+            } else {
+                key = KeyFactory.createKey(key, kind, in.nextString());
+            }
+            in.endArray();
+        }
+        in.endArray();
+        if (key == null) {
+            throw new IllegalStateException("A key path is empty");
+        }
+        return key;
+    }
+
+    /**
+     * Reads the next entity.
+     *
+     * @param in a lenient reader, so that it reads one top-level value after another.
+     * @return the entity, or null at the end of the stream.
+     * @throws IOException if the stream can't be read or isn't valid JSON.
+     * @throws IllegalStateException if the JSON isn't an entity written by
+     *             {@link #write(Entity, Writer)}.
+     * @throws IllegalArgumentException if a key path has an invalid ID or name.
+     */
+    public static Entity read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        Key key = null;
+        List<String> names = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        Set<String> unindexed = new HashSet<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "key":
+                    key = readKey(in);
+                    break;
+                case "properties":
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        names.add(in.nextName());
+                        values.add(readValue(in));
+                    }
+                    in.endObject();
+                    break;
+                case "unindexed":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        unindexed.add(in.nextString());
+                    }
+                    in.endArray();
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        if (key == null) {
+            throw new IllegalStateException("An entity has no key");
+        }
+        Entity entity = new Entity(key);
+        for (int i = 0; i < names.size(); i++) {
+            if (unindexed.contains(names.get(i))) {
+                entity.setUnindexedProperty(names.get(i), values.get(i));
+            } else {
+                entity.setProperty(names.get(i), values.get(i));
+            }
+        }
+        return entity;
+    }
+
+    private static Object readValue(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NULL:
+                in.nextNull();
+                return null;
+            case STRING:
+                return in.nextString();
+            case BOOLEAN:
+                return in.nextBoolean();
+            case NUMBER:
+                String number = in.nextString();
+                if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0
+                        || number.indexOf('E') >= 0) {
+                    return Double.valueOf(number);
+                }
+                return Long.valueOf(number);
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    list.add(readValue(in));
+                }
+                in.endArray();
+                return list;
+            case BEGIN_OBJECT:
+                in.beginObject();
+                String type = in.nextName();
+                Object value;
+                switch (type) {
+                    case "date":
+                        value = new Date(in.nextLong());
+                        break;
+                    case "key":
+                        value = readKey(in);
+                        break;
+                    case "text":
+                        value = new Text(in.nextString());
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown property type " + type);
+                }
+                in.endObject();
+                return value;
+            default:
+                throw new IllegalStateException("Unexpected " + in.peek() + " in a property");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the version stamps of entities in memcache, so that a conditional read can be
+ * answered without loading the entity.
+ *
+ * The stamp of an entity is made by the reader from the entity it loaded, typically from the
+ * version that the entity increments on every save, and every writer calls
+ * {@link #invalidate(Iterable)} for the entities it saved once they are written. A reader that
+ * loaded an entity before a write must not cache its stamp after the writer has invalidated it,
+ * so a missing stamp is first reserved with a placeholder, and the stamp is only cached if the
+ * placeholder is still there when the entity has been loaded, as Objectify does for its entity
+ * cache. A hit costs one memcache RPC.
+ */
+public class EntityVersions {
+
+    private static final String NAMESPACE = "EntityVersions";
+
+    /**
+     * What a missing stamp is reserved with; no stamp is empty.
+     */
+    private static final String RESERVED = "";
+
+    /**
+     * How long a reservation lives if the reader never caches the stamp, in seconds.
+     */
+    private static final int RESERVATION_EXPIRATION_SECONDS = 10;
+
+    /**
+     * The stamps found by a lookup, and the reservations of the ones that were missing.
+     */
+    public static class Lookup {
+        private final Map<String, IdentifiableValue> values;
+
+        private Lookup(Map<String, IdentifiableValue> values) {
+            this.values = values;
+        }
+
+        /**
+         * Returns the cached stamp of the entity, or null if it has to be loaded.
+         */
+        public String get(Key<?> key) {
+            IdentifiableValue value = values.get(key.getString());
+            if (value == null || RESERVED.equals(value.getValue())) {
+                return null;
+            }
+            return (String) value.getValue();
+        }
+
+        /**
+         * Caches the stamp of an entity loaded after the lookup, unless the entity has been
+         * invalidated since.
+         *
+         * @param key the key of the entity.
+         * @param stamp the stamp made from the entity.
+         */
+        public void put(Key<?> key, String stamp) {
+            IdentifiableValue value = values.get(key.getString());
+            if (value != null && RESERVED.equals(value.getValue())) {
+                memcache().putIfUntouched(key.getString(), value, stamp);
+            }
+        }
+    }
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+    }
+
+    /**
+     * Reads the stamps of the entities, and reserves the missing ones.
+     *
+     * @param keys the keys of the entities.
+     * @return the stamps found.
+     */
+    public static Lookup lookup(Key<?>... keys) {
+        MemcacheService memcache = memcache();
+        List<String> names = new ArrayList<>(keys.length);
+        for (Key<?> key : keys) {
+            names.add(key.getString());
+        }
+        Map<String, IdentifiableValue> values = new HashMap<>(memcache.getIdentifiables(names));
+        Map<String, Object> reservations = new HashMap<>();
+        for (String name : names) {
+            if (!values.containsKey(name)) {
+                reservations.put(name, RESERVED);
+            }
+        }
+        if (!reservations.isEmpty()) {
+            memcache.putAll(reservations,
+                    Expiration.byDeltaSeconds(RESERVATION_EXPIRATION_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            values.putAll(memcache.getIdentifiables(reservations.keySet()));
+        }
+        return new Lookup(values);
+    }
+
+    /**
+     * Drops the stamps of entities that have been written.
+     *
+     * @param keys the keys of the entities.
+     */
+    public static void invalidate(Iterable<? extends Key<?>> keys) {
+        List<String> names = new ArrayList<>();
+        for (Key<?> key : keys) {
+            names.add(key.getString());
+        }
+        if (!names.isEmpty()) {
+            memcache().deleteAll(names);
+        }
+    }
+
+    /**
+     * Drops the stamps of entities that have been written.
+     *
+     * @param keys the keys of the entities.
+     */
+    public static void invalidate(Key<?>... keys) {
+        invalidate(Arrays.asList(keys));
+    }
+}
@@ -0,0 +1,86 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.googlecode.objectify.cache.CacheControl;
+import com.googlecode.objectify.cache.CachingAsyncDatastoreService;
+import com.googlecode.objectify.cache.EntityMemcache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Objectify's caching datastore service, except that the non-transactional reads and writes of
+ * kinds that are not cached go straight to the datastore.
+ *
+ * CachingAsyncDatastoreService makes a memcache call for every get and write, even when none
+ * of the keys is cacheable, which would add a memcache RPC to every Conference get and save.
+ * Transactional calls always go through it, since the transactions it begins are its own.
+ */
+class KindCachingDatastoreService extends CachingAsyncDatastoreService {
+
+    private final AsyncDatastoreService datastore;
+
+    private final CacheControl cacheControl;
+
+    KindCachingDatastoreService(AsyncDatastoreService datastore, EntityMemcache memcache,
+            CacheControl cacheControl) {
+        super(datastore, memcache);
+        this.datastore = datastore;
+        this.cacheControl = cacheControl;
+    }
+
+    private boolean isAnyCached(Iterable<Key> keys) {
+        for (Key key : keys) {
+            if (cacheControl.getExpirySeconds(key) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAnyEntityCached(Iterable<Entity> entities) {
+        for (Entity entity : entities) {
+            if (cacheControl.getExpirySeconds(entity.getKey()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Future<Map<Key, Entity>> get(Iterable<Key> keys) {
+        return isAnyCached(keys) ? super.get(keys) : datastore.get(keys);
+    }
+
+    @Override
+    public Future<Map<Key, Entity>> get(Transaction transaction, Iterable<Key> keys) {
+        return transaction != null || isAnyCached(keys) ? super.get(transaction, keys)
+                : datastore.get(null, keys);
+    }
+
+    @Override
+    public Future<List<Key>> put(Iterable<Entity> entities) {
+        return isAnyEntityCached(entities) ? super.put(entities) : datastore.put(entities);
+    }
+
+    @Override
+    public Future<List<Key>> put(Transaction transaction, Iterable<Entity> entities) {
+        return transaction != null || isAnyEntityCached(entities)
+                ? super.put(transaction, entities) : datastore.put(null, entities);
+    }
+
+    @Override
+    public Future<Void> delete(Iterable<Key> keys) {
+        return isAnyCached(keys) ? super.delete(keys) : datastore.delete(keys);
+    }
+
+    @Override
+    public Future<Void> delete(Transaction transaction, Iterable<Key> keys) {
+        return transaction != null || isAnyCached(keys) ? super.delete(transaction, keys)
+                : datastore.delete(null, keys);
+    }
+}
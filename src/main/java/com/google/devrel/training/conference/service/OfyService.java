@@ -1,29 +1,88 @@
 package com.google.devrel.training.conference.service;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cache.EntityMemcache;
+
+import java.util.ConcurrentModificationException;
+import java.util.Random;
+import java.util.logging.Logger;
 
 /**
  * Custom Objectify Service that this application should use.
  */
 public class OfyService {
+
+    private static final Logger LOG = Logger.getLogger(OfyService.class.getName());
+
+    /**
+     * The maximum number of times a transaction is tried before giving up on contention.
+     */
+    public static final int MAX_TRANSACTION_ATTEMPTS = 10;
+
+    /**
+     * The backoff before the first retry, in milliseconds. It doubles on every retry.
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 10;
+
+    /**
+     * The upper bound of the backoff, in milliseconds.
+     */
+    private static final long MAX_BACKOFF_MILLIS = 500;
+
+    private static final Random random = new Random();
+
     /**
      * This static block ensure the entity registration.
      */
     static {
+        ObjectifyService.setFactory(new CachingFactory());
         factory().register(Profile.class);
         factory().register(Conference.class);
+        factory().register(SeatShard.class);
+    }
+
+    /**
+     * An ObjectifyFactory whose global cache is driven by {@link EntityCacheControl} rather
+     * than by @Cache annotations.
+     */
+    private static class CachingFactory extends ObjectifyFactory {
+        private final EntityCacheControl cacheControl = new EntityCacheControl();
+
+        CachingFactory() {
+            entityMemcache = new EntityMemcache(MEMCACHE_NAMESPACE, cacheControl, memcacheStats);
+        }
+
+        /**
+         * Uses the global cache whenever it is asked for; the base class only does when an
+         * entity class has a @Cache annotation.
+         */
+        @Override
+        public AsyncDatastoreService createAsyncDatastoreService(DatastoreServiceConfig config,
+                boolean globalCache) {
+            AsyncDatastoreService datastore = createRawAsyncDatastoreService(config);
+            return globalCache
+                    ? new KindCachingDatastoreService(datastore, entityMemcache, cacheControl)
+                    : datastore;
+        }
     }
 
     /**
      * Use this static method for getting the Objectify service object in order to make sure the
      * above static block is executed before using Objectify.
+     *
+     * It also makes sure that the RPCs are counted by {@link RpcAccounting}.
      * @return Objectify service object.
      */
     public static Objectify ofy() {
+        RpcAccounting.install();
         return ObjectifyService.ofy();
     }
 
@@ -34,4 +93,38 @@ public class OfyService {
     public static ObjectifyFactory factory() {
         return ObjectifyService.factory();
     }
+
+    /**
+     * Runs the work in a new transaction, retrying on contention at most
+     * MAX_TRANSACTION_ATTEMPTS times.
+     *
+     * Unlike ofy().transact(), which retries without limit and without delay, every retry waits
+     * for an exponentially growing, randomized backoff, so that competing requests spread out
+     * instead of colliding again.
+     *
+     * @param work the transactional work. It may run more than once.
+     * @return the result of the work.
+     * @throws ConcurrentModificationException when every attempt failed on contention.
+     */
+    public static <R> R transactWithBackoff(Work<R> work) {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return ofy().transactNew(1, work);
+            } catch (ConcurrentModificationException e) {
+                if (attempt >= MAX_TRANSACTION_ATTEMPTS) {
+                    LOG.warning("Giving up a transaction after " + attempt + " attempts");
+                    throw e;
+                }
+            }
+            try {
+                // Full jitter: wait a random time up to the current backoff.
+                Thread.sleep(1 + (long) (random.nextDouble() * backoffMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConcurrentModificationException("Interrupted while retrying");
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
 }
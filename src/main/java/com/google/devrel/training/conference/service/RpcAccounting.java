@@ -0,0 +1,284 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Counts the datastore and memcache RPCs made by each request, and checks them against a
+ * per-endpoint budget.
+ *
+ * The counting ApiProxy delegate is installed by {@link OfyService#ofy()}, and only counts
+ * RPCs made on a thread between {@link #begin(String)} and {@link #end()}, which
+ * EndpointMetricsFilter calls around every API request. {@link #end()} logs a summary line.
+ *
+ * Budgets are read from system properties, e.g. in appengine-web.xml:
+ * conference.rpcBudget.{endpoint} is the maximum number of RPCs of one endpoint, and
+ * conference.rpcBudget.default applies to endpoints without their own budget. A request over
+ * its budget is logged as a warning, or fails with an IllegalStateException when
+ * conference.rpcBudget.fail is true, which the tests set so that N+1 patterns break the build.
+ */
+public class RpcAccounting {
+
+    private static final Logger LOG = Logger.getLogger(RpcAccounting.class.getName());
+
+    static final String BUDGET_PROPERTY = "conference.rpcBudget.";
+
+    static final String DEFAULT_BUDGET_PROPERTY = BUDGET_PROPERTY + "default";
+
+    static final String FAIL_PROPERTY = BUDGET_PROPERTY + "fail";
+
+    private static final ThreadLocal<Counts> current = new ThreadLocal<>();
+
+    /**
+     * Whether a counting delegate is already counting the RPC being made on this thread. This
+     * happens when another delegate, installed on top of a counting delegate, gets wrapped again.
+     */
+    private static final ThreadLocal<Boolean> counting = new ThreadLocal<>();
+
+    /**
+     * The RPCs made by one request.
+     */
+    public static class Counts {
+        private final String endpoint;
+
+        private final long startNanos = System.nanoTime();
+
+        private int gets;
+
+        private int queries;
+
+        private int puts;
+
+        private int deletes;
+
+        private int otherDatastore;
+
+        private int memcache;
+
+        private Counts(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private void count(String packageName, String methodName) {
+            if ("memcache".equals(packageName)) {
+                memcache++;
+            } else if ("datastore_v3".equals(packageName)) {
+                switch (methodName) {
+                    case "Get":
+                        gets++;
+                        break;
+                    case "RunQuery":
+                    case "Next":
+                        queries++;
+                        break;
+                    case "Put":
+                        puts++;
+                        break;
+                    case "Delete":
+                        deletes++;
+                        break;
+                    default:
+                        otherDatastore++;
+                        break;
+                }
+            }
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public int getGets() {
+            return gets;
+        }
+
+        public int getQueries() {
+            return queries;
+        }
+
+        public int getPuts() {
+            return puts;
+        }
+
+        public int getDeletes() {
+            return deletes;
+        }
+
+        /**
+         * Returns the number of other datastore RPCs, such as transactions and id allocations.
+         */
+        public int getOtherDatastore() {
+            return otherDatastore;
+        }
+
+        public int getMemcache() {
+            return memcache;
+        }
+
+        public int getTotal() {
+            return gets + queries + puts + deletes + otherDatastore + memcache;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d RPCs (%d gets, %d queries, %d puts, %d deletes, "
+                    + "%d other datastore, %d memcache) in %d ms", endpoint, getTotal(), gets,
+                    queries, puts, deletes, otherDatastore, memcache,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+
+    /**
+     * An ApiProxy delegate that counts the RPCs of the current request and passes every call
+     * through.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class CountingDelegate implements ApiProxy.Delegate {
+        private final ApiProxy.Delegate delegate;
+
+        CountingDelegate(ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * Counts the RPC and returns true, unless an outer counting delegate has counted it.
+         */
+        private static boolean count(String packageName, String methodName) {
+            Counts counts = current.get();
+            if (counts == null || counting.get() != null) {
+                return false;
+            }
+            counts.count(packageName, methodName);
+            counting.set(Boolean.TRUE);
+            return true;
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request) {
+            boolean counted = count(packageName, methodName);
+            try {
+                return delegate.makeSyncCall(environment, packageName, methodName, request);
+            } finally {
+                if (counted) {
+                    counting.remove();
+                }
+            }
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            boolean counted = count(packageName, methodName);
+            try {
+                return delegate.makeAsyncCall(
+                        environment, packageName, methodName, request, apiConfig);
+            } finally {
+                if (counted) {
+                    counting.remove();
+                }
+            }
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+    /**
+     * Wraps the current ApiProxy delegate in a counting delegate, unless it already is one.
+     */
+    static void install() {
+        if (ApiProxy.getDelegate() instanceof CountingDelegate) {
+            return;
+        }
+        synchronized (RpcAccounting.class) {
+            ApiProxy.Delegate delegate = ApiProxy.getDelegate();
+            if (delegate != null && !(delegate instanceof CountingDelegate)) {
+                ApiProxy.setDelegate(new CountingDelegate(delegate));
+            }
+        }
+    }
+
+    /**
+     * Starts counting the RPCs made on this thread for a request to the given endpoint.
+     */
+    public static void begin(String endpoint) {
+        install();
+        current.set(new Counts(endpoint));
+    }
+
+    /**
+     * Returns the RPCs counted so far on this thread, or null when not counting.
+     */
+    public static Counts current() {
+        return current.get();
+    }
+
+    /**
+     * Returns the RPC budget of the endpoint, or -1 if it has none.
+     */
+    static int budget(String endpoint) {
+        Integer budget = Integer.getInteger(BUDGET_PROPERTY + endpoint);
+        if (budget == null) {
+            budget = Integer.getInteger(DEFAULT_BUDGET_PROPERTY, -1);
+        }
+        return budget;
+    }
+
+    /**
+     * Stops counting on this thread, logs the summary and checks it against the budget of the
+     * endpoint.
+     *
+     * @return the RPCs made since {@link #begin(String)}, or null when not counting.
+     * @throws IllegalStateException when the budget is exceeded and conference.rpcBudget.fail is
+     *             true.
+     */
+    public static Counts end() {
+        return end(true);
+    }
+
+    /**
+     * Stops counting on this thread, logs the summary and checks it against the budget of the
+     * endpoint.
+     *
+     * @param enforceBudget false to only log an exceeded budget, for a request that already
+     *            failed with an exception of its own.
+     * @return the RPCs made since {@link #begin(String)}, or null when not counting.
+     * @throws IllegalStateException when enforceBudget is true, the budget is exceeded and
+     *             conference.rpcBudget.fail is true.
+     */
+    public static Counts end(boolean enforceBudget) {
+        Counts counts = current.get();
+        if (counts == null) {
+            return null;
+        }
+        current.remove();
+        int budget = budget(counts.endpoint);
+        if (budget < 0 || counts.getTotal() <= budget) {
+            LOG.info(counts.toString());
+            return counts;
+        }
+        String message = counts + " exceeds the budget of " + budget + " RPCs";
+        if (enforceBudget && Boolean.getBoolean(FAIL_PROPERTY)) {
+            throw new IllegalStateException(message);
+        }
+        LOG.warning(message);
+        return counts;
+    }
+}
@@ -0,0 +1,197 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Allocates the seats of conferences in sharded seat-allocation mode.
+ *
+ * The available seats of a sharded conference are split across SeatShards, each in its own
+ * entity group, so that a booking only writes one randomly chosen shard and the attendee's
+ * Profile instead of serializing on the Conference entity. The total is the sum of the shards,
+ * which are read with one batch get by key.
+ */
+public class SeatShardService {
+
+    /**
+     * The maximum number of shards per conference.
+     *
+     * Resizing touches the conference and every old and new shard in one cross-group
+     * transaction, which can span at most 25 entity groups.
+     */
+    public static final int MAX_SEAT_SHARDS = 20;
+
+    private static final Random random = new Random();
+
+    /**
+     * Returns the keys of all the shards of a conference.
+     *
+     * @param websafeConferenceKey the websafe key of the conference.
+     * @param count the number of shards.
+     * @return the keys of the shards, in index order.
+     */
+    public static List<Key<SeatShard>> shardKeys(final String websafeConferenceKey,
+            final int count) {
+        List<Key<SeatShard>> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(SeatShard.key(websafeConferenceKey, i));
+        }
+        return keys;
+    }
+
+    /**
+     * Fills in the seats available of the sharded conferences among the given ones, with a
+     * single batch get of all their shards.
+     *
+     * @param conferences the conferences to hydrate.
+     */
+    public static void hydrateSeats(final Collection<Conference> conferences) {
+        List<Key<SeatShard>> keys = new ArrayList<>();
+        for (Conference conference : conferences) {
+            keys.addAll(shardKeys(conference.getWebsafeKey(), conference.getSeatShardCount()));
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Key<SeatShard>, SeatShard> shards = ofy().load().keys(keys);
+        for (Conference conference : conferences) {
+            if (conference.getSeatShardCount() > 0) {
+                conference.hydrateSeatsAvailable(sumSeats(
+                        shardKeys(conference.getWebsafeKey(), conference.getSeatShardCount()),
+                        shards));
+            }
+        }
+    }
+
+    /**
+     * Fills in the seats available of the sharded conferences among the given summaries, with a
+     * single batch get of all their shards.
+     *
+     * @param summaries the conference summaries to hydrate.
+     */
+    public static void hydrateSummarySeats(final Collection<ConferenceSummary> summaries) {
+        List<Key<SeatShard>> keys = new ArrayList<>();
+        for (ConferenceSummary summary : summaries) {
+            keys.addAll(shardKeys(summary.getWebsafeKey(), summary.getSeatShardCount()));
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Key<SeatShard>, SeatShard> shards = ofy().load().keys(keys);
+        for (ConferenceSummary summary : summaries) {
+            if (summary.getSeatShardCount() > 0) {
+                summary.hydrateSeatsAvailable(sumSeats(
+                        shardKeys(summary.getWebsafeKey(), summary.getSeatShardCount()),
+                        shards));
+            }
+        }
+    }
+
+    private static int sumSeats(final List<Key<SeatShard>> keys,
+            final Map<Key<SeatShard>, SeatShard> shards) {
+        int seatsAvailable = 0;
+        for (Key<SeatShard> key : keys) {
+            SeatShard shard = shards.get(key);
+            if (shard != null) {
+                seatsAvailable += shard.getSeatsAvailable();
+            }
+        }
+        return seatsAvailable;
+    }
+
+    /**
+     * Picks a random shard of the conference that still has seats available.
+     *
+     * The shards are read outside of any transaction and past the session cache, which would
+     * keep returning the counts seen by an earlier attempt, so the caller must check the chosen
+     * shard again inside its transaction.
+     *
+     * @param conference a sharded conference.
+     * @return the key of the shard, or null when no shard has seats available.
+     */
+    public static Key<SeatShard> pickShardWithSeats(final Conference conference) {
+        Map<Key<SeatShard>, SeatShard> shards = factory().begin().load()
+                .keys(shardKeys(conference.getWebsafeKey(), conference.getSeatShardCount()));
+        List<Key<SeatShard>> candidates = new ArrayList<>();
+        for (Map.Entry<Key<SeatShard>, SeatShard> entry : shards.entrySet()) {
+            if (entry.getValue().getSeatsAvailable() > 0) {
+                candidates.add(entry.getKey());
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Picks a random shard of the conference to give a seat back to.
+     *
+     * @param conference a sharded conference.
+     * @return the key of the shard.
+     */
+    public static Key<SeatShard> pickShard(final Conference conference) {
+        return SeatShard.key(conference.getWebsafeKey(),
+                random.nextInt(conference.getSeatShardCount()));
+    }
+
+    /**
+     * Picks a random shard of the conference among the ones that exist, for when the shard
+     * chosen by {@link #pickShard(Conference)} is missing.
+     *
+     * Like {@link #pickShardWithSeats(Conference)}, the shards are read outside of any
+     * transaction, so the caller must load the chosen shard again inside its transaction.
+     *
+     * @param conference a sharded conference.
+     * @return the key of the shard, or null when no shard exists.
+     */
+    public static Key<SeatShard> pickExistingShard(final Conference conference) {
+        List<Key<SeatShard>> candidates = new ArrayList<>(factory().begin().load()
+                .keys(shardKeys(conference.getWebsafeKey(), conference.getSeatShardCount()))
+                .keySet());
+        return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+    }
+
+    /**
+     * Changes the number of shards of a conference, spreading the seats still available evenly
+     * over the new shards. With 0 shards, the seats are counted on the Conference again.
+     *
+     * This must run inside a transaction that has loaded the conference.
+     *
+     * @param conference the conference to resize.
+     * @param count the new number of shards, from 0 to MAX_SEAT_SHARDS.
+     */
+    public static void resize(final Conference conference, final int count) {
+        if (count < 0 || count > MAX_SEAT_SHARDS) {
+            throw new IllegalArgumentException(
+                    "The number of shards must be between 0 and " + MAX_SEAT_SHARDS);
+        }
+        String websafeConferenceKey = conference.getWebsafeKey();
+        int oldCount = conference.getSeatShardCount();
+        int seatsAvailable = conference.getSeatsAvailable();
+        if (oldCount > 0) {
+            List<Key<SeatShard>> oldKeys = shardKeys(websafeConferenceKey, oldCount);
+            seatsAvailable = sumSeats(oldKeys, ofy().load().keys(oldKeys));
+        }
+        List<SeatShard> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new SeatShard(websafeConferenceKey, i,
+                    seatsAvailable / count + (i < seatsAvailable % count ? 1 : 0)));
+        }
+        if (oldCount > count) {
+            ofy().delete().keys(shardKeys(websafeConferenceKey, oldCount)
+                    .subList(count, oldCount));
+        }
+        conference.updateSeatShards(count, seatsAvailable);
+        ofy().save().entity(conference);
+        ofy().save().entities(shards);
+    }
+}
@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter in front of SystemServiceServlet that sends the entity tag of a ConferenceApi
+ * response as its ETag header, and drops the body of a 304 Not Modified.
+ *
+ * Endpoints methods can't set headers, so a method that tags its response stores the tag in
+ * the request attribute {@link ConferenceApi#ETAG_ATTRIBUTE}, and the tag is sent when the
+ * response starts to be written. Tagged responses are sent with "Cache-Control: private,
+ * no-cache", so the browser keeps them and revalidates them with If-None-Match on every read,
+ * without any change to the client. Endpoints writes a JSON error body for the 304 of a
+ * NotModifiedException, which is thrown away here.
+ */
+public class ConditionalGetFilter implements Filter {
+
+    /**
+     * A response that adds the ETag header before the body, and drops the body of a 304.
+     */
+    private static class TaggingResponse extends HttpServletResponseWrapper {
+        private final HttpServletRequest request;
+
+        private int status = SC_OK;
+
+        private boolean tagged;
+
+        TaggingResponse(HttpServletRequest request, HttpServletResponse response) {
+            super(response);
+            this.request = request;
+        }
+
+        private boolean isNotModified() {
+            return status == SC_NOT_MODIFIED;
+        }
+
+        private void tag() {
+            if (tagged) {
+                return;
+            }
+            tagged = true;
+            Object etag = request.getAttribute(ConferenceApi.ETAG_ATTRIBUTE);
+            if (etag != null && (status == SC_OK || isNotModified())) {
+                setHeader("ETag", (String) etag);
+                setHeader("Cache-Control", "private, no-cache");
+            }
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            super.setStatus(status);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            this.status = status;
+            super.setStatus(status, message);
+        }
+
+        @Override
+        public void setContentType(String type) {
+            tag();
+            if (!isNotModified()) {
+                super.setContentType(type);
+            }
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            tag();
+            if (!isNotModified()) {
+                super.setContentLength(length);
+            }
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            tag();
+            if (isNotModified()) {
+                return new PrintWriter(ByteStreams.nullOutputStream());
+            }
+            return super.getWriter();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            tag();
+            if (isNotModified()) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {}
+                };
+            }
+            return super.getOutputStream();
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)
+                || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        chain.doFilter(request, new TaggingResponse((HttpServletRequest) request,
+                (HttpServletResponse) response));
+    }
+
+    @Override
+    public void destroy() {}
+}
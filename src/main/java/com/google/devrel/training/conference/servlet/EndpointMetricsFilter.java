@@ -0,0 +1,122 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.api.server.spi.config.ApiMethod;
+import com.google.devrel.training.conference.service.EndpointMetrics;
+import com.google.devrel.training.conference.service.RpcAccounting;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter in front of SystemServiceServlet that records every call of a ConferenceApi method
+ * in {@link EndpointMetrics}.
+ *
+ * Cloud Endpoints calls the backend at /_ah/spi/{service class}.{method name}. Calls to paths
+ * that are not an @ApiMethod of ConferenceApi, such as the API config requests, are recorded
+ * as "other", so that arbitrary paths can't grow the metrics. A call is an error when it
+ * throws or responds with a status of 400 or more.
+ *
+ * The RPCs of every call are also counted and checked by {@link RpcAccounting}.
+ */
+public class EndpointMetricsFilter implements Filter {
+
+    static final String OTHER = "other";
+
+    private final Set<String> methods = new HashSet<>();
+
+    /**
+     * A response that remembers the status set on it.
+     */
+    private static class StatusRecordingResponse extends HttpServletResponseWrapper {
+        private int status = SC_OK;
+
+        StatusRecordingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            super.setStatus(status);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            this.status = status;
+            super.setStatus(status, message);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            this.status = status;
+            super.sendError(status);
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            this.status = status;
+            super.sendError(status, message);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        for (Method method : ConferenceApi.class.getMethods()) {
+            if (method.isAnnotationPresent(ApiMethod.class)) {
+                methods.add(method.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the ConferenceApi method that the request calls, or {@link #OTHER}.
+     */
+    String methodName(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        String name = uri.substring(uri.lastIndexOf('.') + 1);
+        return methods.contains(name) ? name : OTHER;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)
+                || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String method = methodName((HttpServletRequest) request);
+        StatusRecordingResponse recordingResponse =
+                new StatusRecordingResponse((HttpServletResponse) response);
+        boolean completed = false;
+        RpcAccounting.begin(method);
+        long startNanos = System.nanoTime();
+        try {
+            chain.doFilter(request, recordingResponse);
+            completed = true;
+        } finally {
+            EndpointMetrics.record(method, System.nanoTime() - startNanos,
+                    !completed || recordingResponse.status >= 400);
+            // The budget is not enforced on a request that threw, so that the exception it
+            // threw is the one that gets through.
+            RpcAccounting.end(completed);
+        }
+    }
+
+    @Override
+    public void destroy() {}
+}
@@ -0,0 +1,63 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.devrel.training.conference.service.EntityNdjson;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An admin servlet that dumps the catalog, the Profile, Conference and SeatShard entities, as
+ * newline-delimited JSON in the format of {@link EntityNdjson}.
+ *
+ * Each kind is read in batches, each one a query started from the cursor of the previous
+ * batch, and every batch is written to the response before the next one is read, so the
+ * servlet holds one batch at a time however big the catalog is.
+ */
+public class ExportServlet extends HttpServlet {
+
+    static final String CONTENT_TYPE = "application/x-ndjson; charset=utf-8";
+
+    /**
+     * The number of entities read by one query.
+     */
+    static final int BATCH_SIZE = 500;
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader("Cache-Control", "no-cache");
+        Writer out = response.getWriter();
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (String kind : EntityNdjson.KINDS) {
+            PreparedQuery query = datastore.prepare(new Query(kind));
+            Cursor cursor = null;
+            QueryResultList<Entity> batch;
+            do {
+                FetchOptions options = FetchOptions.Builder.withLimit(BATCH_SIZE)
+                        .chunkSize(BATCH_SIZE);
+                if (cursor != null) {
+                    options.startCursor(cursor);
+                }
+                batch = query.asQueryResultList(options);
+                for (Entity entity : batch) {
+                    EntityNdjson.write(entity, out);
+                }
+                out.flush();
+                cursor = batch.getCursor();
+            } while (batch.size() == BATCH_SIZE);
+        }
+    }
+}
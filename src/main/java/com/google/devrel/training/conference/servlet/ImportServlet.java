@@ -0,0 +1,196 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.DatastorePb;
+import com.google.common.util.concurrent.Futures;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.ConferenceCatalog;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.EntityNdjson;
+import com.google.devrel.training.conference.service.EntityVersions;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+import com.google.storage.onestore.v3.OnestoreEntity;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An admin servlet that loads a dump written by {@link ExportServlet} into the datastore.
+ *
+ * The request body is parsed one entity at a time and the entities are written with one
+ * asynchronous put per batch, which overlaps with the parsing of the next batch, so the
+ * servlet holds at most two batches at a time. Entities with the key of an existing entity
+ * replace it. The IDs of the imported conferences are reserved, so that the ID allocator
+ * doesn't hand them out again, and the conferences are recorded as changed for the catalog.
+ *
+ * The response is a JSON object with the number of entities imported. A body that isn't a
+ * dump is rejected with a 400 once the entities before the bad one have been imported.
+ */
+public class ImportServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(ImportServlet.class.getName());
+
+    /**
+     * The number of entities written by one put.
+     */
+    static final int BATCH_SIZE = 500;
+
+    private static final String CONFERENCE_KIND =
+            com.googlecode.objectify.Key.getKind(Conference.class);
+
+    /**
+     * The put in flight and the conferences it writes.
+     */
+    private static class Batches {
+        private Future<List<Key>> pending;
+
+        private List<Entity> pendingEntities;
+
+        private long imported;
+
+        void put(List<Entity> entities) {
+            complete();
+            // Through the global cache, so that the cached entities are replaced too.
+            pending = factory().createAsyncDatastoreService(
+                    DatastoreServiceConfig.Builder.withDefaults(), true).put(entities);
+            pendingEntities = entities;
+        }
+
+        /**
+         * Waits for the put in flight, then reserves the IDs of its conferences, records them
+         * as changed and drops the version stamps of its entities.
+         */
+        void complete() {
+            if (pending == null) {
+                return;
+            }
+            Futures.getUnchecked(pending);
+            imported += pendingEntities.size();
+            Map<Key, Long> maxIds = new HashMap<>();
+            List<String> conferenceKeys = new ArrayList<>();
+            List<com.googlecode.objectify.Key<Object>> keys =
+                    new ArrayList<>(pendingEntities.size());
+            for (Entity entity : pendingEntities) {
+                Key key = entity.getKey();
+                keys.add(com.googlecode.objectify.Key.create(key));
+                if (CONFERENCE_KIND.equals(key.getKind()) && key.getId() != 0) {
+                    Long maxId = maxIds.get(key.getParent());
+                    if (maxId == null || maxId < key.getId()) {
+                        maxIds.put(key.getParent(), key.getId());
+                    }
+                    conferenceKeys.add(KeyFactory.keyToString(key));
+                }
+            }
+            // Conference IDs are allocated per organizer, so the IDs up to the largest one
+            // imported for an organizer are taken out of its allocations, all at once.
+            List<Future<byte[]>> reservations = new ArrayList<>(maxIds.size());
+            for (Map.Entry<Key, Long> maxId : maxIds.entrySet()) {
+                reservations.add(reserveIds(maxId.getKey(), CONFERENCE_KIND, maxId.getValue()));
+            }
+            for (Future<byte[]> reservation : reservations) {
+                Futures.getUnchecked(reservation);
+            }
+            EntityVersions.invalidate(keys);
+            if (!conferenceKeys.isEmpty()) {
+                ConferenceQueryCache.invalidate();
+                ConferenceCatalog.recordChanges(conferenceKeys);
+            }
+            pending = null;
+            pendingEntities = null;
+        }
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        JsonReader in = new JsonReader(request.getReader());
+        in.setLenient(true);
+        Batches batches = new Batches();
+        List<Entity> batch = new ArrayList<>(BATCH_SIZE);
+        String error = null;
+        try {
+            for (Entity entity = EntityNdjson.read(in); entity != null;
+                    entity = EntityNdjson.read(in)) {
+                batch.add(entity);
+                if (batch.size() == BATCH_SIZE) {
+                    batches.put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+        } catch (MalformedJsonException | EOFException | IllegalStateException
+                | IllegalArgumentException e) {
+            error = e.getMessage();
+        }
+        if (!batch.isEmpty()) {
+            batches.put(batch);
+        }
+        batches.complete();
+        response.setContentType("application/json; charset=utf-8");
+        if (error != null) {
+            LOG.warning("Import stopped after " + batches.imported + " entities: " + error);
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        }
+        response.getWriter().write("{\"imported\":" + batches.imported
+                + (error == null ? "" : ",\"error\":" + quote(error)) + "}");
+    }
+
+    /**
+     * Starts to take the IDs up to the given one out of the IDs allocated for a kind under a
+     * parent, like DatastoreService.allocateIdRange, which AsyncDatastoreService doesn't
+     * offer, so the AllocateIds RPC that it makes is made here.
+     *
+     * @param parent the parent of the keys, made in this app.
+     * @param kind the kind of the keys.
+     * @param maxId the largest ID to take out.
+     * @return the pending RPC.
+     */
+    private static Future<byte[]> reserveIds(Key parent, String kind, long maxId) {
+        OnestoreEntity.Reference modelKey = new OnestoreEntity.Reference()
+                .setApp(parent.getAppId());
+        if (!parent.getNamespace().isEmpty()) {
+            modelKey.setNameSpace(parent.getNamespace());
+        }
+        List<Key> path = new ArrayList<>();
+        for (Key ancestor = parent; ancestor != null; ancestor = ancestor.getParent()) {
+            path.add(0, ancestor);
+        }
+        for (Key element : path) {
+            OnestoreEntity.Path.Element pathElement =
+                    modelKey.getMutablePath().addElement().setType(element.getKind());
+            if (element.getName() != null) {
+                pathElement.setName(element.getName());
+            } else {
+                pathElement.setId(element.getId());
+            }
+        }
+        modelKey.getMutablePath().addElement().setType(kind);
+        DatastorePb.AllocateIdsRequest request =
+                new DatastorePb.AllocateIdsRequest().setModelKey(modelKey).setMax(maxId);
+        return ApiProxy.makeAsyncCall("datastore_v3", "AllocateIds", request.toByteArray());
+    }
+
+    /**
+     * Escapes a string for use inside double quotes in JSON.
+     */
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+                + "\"";
+    }
+}
@@ -0,0 +1,124 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.EndpointMetrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An admin servlet that serves the {@link EndpointMetrics} of this instance, and the hit and
+ * miss counts of the query cache.
+ *
+ * The metrics are written as JSON by default, or in the Prometheus text format when requested
+ * with ?format=prometheus.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        response.setHeader("Cache-Control", "no-cache");
+        if ("prometheus".equals(request.getParameter("format"))) {
+            response.setContentType(PROMETHEUS_CONTENT_TYPE);
+            response.getWriter().write(toPrometheus());
+        } else {
+            response.setContentType("application/json; charset=utf-8");
+            response.getWriter().write(toJson());
+        }
+    }
+
+    /**
+     * Formats a bucket bound in microseconds as seconds, e.g. 2500 as 0.0025.
+     */
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Escapes a string for use inside double quotes in JSON or in a Prometheus label value.
+     */
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+                + "\"";
+    }
+
+    static String toJson() {
+        long[] bounds = EndpointMetrics.getBucketBoundsMicros();
+        StringBuilder json = new StringBuilder("{\"methods\":{");
+        String separator = "";
+        for (Map.Entry<String, EndpointMetrics.Stats> entry
+                : EndpointMetrics.snapshot().entrySet()) {
+            EndpointMetrics.Stats stats = entry.getValue();
+            long[] counts = stats.getBucketCounts();
+            json.append(separator).append(quote(entry.getKey()))
+                    .append(":{\"calls\":").append(stats.getCalls())
+                    .append(",\"errors\":").append(stats.getErrors())
+                    .append(",\"latencySumSeconds\":").append(seconds(stats.getTotalMicros()))
+                    .append(",\"latencyBuckets\":[");
+            for (int i = 0; i < counts.length; i++) {
+                json.append(i == 0 ? "" : ",").append("{\"le\":")
+                        .append(i < bounds.length ? seconds(bounds[i]) : "\"+Inf\"")
+                        .append(",\"count\":").append(counts[i]).append('}');
+            }
+            json.append("]}");
+            separator = ",";
+        }
+        json.append("},\"queryCache\":{\"hits\":").append(ConferenceQueryCache.getHits())
+                .append(",\"misses\":").append(ConferenceQueryCache.getMisses()).append("}}");
+        return json.toString();
+    }
+
+    static String toPrometheus() {
+        long[] bounds = EndpointMetrics.getBucketBoundsMicros();
+        Map<String, EndpointMetrics.Stats> snapshot = EndpointMetrics.snapshot();
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP conference_api_calls_total Calls of the API methods.\n")
+                .append("# TYPE conference_api_calls_total counter\n");
+        for (Map.Entry<String, EndpointMetrics.Stats> entry : snapshot.entrySet()) {
+            text.append("conference_api_calls_total{method=").append(quote(entry.getKey()))
+                    .append("} ").append(entry.getValue().getCalls()).append('\n');
+        }
+        text.append("# HELP conference_api_errors_total Failed calls of the API methods.\n")
+                .append("# TYPE conference_api_errors_total counter\n");
+        for (Map.Entry<String, EndpointMetrics.Stats> entry : snapshot.entrySet()) {
+            text.append("conference_api_errors_total{method=").append(quote(entry.getKey()))
+                    .append("} ").append(entry.getValue().getErrors()).append('\n');
+        }
+        text.append("# HELP conference_api_latency_seconds Latency of the API methods.\n")
+                .append("# TYPE conference_api_latency_seconds histogram\n");
+        for (Map.Entry<String, EndpointMetrics.Stats> entry : snapshot.entrySet()) {
+            String method = quote(entry.getKey());
+            EndpointMetrics.Stats stats = entry.getValue();
+            long[] counts = stats.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                text.append("conference_api_latency_seconds_bucket{method=").append(method)
+                        .append(",le=\"").append(i < bounds.length ? seconds(bounds[i]) : "+Inf")
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append("conference_api_latency_seconds_sum{method=").append(method)
+                    .append("} ").append(seconds(stats.getTotalMicros())).append('\n');
+            // The count is taken from the buckets, so that it always matches the +Inf bucket.
+            text.append("conference_api_latency_seconds_count{method=").append(method)
+                    .append("} ").append(cumulative).append('\n');
+        }
+        text.append("# HELP conference_query_cache_hits_total Query cache hits.\n")
+                .append("# TYPE conference_query_cache_hits_total counter\n")
+                .append("conference_query_cache_hits_total ")
+                .append(ConferenceQueryCache.getHits()).append('\n')
+                .append("# HELP conference_query_cache_misses_total Query cache misses.\n")
+                .append("# TYPE conference_query_cache_misses_total counter\n")
+                .append("conference_query_cache_misses_total ")
+                .append(ConferenceQueryCache.getMisses()).append('\n');
+        return text.toString();
+    }
+}
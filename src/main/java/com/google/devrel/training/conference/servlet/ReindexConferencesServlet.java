@@ -0,0 +1,94 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.ConferenceCatalog;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.EntityVersions;
+import com.google.devrel.training.conference.service.OfyService;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An admin servlet that saves every conference again, so that the properties indexed since it
+ * was written, startDate, endDate and seatShardCount, are added to the indexes and the
+ * conference is returned by the projection queries of ConferenceSummary.
+ *
+ * One request re-saves a batch of conferences, each in its own transaction so that no
+ * registration made meanwhile is overwritten, and enqueues a task for the next batch with the
+ * cursor of the query, until every conference has been saved. Once the last batch is done,
+ * conference.summaryProjection.enabled can be set to true.
+ *
+ * The response is a JSON object with the number of conferences re-saved by the request.
+ */
+public class ReindexConferencesServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(ReindexConferencesServlet.class.getName());
+
+    static final String URL = "/admin/reindex_conferences";
+
+    /**
+     * The number of conferences re-saved by one request.
+     */
+    static final int BATCH_SIZE = 100;
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Query<Conference> query = ofy().load().type(Conference.class).limit(BATCH_SIZE);
+        String cursor = request.getParameter("cursor");
+        if (cursor != null && !cursor.isEmpty()) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Key<Conference>> iterator = query.keys().iterator();
+        List<Key<Conference>> keys = new ArrayList<>(BATCH_SIZE);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        List<String> websafeKeys = new ArrayList<>(keys.size());
+        for (final Key<Conference> key : keys) {
+            boolean saved = OfyService.transactWithBackoff(new Work<Boolean>() {
+                @Override
+                public Boolean run() {
+                    Conference conference = ofy().load().key(key).now();
+                    if (conference == null) {
+                        return false;
+                    }
+                    ofy().save().entity(conference).now();
+                    return true;
+                }
+            });
+            if (saved) {
+                websafeKeys.add(key.getString());
+            }
+        }
+        if (!websafeKeys.isEmpty()) {
+            EntityVersions.invalidate(keys);
+            ConferenceQueryCache.invalidate();
+            ConferenceCatalog.recordChanges(websafeKeys);
+        }
+        if (keys.size() == BATCH_SIZE) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(URL)
+                    .param("cursor", iterator.getCursor().toWebSafeString()));
+        } else {
+            LOG.info("Every conference has been re-saved");
+        }
+        response.setContentType("application/json; charset=utf-8");
+        response.getWriter().write("{\"resaved\":" + websafeKeys.size() + "}");
+    }
+}
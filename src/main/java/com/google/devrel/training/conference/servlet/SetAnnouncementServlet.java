@@ -0,0 +1,26 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.AnnouncementService;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for putting announcements in memcache.
+ * The announcement announces conferences which are nearly sold out
+ * (defined as having 1 - 4 seats left).
+ *
+ * It is requested by cron and by the push tasks enqueued when seats change.
+ */
+public class SetAnnouncementServlet extends HttpServlet {
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        AnnouncementService.refreshAnnouncement();
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+}
@@ -3,24 +3,68 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
 
-import static com.google.devrel.training.conference.service.OfyService.factory;
+import javax.servlet.http.HttpServletRequest;
+
+import static com.google.devrel.training.conference.service.OfyService.transactWithBackoff;
 
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.users.User;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Announcement;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCreateResult;
+import com.google.devrel.training.conference.domain.ConferenceSuggestion;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceBatchForm;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.AnnouncementService;
+import com.google.devrel.training.conference.service.ConferenceCatalog;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceQueryPlanner;
+import com.google.devrel.training.conference.service.EntityVersions;
+import com.google.devrel.training.conference.service.SeatShardService;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 
 /**
@@ -30,6 +74,25 @@ import com.googlecode.objectify.cmd.Query;
         Constants.WEB_CLIENT_ID, Constants.API_EXPLORER_CLIENT_ID }, description = "API for the Conference Central Backend application.")
 public class ConferenceApi {
 
+    private static final Logger LOG = Logger.getLogger(ConferenceApi.class.getName());
+
+    /**
+     * The largest number of entities written by one put of a batch create, which is the
+     * datastore's limit.
+     */
+    private static final int BATCH_PUT_SIZE = 500;
+
+    /**
+     * The request attribute with the entity tag of the response, which ConditionalGetFilter
+     * sends as the ETag header.
+     */
+    public static final String ETAG_ATTRIBUTE = "conference.etag";
+
+    /**
+     * The version stamp of an entity that doesn't exist.
+     */
+    private static final String MISSING_STAMP = "none";
+
     /*
      * Get the display name from the user's email. For example, if the email is
      * lemoncake@example.com, then the display name becomes "lemoncake."
@@ -38,6 +101,412 @@ public class ConferenceApi {
         return email == null ? null : email.substring(0, email.indexOf("@"));
     }
 
+    /**
+     * Creates a Profile with default values for a user who doesn't have one yet.
+     */
+    private static Profile newDefaultProfile(User user) {
+        String email = user.getEmail();
+        return new Profile(user.getUserId(), extractDefaultDisplayNameFromEmail(email), email,
+                TeeShirtSize.NOT_SPECIFIED);
+    }
+
+    /**
+     * Loads the organizers' Profiles of the given conferences with a single batch get and fills
+     * in each conference's organizer display name, so that serializing the result does not
+     * fetch a Profile per conference.
+     *
+     * @param conferences the conferences to hydrate.
+     */
+    private static void hydrateOrganizers(Collection<Conference> conferences) {
+        if (conferences.isEmpty()) {
+            return;
+        }
+        Set<Key<Profile>> organizerKeys = new LinkedHashSet<>();
+        for (Conference conference : conferences) {
+            organizerKeys.add(conference.getProfileKey());
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizerKeys);
+        for (Conference conference : conferences) {
+            conference.hydrateOrganizer(organizers.get(conference.getProfileKey()));
+        }
+    }
+
+    /**
+     * Loads the organizers' Profiles of the given summaries with a single batch get and fills
+     * in each summary's organizer display name.
+     *
+     * @param summaries the summaries to hydrate.
+     */
+    private static void hydrateSummaryOrganizers(Collection<ConferenceSummary> summaries) {
+        if (summaries.isEmpty()) {
+            return;
+        }
+        Set<Key<Profile>> organizerKeys = new LinkedHashSet<>();
+        for (ConferenceSummary summary : summaries) {
+            organizerKeys.add(summary.getProfileKey());
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizerKeys);
+        for (ConferenceSummary summary : summaries) {
+            summary.hydrateOrganizer(organizers.get(summary.getProfileKey()));
+        }
+    }
+
+    /**
+     * Returns a page of summaries, with their organizers hydrated.
+     *
+     * @param summaries the summaries on the page.
+     * @param nextPageToken the token for the next page, or null if there is none.
+     */
+    private static CollectionResponse<ConferenceSummary> summaryPage(
+            List<ConferenceSummary> summaries, String nextPageToken) {
+        hydrateSummaryOrganizers(summaries);
+        return CollectionResponse.<ConferenceSummary>builder()
+                .setItems(summaries)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * Returns the summaries of a page of conferences loaded whole.
+     */
+    private static CollectionResponse<ConferenceSummary> summaryPage(
+            CollectionResponse<Conference> page) {
+        List<ConferenceSummary> summaries = new ArrayList<>(page.getItems().size());
+        for (Conference conference : page.getItems()) {
+            summaries.add(new ConferenceSummary(conference));
+        }
+        return summaryPage(summaries, page.getNextPageToken());
+    }
+
+    private static String profileStamp(Profile profile) {
+        return profile == null ? MISSING_STAMP : Long.toString(profile.getVersion());
+    }
+
+    /**
+     * Returns the version stamp of a conference with its seats hydrated. The seats booked on
+     * SeatShards don't change the version of the Conference, so they are part of the stamp.
+     */
+    private static String conferenceStamp(Conference conference) {
+        return conference.getVersion() + "." + conference.getSeatsAvailable();
+    }
+
+    private static String etag(String... stamps) {
+        return '"' + Joiner.on('-').join(stamps) + '"';
+    }
+
+    /**
+     * Records the entity tag of the response for ConditionalGetFilter, and answers with 304
+     * when the client's copy has that tag.
+     *
+     * @param request the request, or null when the method is called outside of Endpoints.
+     * @param etag the entity tag of the response.
+     * @throws NotModifiedException when the request has an If-None-Match header that names the
+     *             tag.
+     */
+    private static void checkNotModified(HttpServletRequest request, String etag)
+            throws NotModifiedException {
+        if (request == null) {
+            return;
+        }
+        request.setAttribute(ETAG_ATTRIBUTE, etag);
+        if (NotModifiedException.matches(request.getHeader("If-None-Match"), etag)) {
+            throw new NotModifiedException(etag);
+        }
+    }
+
+    /**
+     * Returns the page size to use for the requested one.
+     *
+     * @param pageSize the requested page size, or a non-positive number for the default.
+     * @return the page size, at most Constants.MAX_PAGE_SIZE.
+     */
+    private static int pageSize(int pageSize) {
+        if (pageSize <= 0) {
+            pageSize = Constants.DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(pageSize, Constants.MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Runs one page of the given query, starting at the web-safe cursor if one is given.
+     *
+     * One extra entity is requested so that the next page token is only returned when there
+     * is a next page.
+     *
+     * @param query the query to run, with its filters and sort orders.
+     * @param cursor the web-safe cursor returned with the previous page, or null.
+     * @param pageSize the requested page size, or a non-positive number for the default.
+     * @return the conferences on the page, with their organizers hydrated.
+     */
+    private static CollectionResponse<Conference> queryPage(Query<Conference> query,
+            String cursor, int pageSize) {
+        return queryPage(query, Predicates.<Conference>alwaysTrue(), cursor, pageSize);
+    }
+
+    /**
+     * Runs one page of the given query, keeping only the conferences that match the residual
+     * filters of a query plan, which are applied to the results as they are streamed.
+     *
+     * Conferences that don't match don't count towards the page, so at most
+     * Constants.MAX_SCANNED_PER_PAGE conferences are read for one page. When that many have
+     * been read, the page may be short, and the next page token continues the scan.
+     *
+     * @param query the query to run, with its filters and sort orders.
+     * @param residual the filters that the query doesn't apply.
+     * @param cursor the web-safe cursor returned with the previous page, or null.
+     * @param pageSize the requested page size, or a non-positive number for the default.
+     * @return the conferences on the page, with their organizers hydrated.
+     */
+    private static CollectionResponse<Conference> queryPage(Query<Conference> query,
+            Predicate<? super Conference> residual, String cursor, int pageSize) {
+        pageSize = pageSize(pageSize);
+        int scanLimit = residual == Predicates.<Conference>alwaysTrue()
+                ? pageSize + 1 : Constants.MAX_SCANNED_PER_PAGE;
+        // Fetch about a page at a time, as a residual filter rarely needs the whole scan.
+        query = query.limit(scanLimit).chunk(pageSize + 1);
+        if (cursor != null && !cursor.isEmpty()) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Conference> iterator = query.iterator();
+        List<Conference> result = new ArrayList<>(pageSize);
+        Cursor pageEnd = null;
+        Cursor nextCursor = null;
+        int scanned = 0;
+        while (iterator.hasNext()) {
+            Conference conference = iterator.next();
+            scanned++;
+            if (!residual.apply(conference)) {
+                continue;
+            }
+            if (result.size() == pageSize) {
+                nextCursor = pageEnd;
+                break;
+            }
+            result.add(conference);
+            if (result.size() == pageSize) {
+                pageEnd = iterator.getCursor();
+            }
+        }
+        if (nextCursor == null && scanned == scanLimit) {
+            // The scan stopped at its limit, so there may be more matches after it.
+            nextCursor = result.size() == pageSize ? pageEnd : iterator.getCursor();
+        }
+        String nextPageToken = nextCursor == null ? null : nextCursor.toWebSafeString();
+        // To avoid separate datastore gets for each Conference, batch-load the Profiles.
+        hydrateOrganizers(result);
+        SeatShardService.hydrateSeats(result);
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * The state of one of the queries merged by
+     * {@link ConferenceApi#queryMergedPage(List, Comparator, Predicate, String, int)}: the
+     * Conference entity at its head and the cursor just before it.
+     */
+    private static class MergedQuerySource {
+        /**
+         * The cursor of a query that has no more results.
+         */
+        static final String END = "";
+
+        /**
+         * The cursor of a query that hasn't returned any results yet.
+         */
+        static final String START = "*";
+
+        private final QueryResultIterator<Entity> iterator;
+
+        private final int scanLimit;
+
+        private Entity head;
+
+        /**
+         * The cursor just before the head, or null before the query's first result.
+         */
+        private Cursor headCursor;
+
+        private int scanned;
+
+        MergedQuerySource(QueryResultIterator<Entity> iterator, Cursor startCursor,
+                int scanLimit) {
+            this.iterator = iterator;
+            this.headCursor = startCursor;
+            this.scanLimit = scanLimit;
+        }
+
+        void advance() {
+            head = null;
+            if (iterator == null) {
+                return;
+            }
+            if (scanned > 0) {
+                headCursor = iterator.getCursor();
+            }
+            if (iterator.hasNext()) {
+                head = iterator.next();
+                scanned++;
+            }
+        }
+
+        /**
+         * Returns the web-safe cursor to resume this query at, {@link #START} if it is to be
+         * run from the start, or {@link #END} if it has no more results.
+         */
+        String resumeCursor() {
+            Cursor cursor;
+            if (head != null) {
+                cursor = headCursor;
+            } else if (iterator != null && scanned == scanLimit) {
+                // The query stopped at its limit, so there may be more results after it.
+                cursor = iterator.getCursor();
+            } else {
+                return END;
+            }
+            return cursor == null ? START : cursor.toWebSafeString();
+        }
+    }
+
+    /**
+     * Runs one page of the union of the given queries, like
+     * {@link #queryPage(Query, Predicate, String, int)}.
+     *
+     * The queries are all started before any of their results are read, so they run in
+     * parallel. Their results are merged in the given order, which must be the order of the
+     * queries, and a conference returned by several queries is kept once. The next page token
+     * holds a cursor per query, separated by commas, which are not used in web-safe cursors.
+     *
+     * The queries are low-level queries of Conference entities, whose cursors are free to read
+     * after every result. The conferences of the page are then loaded with a batch get.
+     *
+     * @param queries the queries to run, with their filters and sort orders.
+     * @param order the order of the results of the queries.
+     * @param residual the filters that the queries don't apply, on Conference entities.
+     * @param cursor the token returned with the previous page, or null.
+     * @param pageSize the requested page size, or a non-positive number for the default.
+     * @return the conferences on the page, with their organizers hydrated.
+     * @throws IllegalArgumentException when the cursor is not a token of these queries.
+     */
+    private static CollectionResponse<Conference> queryMergedPage(
+            List<com.google.appengine.api.datastore.Query> queries,
+            Comparator<? super Entity> order, Predicate<? super Entity> residual,
+            String cursor, int pageSize) {
+        pageSize = pageSize(pageSize);
+        int scanLimit = residual == Predicates.<Entity>alwaysTrue()
+                ? pageSize + 1 : Constants.MAX_SCANNED_PER_PAGE;
+        String[] cursors = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            cursors = cursor.split(",", -1);
+            if (cursors.length != queries.size()) {
+                throw new IllegalArgumentException("The cursor doesn't match the query.");
+            }
+        }
+        List<MergedQuerySource> sources = new ArrayList<>(queries.size());
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (int i = 0; i < queries.size(); i++) {
+            FetchOptions fetchOptions = FetchOptions.Builder.withLimit(scanLimit);
+            Cursor startCursor = null;
+            if (cursors != null && cursors[i].equals(MergedQuerySource.END)) {
+                sources.add(new MergedQuerySource(null, null, scanLimit));
+                continue;
+            }
+            if (cursors != null && !cursors[i].equals(MergedQuerySource.START)) {
+                startCursor = Cursor.fromWebSafeString(cursors[i]);
+                fetchOptions.startCursor(startCursor);
+            }
+            sources.add(new MergedQuerySource(
+                    datastore.prepare(queries.get(i)).asQueryResultIterator(fetchOptions),
+                    startCursor, scanLimit));
+        }
+        for (MergedQuerySource source : sources) {
+            source.advance();
+        }
+        List<Key<Conference>> resultKeys = new ArrayList<>(pageSize);
+        Set<Key<Conference>> seen = new HashSet<>();
+        boolean more = false;
+        while (true) {
+            MergedQuerySource next = null;
+            for (MergedQuerySource source : sources) {
+                if (source.head != null
+                        && (next == null || order.compare(source.head, next.head) < 0)) {
+                    next = source;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            Key<Conference> conferenceKey = Key.create(next.head.getKey());
+            if (!seen.contains(conferenceKey) && residual.apply(next.head)) {
+                if (resultKeys.size() == pageSize) {
+                    more = true;
+                    break;
+                }
+                resultKeys.add(conferenceKey);
+                seen.add(conferenceKey);
+            }
+            next.advance();
+        }
+        List<String> resumeCursors = new ArrayList<>(sources.size());
+        for (MergedQuerySource source : sources) {
+            String resumeCursor = source.resumeCursor();
+            more |= !resumeCursor.equals(MergedQuerySource.END);
+            resumeCursors.add(resumeCursor);
+        }
+        String nextPageToken = more ? Joiner.on(',').join(resumeCursors) : null;
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(resultKeys);
+        List<Conference> result = new ArrayList<>(resultKeys.size());
+        for (Key<Conference> conferenceKey : resultKeys) {
+            Conference conference = conferences.get(conferenceKey);
+            if (conference != null) {
+                result.add(conference);
+            }
+        }
+        hydrateOrganizers(result);
+        SeatShardService.hydrateSeats(result);
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * Runs one page of the given projection query of conference summaries, like
+     * {@link #queryPage(Query, String, int)}.
+     *
+     * @param query the projection query returned by ConferenceSummary.newProjectionQuery, with
+     *            its filters and sort orders.
+     * @param fixedValues the values of the properties left out of the projection.
+     * @param cursor the web-safe cursor returned with the previous page, or null.
+     * @param pageSize the requested page size, or a non-positive number for the default.
+     * @return the summaries on the page, with their seats hydrated.
+     */
+    private static CollectionResponse<ConferenceSummary> querySummaryPage(
+            com.google.appengine.api.datastore.Query query, Map<String, Object> fixedValues,
+            String cursor, int pageSize) {
+        pageSize = pageSize(pageSize);
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize + 1);
+        if (cursor != null && !cursor.isEmpty()) {
+            fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Entity> iterator = DatastoreServiceFactory.getDatastoreService()
+                .prepare(query).asQueryResultIterator(fetchOptions);
+        List<ConferenceSummary> result = new ArrayList<>(pageSize);
+        while (result.size() < pageSize && iterator.hasNext()) {
+            result.add(new ConferenceSummary(iterator.next(), fixedValues));
+        }
+        String nextPageToken = null;
+        if (result.size() == pageSize) {
+            Cursor nextCursor = iterator.getCursor();
+            if (iterator.hasNext() && nextCursor != null) {
+                nextPageToken = nextCursor.toWebSafeString();
+            }
+        }
+        SeatShardService.hydrateSummarySeats(result);
+        return summaryPage(result, nextPageToken);
+    }
+
     /**
      * Creates or updates a Profile object associated with the given user
      * object.
@@ -70,6 +539,13 @@ public class ConferenceApi {
           if(user == null){
         	  throw new UnauthorizedException("Authorization required");
           }
+
+        // Start loading the existing profile while the form is read; it is only waited for
+        // when it is needed below. Unlike load().key(), which waits for now() to start the
+        // get, load().keys() starts it at once.
+        Key<Profile> profileKey = Key.create(Profile.class, user.getUserId());
+        Map<Key<Profile>, Profile> existingProfile =
+                ofy().load().keys(Collections.singleton(profileKey));
         
         
         // TODO 1
@@ -94,7 +570,7 @@ public class ConferenceApi {
         mainEmail = user.getEmail();
         
         
-        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+        Profile profile = existingProfile.get(profileKey);
         
         if(profile==null){
         	if(displayName == null){
@@ -111,6 +587,7 @@ public class ConferenceApi {
 
 
          ofy().save().entity(profile).now();
+         EntityVersions.invalidate(profileKey);
         
         // Return the profile
         return profile;
@@ -120,14 +597,21 @@ public class ConferenceApi {
      * Returns a Profile object associated with the given user object. The cloud
      * endpoints system automatically inject the User object.
      *
+     * The response is tagged with the version of the Profile. When the request's
+     * If-None-Match header names the current version, it is answered with 304, from the
+     * version stamp cached by EntityVersions without loading the Profile if it is cached.
+     *
      * @param user
      *            A User object injected by the cloud endpoints.
+     * @param request the HTTP request, injected by the cloud endpoints.
      * @return Profile object.
      * @throws UnauthorizedException
      *             when the User object is null.
+     * @throws NotModifiedException when the client's copy is current.
      */
     @ApiMethod(name = "getProfile", path = "profile", httpMethod = HttpMethod.GET)
-    public Profile getProfile(final User user) throws UnauthorizedException {
+    public Profile getProfile(final User user, final HttpServletRequest request)
+            throws UnauthorizedException, NotModifiedException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
@@ -135,8 +619,18 @@ public class ConferenceApi {
         // TODO
         // load the Profile Entity
         String userId = user.getUserId(); // TODO
-        Key key = Key.create(Profile.class, userId); // TODO
-        Profile profile = (Profile) ofy().load().key(key).now(); // TODO load the Profile entity
+        Key<Profile> key = Key.create(Profile.class, userId); // TODO
+        EntityVersions.Lookup versions = EntityVersions.lookup(key);
+        String stamp = versions.get(key);
+        if (stamp != null && !stamp.equals(MISSING_STAMP)) {
+            checkNotModified(request, etag(stamp));
+        }
+        Profile profile = ofy().load().key(key).now(); // TODO load the Profile entity
+        stamp = profileStamp(profile);
+        versions.put(key, stamp);
+        if (profile != null) {
+            checkNotModified(request, etag(stamp));
+        }
         return profile;
     }
     
@@ -158,59 +652,451 @@ public class ConferenceApi {
          // TODO (Lesson 4)
          // Allocate a key for the conference -- let App Engine allocate the ID
          // Don't forget to include the parent Profile in the allocated ID
-         final Key<Conference> conferenceKey = factory().allocateId(profileKey, Conference.class);
+         // The ID comes from a pool reserved ahead; the load of the existing Profile is
+         // started first, so that it overlaps with the allocation when the pool is empty.
+         Map<Key<Profile>, Profile> existingProfile =
+                 ofy().load().keys(Collections.singleton(profileKey));
 
          // TODO (Lesson 4)
          // Get the Conference Id from the Key
-         final long conferenceId = conferenceKey.getId();
-
-         // TODO (Lesson 4)
-         // Get the existing Profile entity for the current user if there is one
-         // Otherwise create a new Profile entity with default values
-         Profile profile = ofy().load().key(profileKey).now();
-          if(profile == null){
-        	  profile = new Profile(userId,extractDefaultDisplayNameFromEmail(user.getEmail()),user.getEmail(),TeeShirtSize.NOT_SPECIFIED);
-          }
+         final long conferenceId = ConferenceIdAllocator.nextId(profileKey);
 
          // TODO (Lesson 4)
          // Create a new Conference Entity, specifying the user's Profile entity
          // as the parent of the conference
          Conference conference = new Conference(conferenceId,userId,conferenceForm);
 
+         // TODO (Lesson 4)
+         // Get the existing Profile entity for the current user if there is one
+         // Otherwise create a new Profile entity with default values
+         Profile profile = existingProfile.get(profileKey);
+         if (profile == null) {
+             profile = newDefaultProfile(user);
+         }
+
          // TODO (Lesson 4)
          // Save Conference and Profile Entities
-          ofy().save().entities(profile,conference);
+          ofy().save().entities(profile,conference).now();
+          EntityVersions.invalidate(profileKey);
+          ConferenceQueryCache.invalidate();
+          ConferenceCatalog.recordChange(conference.getWebsafeKey());
 
           return conference;
     }
+
+    /**
+     * Creates a batch of conferences organized by the user.
+     *
+     * Every form is checked before anything is written, and the invalid ones are reported
+     * without stopping the others. The IDs of the valid ones are allocated with at most one RPC
+     * and they are written with one batch put per {@link #BATCH_PUT_SIZE} entities, so the cost
+     * of a batch is a handful of round trips whatever its size.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @param conferenceBatchForm the conferences to create.
+     * @return a result per form, in the order of the forms.
+     * @throws UnauthorizedException when the User object is null.
+     * @throws BadRequestException when there are no forms or more than
+     *             {@link Constants#MAX_CONFERENCE_BATCH_SIZE}.
+     */
+    @ApiMethod(name = "createConferencesBatch", path = "conferences/batch",
+            httpMethod = HttpMethod.POST)
+    public CollectionResponse<ConferenceCreateResult> createConferencesBatch(final User user,
+            final ConferenceBatchForm conferenceBatchForm)
+            throws UnauthorizedException, BadRequestException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        List<ConferenceForm> forms =
+                conferenceBatchForm == null ? null : conferenceBatchForm.getConferences();
+        if (forms == null || forms.isEmpty()
+                || forms.size() > Constants.MAX_CONFERENCE_BATCH_SIZE) {
+            throw new BadRequestException("A batch must have between 1 and "
+                    + Constants.MAX_CONFERENCE_BATCH_SIZE + " conferences");
+        }
+        ConferenceCreateResult[] results = new ConferenceCreateResult[forms.size()];
+        List<Integer> valid = new ArrayList<>();
+        for (int i = 0; i < forms.size(); i++) {
+            String error = validateConferenceForm(forms.get(i));
+            if (error == null) {
+                valid.add(i);
+            } else {
+                results[i] = ConferenceCreateResult.failed(i, error);
+            }
+        }
+        if (!valid.isEmpty()) {
+            String userId = user.getUserId();
+            Key<Profile> profileKey = Key.create(Profile.class, userId);
+            Map<Key<Profile>, Profile> existingProfile =
+                    ofy().load().keys(Collections.singleton(profileKey));
+            long[] ids = ConferenceIdAllocator.nextIds(profileKey, valid.size());
+            List<Conference> conferences = new ArrayList<>(valid.size());
+            for (int i = 0; i < valid.size(); i++) {
+                conferences.add(new Conference(ids[i], userId, forms.get(valid.get(i))));
+            }
+            Profile profile = existingProfile.get(profileKey);
+            List<Object> entities = new ArrayList<>(conferences.size() + 1);
+            if (profile == null) {
+                entities.add(newDefaultProfile(user));
+            }
+            entities.addAll(conferences);
+            saveInBatches(entities, conferences, valid, results);
+            if (profile == null) {
+                EntityVersions.invalidate(profileKey);
+            }
+        }
+        return CollectionResponse.<ConferenceCreateResult>builder()
+                .setItems(Arrays.asList(results))
+                .build();
+    }
+
+    /**
+     * Returns why a conference can't be created from the form, or null if it can.
+     */
+    private static String validateConferenceForm(ConferenceForm conferenceForm) {
+        if (conferenceForm == null) {
+            return "The conference is missing";
+        }
+        if (conferenceForm.getName() == null || conferenceForm.getName().trim().isEmpty()) {
+            return "The name is required";
+        }
+        if (conferenceForm.getMaxAttendees() < 0) {
+            return "maxAttendees can't be negative";
+        }
+        if (conferenceForm.getStartDate() != null && conferenceForm.getEndDate() != null
+                && conferenceForm.getEndDate().before(conferenceForm.getStartDate())) {
+            return "The end date is before the start date";
+        }
+        return null;
+    }
+
+    /**
+     * Writes the entities of a batch create with one put per {@link #BATCH_PUT_SIZE} of them,
+     * and fills in the results of the conferences. The puts are made one after the other,
+     * because they all write the entity group of the organizer's Profile.
+     *
+     * @param entities the new Profile if there is one, then the conferences.
+     * @param conferences the conferences, in the order of the valid forms.
+     * @param valid the positions of the valid forms in the batch.
+     * @param results the results, by position in the batch.
+     */
+    private static void saveInBatches(List<Object> entities, List<Conference> conferences,
+            List<Integer> valid, ConferenceCreateResult[] results) {
+        int offset = entities.size() - conferences.size();
+        List<String> created = new ArrayList<>(conferences.size());
+        for (int from = 0; from < entities.size(); from += BATCH_PUT_SIZE) {
+            int to = Math.min(from + BATCH_PUT_SIZE, entities.size());
+            String error = null;
+            try {
+                ofy().save().entities(entities.subList(from, to)).now();
+            } catch (DatastoreFailureException | DatastoreTimeoutException
+                    | ConcurrentModificationException e) {
+                LOG.warning("Could not save a batch of conferences: " + e);
+                error = "Could not be saved, please try again";
+            }
+            for (int entity = Math.max(from, offset); entity < to; entity++) {
+                int number = entity - offset;
+                int index = valid.get(number);
+                if (error == null) {
+                    results[index] = ConferenceCreateResult.created(index, conferences.get(number));
+                    created.add(conferences.get(number).getWebsafeKey());
+                } else {
+                    results[index] = ConferenceCreateResult.failed(index, error);
+                }
+            }
+        }
+        if (!created.isEmpty()) {
+            ConferenceQueryCache.invalidate();
+            ConferenceCatalog.recordChanges(created);
+        }
+    }
     
+    /**
+     * Runs one page of the plan of the query of the ConferenceQueryForm.
+     */
+    private static CollectionResponse<Conference> queryPlanPage(ConferenceQueryPlanner.Plan plan,
+            ConferenceQueryForm conferenceQueryForm) {
+        if (plan.isUnion()) {
+            return queryMergedPage(plan.getQueries(), plan.getOrder(),
+                    plan.hasResidualFilters()
+                            ? plan.getEntityPredicate() : Predicates.<Entity>alwaysTrue(),
+                    conferenceQueryForm.getCursor(), conferenceQueryForm.getPageSize());
+        }
+        return queryPage(plan.getQuery(),
+                plan.hasResidualFilters() ? plan : Predicates.<Conference>alwaysTrue(),
+                conferenceQueryForm.getCursor(), conferenceQueryForm.getPageSize());
+    }
+
+    /**
+     * Loads a page of conferences by key with a single batch get, in the order of the keys.
+     *
+     * @param websafeKeys the web-safe keys of the conferences on the page.
+     * @param nextPageToken the token for the next page, or null.
+     * @return the conferences on the page, with their organizers hydrated.
+     */
+    private static CollectionResponse<Conference> loadPage(List<String> websafeKeys,
+            String nextPageToken) {
+        List<Key<Conference>> conferenceKeys = new ArrayList<>(websafeKeys.size());
+        for (String websafeKey : websafeKeys) {
+            conferenceKeys.add(Key.<Conference>create(websafeKey));
+        }
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(conferenceKeys);
+        List<Conference> result = new ArrayList<>(conferenceKeys.size());
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            Conference conference = conferences.get(conferenceKey);
+            if (conference != null) {
+                result.add(conference);
+            }
+        }
+        hydrateOrganizers(result);
+        SeatShardService.hydrateSeats(result);
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * Queries one page of conferences matching the filters in the ConferenceQueryForm.
+     *
+     * When the conference catalog is enabled, the page is found in its in-memory indexes and
+     * loaded with a batch get. Otherwise pages are cached in memcache as lists of conference
+     * keys, so a repeated query costs a batch get instead of a datastore query.
+     *
+     * @param conferenceQueryForm the filters, the page size and the cursor of the page.
+     * @return the conferences on the page and the token for the next page, if any.
+     * @throws BadRequestException when the cursor is not one returned by this query.
+     */
     @ApiMethod(name="queryConferences" , path = "queryConferences" , httpMethod = HttpMethod.POST)
-    public List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm){
-    	  Iterable<Conference> conferenceIterable = conferenceQueryForm.getQuery();
-          List result = new ArrayList(0);
-          List<Key<Profile>> organizersKeyList = new ArrayList(0);
-          for (Conference conference : conferenceIterable) {
-              organizersKeyList.add(Key.create(Profile.class, conference.getOrganizerUserId()));
-              result.add(conference);
+    public CollectionResponse<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm)
+            throws BadRequestException {
+          if (ConferenceCatalog.canServe(conferenceQueryForm.getCursor())) {
+              ConferenceCatalog.Page page;
+              try {
+                  page = ConferenceCatalog.query(conferenceQueryForm.getFilters(),
+                          conferenceQueryForm.getCursor(),
+                          pageSize(conferenceQueryForm.getPageSize()));
+              } catch (IllegalArgumentException e) {
+                  throw new BadRequestException(e.getMessage());
+              }
+              return loadPage(page.getWebsafeKeys(), page.getNextPageToken());
+          }
+          String cacheKey = ConferenceQueryCache.cacheKey(conferenceQueryForm);
+          ConferenceQueryCache.CachedPage cachedPage = ConferenceQueryCache.get(cacheKey);
+          if (cachedPage != null) {
+              return loadPage(cachedPage.getWebsafeKeys(), cachedPage.getNextPageToken());
           }
-          // To avoid separate datastore gets for each Conference, pre-fetch the Profiles.
-          ofy().load().keys(organizersKeyList);
-          return result;
+          ConferenceQueryPlanner.Plan plan = conferenceQueryForm.plan();
+          CollectionResponse<Conference> page;
+          try {
+              page = queryPlanPage(plan, conferenceQueryForm);
+          } catch (IllegalArgumentException e) {
+              throw new BadRequestException(e.getMessage());
+          }
+          List<String> websafeKeys = new ArrayList<>(page.getItems().size());
+          for (Conference conference : page.getItems()) {
+              websafeKeys.add(conference.getWebsafeKey());
+          }
+          ConferenceQueryCache.put(cacheKey,
+                  new ConferenceQueryCache.CachedPage(websafeKeys, page.getNextPageToken()));
+          return page;
+    }
+
+    /**
+     * Queries one page of the summaries of the conferences matching the filters in the
+     * ConferenceQueryForm, in the same order as queryConferences.
+     *
+     * The summaries are read with a projection query when conference.summaryProjection.enabled
+     * is true, or from the conference catalog when it is enabled, so the whole conferences
+     * aren't loaded; their organizers' Profiles are, with one batch get. Use getConference for
+     * the details of a conference.
+     *
+     * @param conferenceQueryForm the filters, the page size and the cursor of the page.
+     * @return the summaries on the page and the token for the next page, if any.
+     * @throws BadRequestException when the cursor is not one returned by this query.
+     */
+    @ApiMethod(name = "queryConferenceSummaries", path = "queryConferenceSummaries",
+            httpMethod = HttpMethod.POST)
+    public CollectionResponse<ConferenceSummary> queryConferenceSummaries(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        if (ConferenceCatalog.canServe(conferenceQueryForm.getCursor())) {
+            ConferenceCatalog.Page page;
+            try {
+                page = ConferenceCatalog.query(conferenceQueryForm.getFilters(),
+                        conferenceQueryForm.getCursor(),
+                        pageSize(conferenceQueryForm.getPageSize()));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+            return summaryPage(page.getSummaries(), page.getNextPageToken());
+        }
+        ConferenceQueryPlanner.Plan plan = conferenceQueryForm.plan();
+        try {
+            if (ConferenceSummary.isProjectionEnabled() && !plan.hasResidualFilters()
+                    && !plan.isUnion()) {
+                return querySummaryPage(plan.getSummaryQuery(), plan.getEqualityValues(),
+                        conferenceQueryForm.getCursor(), conferenceQueryForm.getPageSize());
+            }
+            // The residual filters may need properties that aren't projected, and the merge of
+            // several queries needs the sort properties, so the conferences are loaded whole.
+            return summaryPage(queryPlanPage(plan, conferenceQueryForm));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
     }
     
+    /**
+     * Searches the names, descriptions and topics of the conferences for every word of the
+     * query, and returns one page of the summaries of the matches, best match first.
+     *
+     * The search runs on the in-memory index of the conference catalog, so it doesn't touch the
+     * datastore once the catalog is loaded; seats are as of the catalog snapshot.
+     *
+     * @param query the words to search for.
+     * @param cursor the token returned with the previous page, or null for the first page.
+     * @param limit the page size, or null for the default page size.
+     * @return the summaries on the page and the token for the next page, if any.
+     * @throws BadRequestException when the cursor is not one returned by this method.
+     */
+    @ApiMethod(name = "searchConferences", path = "searchConferences",
+            httpMethod = HttpMethod.GET)
+    public CollectionResponse<ConferenceSummary> searchConferences(
+            @Named("query") String query, @Nullable @Named("cursor") String cursor,
+            @Nullable @Named("limit") Integer limit) throws BadRequestException {
+        ConferenceCatalog.Page page;
+        try {
+            page = ConferenceCatalog.search(query, cursor, pageSize(limit == null ? 0 : limit));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return summaryPage(page.getSummaries(), page.getNextPageToken());
+    }
+
+    /**
+     * Suggests conferences whose name has a word that starts with what the user has typed, the
+     * ones with the most seats booked first.
+     *
+     * The suggestions come from a prefix index of the names kept in memory, so no datastore
+     * query is run per keystroke.
+     *
+     * @param prefix what the user has typed.
+     * @param limit the number of suggestions, or null for the default.
+     * @return the suggestions.
+     */
+    @ApiMethod(name = "suggestConferences", path = "suggestConferences",
+            httpMethod = HttpMethod.GET)
+    public CollectionResponse<ConferenceSuggestion> suggestConferences(
+            @Named("prefix") String prefix, @Nullable @Named("limit") Integer limit) {
+        int count = limit == null || limit <= 0 ? Constants.DEFAULT_SUGGESTIONS
+                : Math.min(limit, Constants.MAX_PAGE_SIZE);
+        return CollectionResponse.<ConferenceSuggestion>builder()
+                .setItems(ConferenceCatalog.suggest(prefix, count))
+                .build();
+    }
+
+    /**
+     * Returns one page of the conferences created by the user, ordered by name.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @param cursor the token returned with the previous page, or null for the first page.
+     * @param limit the page size, or null for the default page size.
+     * @return the conferences on the page and the token for the next page, if any.
+     * @throws UnauthorizedException when the User object is null.
+     * @throws BadRequestException when the cursor is not one returned by this method.
+     */
     @ApiMethod(name="getConferencesCreated" , path="getConferencesCreated" , httpMethod = HttpMethod.POST)
-    public List<Conference> getConferencesCreated(final User user) throws UnauthorizedException{
+    public CollectionResponse<Conference> getConferencesCreated(final User user,
+            @Nullable @Named("cursor") String cursor, @Nullable @Named("limit") Integer limit)
+            throws UnauthorizedException, BadRequestException {
     	
    	 if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
     	
     	String userId = user.getUserId();
-    	Key userKey = Key.create(Profile.class, userId);
-    	Query query = ofy().load().type(Conference.class).ancestor(userKey).order("name");
-    	return query.list();
+    	Key<Profile> userKey = Key.create(Profile.class, userId);
+    	Query<Conference> query = ofy().load().type(Conference.class).ancestor(userKey).order("name");
+    	try {
+    	    return queryPage(query, cursor, limit == null ? 0 : limit);
+    	} catch (IllegalArgumentException e) {
+    	    throw new BadRequestException(e.getMessage());
+    	}
+    }
+
+    /**
+     * Returns one page of the summaries of the conferences created by the user, ordered by
+     * name, read with a projection query when conference.summaryProjection.enabled is true.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @param cursor the token returned with the previous page, or null for the first page.
+     * @param limit the page size, or null for the default page size.
+     * @return the summaries on the page and the token for the next page, if any.
+     * @throws UnauthorizedException when the User object is null.
+     * @throws BadRequestException when the cursor is not one returned by this method.
+     */
+    @ApiMethod(name = "getConferenceSummariesCreated", path = "getConferenceSummariesCreated",
+            httpMethod = HttpMethod.POST)
+    public CollectionResponse<ConferenceSummary> getConferenceSummariesCreated(final User user,
+            @Nullable @Named("cursor") String cursor, @Nullable @Named("limit") Integer limit)
+            throws UnauthorizedException, BadRequestException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        if (!ConferenceSummary.isProjectionEnabled()) {
+            return summaryPage(getConferencesCreated(user, cursor, limit));
+        }
+        com.google.appengine.api.datastore.Query query =
+                ConferenceSummary.newProjectionQuery(Collections.<String>emptySet())
+                        .setAncestor(Key.create(Profile.class, user.getUserId()).getRaw())
+                        .addSort("name");
+        try {
+            return querySummaryPage(query, Collections.<String, Object>emptyMap(), cursor,
+                    limit == null ? 0 : limit);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
     }
   
+    /**
+     * Returns the conferences that the user has registered to attend, in registration order.
+     *
+     * The conference keys stored on the Profile are resolved with a single batch get, so the
+     * cost does not grow with a query or a get per registration. Conferences that no longer
+     * exist are left out.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @return the conferences that the user will attend.
+     * @throws UnauthorizedException when the User object is null.
+     * @throws NotFoundException when the user doesn't have a Profile.
+     */
+    @ApiMethod(name = "getConferencesToAttend", path = "getConferencesToAttend",
+            httpMethod = HttpMethod.GET)
+    public CollectionResponse<Conference> getConferencesToAttend(final User user)
+            throws UnauthorizedException, NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        if (profile == null) {
+            throw new NotFoundException("Profile doesn't exist.");
+        }
+        List<Key<Conference>> keysToAttend = new ArrayList<>();
+        for (String websafeConferenceKey : profile.getConferenceKeysToAttend()) {
+            keysToAttend.add(Key.<Conference>create(websafeConferenceKey));
+        }
+        Map<Key<Conference>, Conference> loaded = ofy().load().keys(keysToAttend);
+        List<Conference> result = new ArrayList<>(loaded.size());
+        for (Key<Conference> key : keysToAttend) {
+            Conference conference = loaded.get(key);
+            if (conference != null) {
+                result.add(conference);
+            }
+        }
+        hydrateOrganizers(result);
+        SeatShardService.hydrateSeats(result);
+        return CollectionResponse.<Conference>builder().setItems(result).build();
+    }
+
     public List<Conference> filterCriteria(){
         Query query = ofy().load().type(Conference.class);
         query = query.filter("city =", "London");
@@ -219,4 +1105,358 @@ public class ConferenceApi {
        
     	return query.list();
     }
+
+    /**
+     * Returns a Conference object with the given conferenceId.
+     *
+     * The Conference and its organizer's Profile are loaded with one batch get. The response is
+     * tagged with the version stamps of both, since it has the organizer's display name. When
+     * the request's If-None-Match header names the current versions, it is answered with 304,
+     * from the version stamps cached by EntityVersions without loading anything if they are
+     * cached.
+     *
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param request the HTTP request, injected by the cloud endpoints.
+     * @return a Conference object with the given conferenceId.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws NotModifiedException when the client's copy is current.
+     */
+    @ApiMethod(name = "getConference", path = "conference/{websafeConferenceKey}",
+            httpMethod = HttpMethod.GET)
+    public Conference getConference(
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            final HttpServletRequest request)
+            throws NotFoundException, NotModifiedException {
+        Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        Key<Profile> organizerKey = conferenceKey.getParent();
+        EntityVersions.Lookup versions = EntityVersions.lookup(conferenceKey, organizerKey);
+        String conferenceStamp = versions.get(conferenceKey);
+        String organizerStamp = versions.get(organizerKey);
+        if (conferenceStamp != null && organizerStamp != null) {
+            checkNotModified(request, etag(conferenceStamp, organizerStamp));
+        }
+        Map<Key<Object>, Object> entities = ofy().load().keys(conferenceKey, organizerKey);
+        Conference conference = (Conference) entities.get(conferenceKey);
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        Profile organizer = (Profile) entities.get(organizerKey);
+        conference.hydrateOrganizer(organizer);
+        SeatShardService.hydrateSeats(Collections.singletonList(conference));
+        conferenceStamp = conferenceStamp(conference);
+        organizerStamp = profileStamp(organizer);
+        versions.put(conferenceKey, conferenceStamp);
+        versions.put(organizerKey, organizerStamp);
+        checkNotModified(request, etag(conferenceStamp, organizerStamp));
+        return conference;
+    }
+
+    /**
+     * Just a wrapper for Boolean.
+     * We need this wrapped Boolean because endpoints functions must return
+     * an object instance, they can't return a Type class such as
+     * String or Integer or Boolean
+     */
+    public static class WrappedBoolean {
+
+        private final Boolean result;
+        private final String reason;
+
+        public WrappedBoolean(Boolean result) {
+            this.result = result;
+            this.reason = "";
+        }
+
+        public WrappedBoolean(Boolean result, String reason) {
+            this.result = result;
+            this.reason = reason;
+        }
+
+        public Boolean getResult() {
+            return result;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * Turns the failure reason of a registration transaction into the matching exception.
+     */
+    private static WrappedBoolean checkRegistrationResult(WrappedBoolean result)
+            throws NotFoundException, ForbiddenException, ConflictException,
+            ServiceUnavailableException {
+        if (result.getReason().contains("No Conference found with key")) {
+            throw new NotFoundException(result.getReason());
+        } else if (result.getReason().equals("Already registered")) {
+            throw new ConflictException("You have already registered");
+        } else if (result.getReason().equals("Not registered")) {
+            throw new ConflictException("You are not registered for this conference");
+        } else if (result.getReason().equals("No seats available")) {
+            throw new ConflictException("There are no seats available");
+        } else if (result.getReason().equals("No seat shards found")) {
+            throw new ServiceUnavailableException(
+                    "The seats of this conference can't be updated, please try again later");
+        } else if (!result.getResult()) {
+            throw new ForbiddenException(result.getReason());
+        }
+        return result;
+    }
+
+    /**
+     * Books a seat of a sharded conference for the given Profile, inside the registration
+     * transaction.
+     *
+     * Only a randomly chosen shard with seats left and the Profile are written, so concurrent
+     * bookings that land on different shards do not collide. When the chosen shard has been
+     * emptied since it was picked, the transaction is retried and another shard is picked.
+     */
+    private static WrappedBoolean bookShardedSeat(Conference conference, Profile profile,
+            String websafeConferenceKey) {
+        Key<SeatShard> shardKey = SeatShardService.pickShardWithSeats(conference);
+        if (shardKey == null) {
+            return new WrappedBoolean(false, "No seats available");
+        }
+        SeatShard shard = ofy().load().key(shardKey).now();
+        if (shard == null || shard.getSeatsAvailable() <= 0) {
+            throw new ConcurrentModificationException("Seat shard " + shardKey + " is full");
+        }
+        profile.addToConferenceKeysToAttend(websafeConferenceKey);
+        shard.bookSeats(1);
+        ofy().save().entities(profile, shard).now();
+        return new WrappedBoolean(true);
+    }
+
+    /**
+     * Gives a seat of a sharded conference back for the given Profile, inside the
+     * unregistration transaction.
+     *
+     * The seat goes to a randomly chosen shard, or to another one that exists when that shard
+     * is missing. When the shard found outside the transaction is gone by the time it is
+     * loaded, the transaction is retried.
+     */
+    private static WrappedBoolean giveBackShardedSeat(Conference conference, Profile profile) {
+        SeatShard shard = ofy().load().key(SeatShardService.pickShard(conference)).now();
+        if (shard == null) {
+            Key<SeatShard> shardKey = SeatShardService.pickExistingShard(conference);
+            if (shardKey == null) {
+                return new WrappedBoolean(false, "No seat shards found");
+            }
+            shard = ofy().load().key(shardKey).now();
+            if (shard == null) {
+                throw new ConcurrentModificationException("Seat shard " + shardKey + " is gone");
+            }
+        }
+        shard.giveBackSeats(1);
+        ofy().save().entities(profile, shard).now();
+        return new WrappedBoolean(true);
+    }
+
+    /**
+     * Register to attend the specified Conference.
+     *
+     * The seat and the Profile are updated in one transaction, which is retried with backoff
+     * when other registrations for the same conference collide with it, so a conference is
+     * never oversold.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return Boolean true when success, otherwise false
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the user is already registered or the conference is full.
+     * @throws ServiceUnavailableException when the conference stays too contended to book.
+     */
+    @ApiMethod(name = "registerForConference", path = "conference/{websafeConferenceKey}/registration",
+            httpMethod = HttpMethod.POST)
+    public WrappedBoolean registerForConference(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            ConflictException, ServiceUnavailableException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        WrappedBoolean result;
+        try {
+            result = transactWithBackoff(new Work<WrappedBoolean>() {
+                @Override
+                public WrappedBoolean run() {
+                    Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+                    Key<Profile> profileKey = Key.create(Profile.class, user.getUserId());
+                    // Read both entity groups in one round trip.
+                    Map<Key<Object>, Object> entities = ofy().load().keys(conferenceKey, profileKey);
+                    Conference conference = (Conference) entities.get(conferenceKey);
+                    if (conference == null) {
+                        return new WrappedBoolean(false,
+                                "No Conference found with key: " + websafeConferenceKey);
+                    }
+                    Profile profile = (Profile) entities.get(profileKey);
+                    if (profile == null) {
+                        profile = newDefaultProfile(user);
+                    }
+                    if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
+                        return new WrappedBoolean(false, "Already registered");
+                    }
+                    if (conference.getSeatShardCount() > 0) {
+                        return bookShardedSeat(conference, profile, websafeConferenceKey);
+                    }
+                    if (conference.getSeatsAvailable() <= 0) {
+                        return new WrappedBoolean(false, "No seats available");
+                    }
+                    profile.addToConferenceKeysToAttend(websafeConferenceKey);
+                    conference.bookSeats(1);
+                    ofy().save().entities(profile, conference).now();
+                    return new WrappedBoolean(true);
+                }
+            });
+        } catch (ConcurrentModificationException e) {
+            throw new ServiceUnavailableException("Too many registrations, please try again");
+        }
+        checkRegistrationResult(result);
+        EntityVersions.invalidate(Key.create(websafeConferenceKey),
+                Key.create(Profile.class, user.getUserId()));
+        ConferenceQueryCache.invalidate();
+        ConferenceCatalog.recordChange(websafeConferenceKey);
+        AnnouncementService.enqueueRefresh();
+        return result;
+    }
+
+    /**
+     * Unregister from the specified Conference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key to unregister
+     *                             from.
+     * @return Boolean true when success, otherwise false.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the user is not registered for the conference.
+     * @throws ServiceUnavailableException when the conference stays too contended to update,
+     *         or none of its seat shards can be found.
+     */
+    @ApiMethod(name = "unregisterFromConference", path = "conference/{websafeConferenceKey}/registration",
+            httpMethod = HttpMethod.DELETE)
+    public WrappedBoolean unregisterFromConference(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            ConflictException, ServiceUnavailableException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        WrappedBoolean result;
+        try {
+            result = transactWithBackoff(new Work<WrappedBoolean>() {
+                @Override
+                public WrappedBoolean run() {
+                    Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+                    Key<Profile> profileKey = Key.create(Profile.class, user.getUserId());
+                    // Read both entity groups in one round trip.
+                    Map<Key<Object>, Object> entities = ofy().load().keys(conferenceKey, profileKey);
+                    Conference conference = (Conference) entities.get(conferenceKey);
+                    if (conference == null) {
+                        return new WrappedBoolean(false,
+                                "No Conference found with key: " + websafeConferenceKey);
+                    }
+                    Profile profile = (Profile) entities.get(profileKey);
+                    if (profile == null) {
+                        profile = newDefaultProfile(user);
+                    }
+                    if (!profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
+                        return new WrappedBoolean(false, "Not registered");
+                    }
+                    profile.unregisterFromConference(websafeConferenceKey);
+                    if (conference.getSeatShardCount() > 0) {
+                        return giveBackShardedSeat(conference, profile);
+                    }
+                    conference.giveBackSeats(1);
+                    ofy().save().entities(profile, conference).now();
+                    return new WrappedBoolean(true);
+                }
+            });
+        } catch (ConcurrentModificationException e) {
+            throw new ServiceUnavailableException("Too many registrations, please try again");
+        }
+        checkRegistrationResult(result);
+        EntityVersions.invalidate(Key.create(websafeConferenceKey),
+                Key.create(Profile.class, user.getUserId()));
+        ConferenceQueryCache.invalidate();
+        ConferenceCatalog.recordChange(websafeConferenceKey);
+        AnnouncementService.enqueueRefresh();
+        return result;
+    }
+
+    /**
+     * Changes the number of seat shards of the specified Conference.
+     *
+     * With more shards, more registrations for a popular conference can be committed at the
+     * same time; with 0, the seats are counted on the Conference entity again. The seats that
+     * are still available are spread evenly over the new shards.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param shards the new number of shards, from 0 to SeatShardService.MAX_SEAT_SHARDS.
+     * @return the updated Conference.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ForbiddenException when the user is not the organizer of the conference.
+     * @throws BadRequestException when the number of shards is out of range.
+     * @throws ServiceUnavailableException when the conference stays too contended to update.
+     */
+    @ApiMethod(name = "setSeatShards", path = "conference/{websafeConferenceKey}/seatShards",
+            httpMethod = HttpMethod.PUT)
+    public Conference setSeatShards(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            @Named("shards") final int shards)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            BadRequestException, ServiceUnavailableException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        if (shards < 0 || shards > SeatShardService.MAX_SEAT_SHARDS) {
+            throw new BadRequestException(
+                    "shards must be between 0 and " + SeatShardService.MAX_SEAT_SHARDS);
+        }
+        Conference conference;
+        try {
+            conference = transactWithBackoff(new Work<Conference>() {
+                @Override
+                public Conference run() {
+                    Conference conference =
+                            ofy().load().key(Key.<Conference>create(websafeConferenceKey)).now();
+                    if (conference == null
+                            || !user.getUserId().equals(conference.getOrganizerUserId())) {
+                        return conference;
+                    }
+                    SeatShardService.resize(conference, shards);
+                    return conference;
+                }
+            });
+        } catch (ConcurrentModificationException e) {
+            throw new ServiceUnavailableException("Too many registrations, please try again");
+        }
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (!user.getUserId().equals(conference.getOrganizerUserId())) {
+            throw new ForbiddenException("Only the organizer can change the seat shards");
+        }
+        EntityVersions.invalidate(Key.create(websafeConferenceKey));
+        ConferenceQueryCache.invalidate();
+        ConferenceCatalog.recordChange(websafeConferenceKey);
+        return conference;
+    }
+
+    /**
+     * Returns the "nearly sold out" announcement precomputed by SetAnnouncementServlet.
+     *
+     * Only memcache is read, so this never runs a datastore query.
+     *
+     * @return the Announcement, or null if there is none.
+     */
+    @ApiMethod(name = "getAnnouncement", path = "announcement", httpMethod = HttpMethod.GET)
+    public Announcement getAnnouncement() {
+        String announcement = AnnouncementService.getAnnouncement();
+        return announcement == null ? null : new Announcement(announcement);
+    }
 }
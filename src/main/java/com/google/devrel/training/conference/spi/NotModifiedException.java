@@ -0,0 +1,58 @@
+package com.google.devrel.training.conference.spi;
+
+import com.google.api.server.spi.ServiceException;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Answers a conditional read with 304 Not Modified when the client's copy, named by the
+ * If-None-Match header, is still current.
+ *
+ * Endpoints writes an error body with the status; ConditionalGetFilter drops it, since a 304
+ * has no body.
+ */
+public class NotModifiedException extends ServiceException {
+
+    private final String etag;
+
+    /**
+     * @param etag the entity tag of the current version, quoted.
+     */
+    public NotModifiedException(String etag) {
+        super(304, "Not Modified");
+        this.etag = etag;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return Collections.singletonMap("ETag", etag);
+    }
+
+    /**
+     * Returns whether an If-None-Match header names the entity tag: it lists it, weak or not,
+     * or it is "*".
+     *
+     * @param ifNoneMatch the header, or null if the request has none.
+     * @param etag the entity tag of the current version, quoted.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package com.google.devrel.training.conference.servlet;
+
+import static org.junit.Assert.*;
+
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for ConditionalGetFilter.
+ */
+public class ConditionalGetFilterTest {
+
+    private static final String ETAG = "\"3.42-1\"";
+
+    private final ConditionalGetFilter filter = new ConditionalGetFilter();
+
+    private final StringWriter body = new StringWriter();
+
+    private final Map<String, String> headers = new HashMap<>();
+
+    private static HttpServletRequest request() {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ConditionalGetFilterTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("setAttribute")) {
+                            attributes.put((String) args[0], args[1]);
+                        } else if (method.getName().equals("getAttribute")) {
+                            return attributes.get(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private HttpServletResponse response() {
+        final PrintWriter writer = new PrintWriter(body);
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                ConditionalGetFilterTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getWriter":
+                                return writer;
+                            case "setHeader":
+                            case "addHeader":
+                                headers.put((String) args[0], (String) args[1]);
+                                return null;
+                            case "setContentType":
+                                headers.put("Content-Type", (String) args[0]);
+                                return null;
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * A chain that tags the response like ConferenceApi, then writes it like Endpoints does.
+     */
+    private static FilterChain respondWith(final int status, final String etag) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException {
+                if (etag != null) {
+                    request.setAttribute(ConferenceApi.ETAG_ATTRIBUTE, etag);
+                }
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setStatus(status);
+                httpResponse.setContentType("application/json; charset=UTF-8");
+                httpResponse.getWriter().write("{\"name\":\"GCP Live\"}");
+                httpResponse.getWriter().flush();
+            }
+        };
+    }
+
+    @Test
+    public void testTaggedResponseGetsEtagHeader() throws Exception {
+        filter.doFilter(request(), response(), respondWith(HttpServletResponse.SC_OK, ETAG));
+        assertEquals(ETAG, headers.get("ETag"));
+        assertEquals("private, no-cache", headers.get("Cache-Control"));
+        assertEquals("{\"name\":\"GCP Live\"}", body.toString());
+    }
+
+    @Test
+    public void testNotModifiedHasNoBody() throws Exception {
+        filter.doFilter(request(), response(),
+                respondWith(HttpServletResponse.SC_NOT_MODIFIED, ETAG));
+        assertEquals(ETAG, headers.get("ETag"));
+        assertNull(headers.get("Content-Type"));
+        assertEquals("", body.toString());
+    }
+
+    @Test
+    public void testUntaggedAndErrorResponsesAreLeftAlone() throws Exception {
+        filter.doFilter(request(), response(), respondWith(HttpServletResponse.SC_OK, null));
+        filter.doFilter(request(), response(),
+                respondWith(HttpServletResponse.SC_NOT_FOUND, ETAG));
+        assertNull(headers.get("ETag"));
+        assertNull(headers.get("Cache-Control"));
+    }
+}
@@ -0,0 +1,230 @@
+package com.google.devrel.training.conference.servlet;
+
+import static org.junit.Assert.*;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.service.EndpointMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for EndpointMetricsFilter and MetricsServlet.
+ */
+public class EndpointMetricsFilterTest {
+
+    private static final String SPI_PATH =
+            "/_ah/spi/com.google.devrel.training.conference.spi.ConferenceApi.";
+
+    private EndpointMetricsFilter filter;
+
+    private final StringWriter body = new StringWriter();
+
+    @Before
+    public void setUp() throws Exception {
+        EndpointMetrics.reset();
+        filter = new EndpointMetricsFilter();
+        filter.init(null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EndpointMetrics.reset();
+    }
+
+    private static HttpServletRequest request(final String uri, final String format) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                EndpointMetricsFilterTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getRequestURI")) {
+                            return uri;
+                        }
+                        if (method.getName().equals("getParameter")) {
+                            return "format".equals(args[0]) ? format : null;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private HttpServletResponse response() {
+        final PrintWriter writer = new PrintWriter(body);
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                EndpointMetricsFilterTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getWriter")) {
+                            return writer;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * A chain that responds with the given status.
+     */
+    private static FilterChain respondWith(final int status) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                ((HttpServletResponse) response).setStatus(status);
+            }
+        };
+    }
+
+    @Test
+    public void testRecordsCallsAndErrorsByMethod() throws Exception {
+        filter.doFilter(request(SPI_PATH + "saveProfile", null), response(),
+                respondWith(HttpServletResponse.SC_OK));
+        filter.doFilter(request(SPI_PATH + "saveProfile", null), response(),
+                respondWith(HttpServletResponse.SC_UNAUTHORIZED));
+        filter.doFilter(request(SPI_PATH + "queryConferences", null), response(),
+                respondWith(HttpServletResponse.SC_OK));
+
+        EndpointMetrics.Stats saveProfile = EndpointMetrics.get("saveProfile");
+        assertEquals(2, saveProfile.getCalls());
+        assertEquals(1, saveProfile.getErrors());
+        long bucketed = 0;
+        for (long count : saveProfile.getBucketCounts()) {
+            bucketed += count;
+        }
+        assertEquals(2, bucketed);
+        assertEquals(1, EndpointMetrics.get("queryConferences").getCalls());
+        assertEquals(0, EndpointMetrics.get("queryConferences").getErrors());
+    }
+
+    @Test
+    public void testRecordsThrownExceptionAsError() throws Exception {
+        try {
+            filter.doFilter(request(SPI_PATH + "getProfile", null), response(),
+                    new FilterChain() {
+                        @Override
+                        public void doFilter(ServletRequest request, ServletResponse response)
+                                throws IOException, ServletException {
+                            throw new ServletException("failed");
+                        }
+                    });
+            fail("The exception should be rethrown.");
+        } catch (ServletException e) {
+            // Expected.
+        }
+        assertEquals(1, EndpointMetrics.get("getProfile").getErrors());
+    }
+
+    /**
+     * A chain that makes one memcache RPC, then throws the given exception if there is one.
+     */
+    private static FilterChain makeRpcAndThrow(final ServletException exception) {
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws ServletException {
+                ApiProxy.getDelegate().makeSyncCall(null, "memcache", "Get", new byte[0]);
+                if (exception != null) {
+                    throw exception;
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testRpcBudgetIsOnlyEnforcedOnCompletedRequests() throws Exception {
+        ApiProxy.Delegate originalDelegate = ApiProxy.getDelegate();
+        ApiProxy.setDelegate((ApiProxy.Delegate) Proxy.newProxyInstance(
+                EndpointMetricsFilterTest.class.getClassLoader(),
+                new Class<?>[] {ApiProxy.Delegate.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return method.getName().equals("makeSyncCall") ? new byte[0] : null;
+                    }
+                }));
+        System.setProperty("conference.rpcBudget.getProfile", "0");
+        try {
+            ServletException failure = new ServletException("failed");
+            try {
+                filter.doFilter(request(SPI_PATH + "getProfile", null), response(),
+                        makeRpcAndThrow(failure));
+                fail("The exception should be rethrown.");
+            } catch (ServletException e) {
+                assertSame(failure, e);
+            }
+
+            try {
+                filter.doFilter(request(SPI_PATH + "getProfile", null), response(),
+                        makeRpcAndThrow(null));
+                fail("The exceeded budget should fail the request.");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("exceeds the budget of 0"));
+            }
+        } finally {
+            System.clearProperty("conference.rpcBudget.getProfile");
+            ApiProxy.setDelegate(originalDelegate);
+        }
+    }
+
+    @Test
+    public void testUnknownPathsAreRecordedAsOther() throws Exception {
+        filter.doFilter(request("/_ah/spi/BackendService.getApiConfigs", null), response(),
+                respondWith(HttpServletResponse.SC_OK));
+        filter.doFilter(request(SPI_PATH + "noSuchMethod", null), response(),
+                respondWith(HttpServletResponse.SC_NOT_FOUND));
+
+        assertEquals(1, EndpointMetrics.snapshot().size());
+        assertEquals(2, EndpointMetrics.get(EndpointMetricsFilter.OTHER).getCalls());
+    }
+
+    @Test
+    public void testMetricsServletFormats() throws Exception {
+        EndpointMetrics.record("getConference", 3000000L, false);
+        EndpointMetrics.record("getConference", 40000000L, true);
+        MetricsServlet servlet = new MetricsServlet();
+
+        servlet.doGet(request("/admin/metrics", null), response());
+        String json = body.toString();
+        assertTrue(json, json.startsWith("{\"methods\":{\"getConference\":{\"calls\":2,"
+                + "\"errors\":1,\"latencySumSeconds\":0.043,\"latencyBuckets\":["));
+        assertTrue(json, json.contains("{\"le\":0.005,\"count\":1}"));
+        assertTrue(json, json.contains("{\"le\":0.05,\"count\":1}"));
+        assertTrue(json, json.contains("\"queryCache\":{\"hits\":"));
+
+        body.getBuffer().setLength(0);
+        servlet.doGet(request("/admin/metrics", "prometheus"), response());
+        String text = body.toString();
+        assertTrue(text, text.contains(
+                "conference_api_calls_total{method=\"getConference\"} 2\n"));
+        assertTrue(text, text.contains(
+                "conference_api_errors_total{method=\"getConference\"} 1\n"));
+        assertTrue(text, text.contains("conference_api_latency_seconds_bucket"
+                + "{method=\"getConference\",le=\"0.0025\"} 0\n"));
+        assertTrue(text, text.contains("conference_api_latency_seconds_bucket"
+                + "{method=\"getConference\",le=\"0.005\"} 1\n"));
+        assertTrue(text, text.contains("conference_api_latency_seconds_bucket"
+                + "{method=\"getConference\",le=\"+Inf\"} 2\n"));
+        assertTrue(text, text.contains(
+                "conference_api_latency_seconds_sum{method=\"getConference\"} 0.043\n"));
+        assertTrue(text, text.contains(
+                "conference_api_latency_seconds_count{method=\"getConference\"} 2\n"));
+    }
+}
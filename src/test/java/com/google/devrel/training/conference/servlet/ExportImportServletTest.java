@@ -0,0 +1,188 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Strings;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.service.EntityNdjson;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for ExportServlet and ImportServlet.
+ */
+public class ExportImportServletTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private final User user = new User("example@gmail.com", "gmail.com", "123456789");
+
+    private final StringWriter body = new StringWriter();
+
+    private int status = HttpServletResponse.SC_OK;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        ConferenceIdAllocator.reset();
+        helper.tearDown();
+    }
+
+    private static HttpServletRequest request(final String content) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ExportImportServletTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getReader")) {
+                            return new BufferedReader(new StringReader(content));
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private HttpServletResponse response() {
+        final PrintWriter writer = new PrintWriter(body);
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                ExportImportServletTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getWriter")) {
+                            return writer;
+                        }
+                        if (method.getName().equals("setStatus")) {
+                            status = (Integer) args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static List<Key> allKeys() {
+        List<Key> keys = new ArrayList<>();
+        for (String kind : EntityNdjson.KINDS) {
+            for (Entity entity : DatastoreServiceFactory.getDatastoreService()
+                    .prepare(new Query(kind).setKeysOnly()).asIterable()) {
+                keys.add(entity.getKey());
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void testExportAndImport() throws Exception {
+        ConferenceApi conferenceApi = new ConferenceApi();
+        conferenceApi.saveProfile(user, new ProfileForm("Organizer", ProfileForm.TeeShirtSize.M));
+        // A description this long is stored as Text, and unindexed.
+        String description = Strings.repeat("A day of talks. ", 200);
+        Date startDate = new Date(1427241600000L);
+        Conference created = conferenceApi.createConferences(user, new ConferenceForm(
+                "Cloud Summit", description, Arrays.asList("Cloud", "Data"), "London",
+                startDate, null, 100));
+        ObjectifyFilter.complete();
+        ofy().clear();
+
+        new ExportServlet().doGet(request(null), response());
+        String dump = body.toString();
+        assertEquals(2, dump.split("\n").length);
+        assertFalse(dump.contains(created.getWebsafeKey()));
+
+        DatastoreServiceFactory.getDatastoreService().delete(allKeys());
+        assertTrue(allKeys().isEmpty());
+        body.getBuffer().setLength(0);
+        new ImportServlet().doPost(request(dump), response());
+        assertEquals(HttpServletResponse.SC_OK, status);
+        assertEquals("{\"imported\":2}", body.toString());
+
+        Conference conference = ofy().load().key(
+                com.googlecode.objectify.Key.<Conference>create(created.getWebsafeKey())).now();
+        assertEquals("Cloud Summit", conference.getName());
+        assertEquals(description, conference.getDescription());
+        assertEquals(Arrays.asList("Cloud", "Data"), conference.getTopics());
+        assertEquals(startDate, conference.getStartDate());
+        assertEquals(100, conference.getSeatsAvailable());
+        Profile profile = ofy().load().key(
+                com.googlecode.objectify.Key.create(Profile.class, user.getUserId())).now();
+        assertEquals("Organizer", profile.getDisplayName());
+        assertEquals(ProfileForm.TeeShirtSize.M, profile.getTeeShirtSize());
+        // The indexes are rebuilt, and the description is still left out of them.
+        assertEquals(1, ofy().load().type(Conference.class).filter("city", "London").count());
+        assertEquals(0, ofy().load().type(Conference.class)
+                .filter("description", description).count());
+    }
+
+    @Test
+    public void testImportFromAnotherApp() throws Exception {
+        // Key paths don't name the app, so the keys are made in this one.
+        String dump = "{\"kind\":\"Profile\",\"key\":[[\"Profile\",\"1\"]],"
+                + "\"properties\":{\"displayName\":\"One\"},\"unindexed\":[]}\n"
+                + "{\"kind\":\"Conference\",\"key\":[[\"Profile\",\"1\"],[\"Conference\",7]],"
+                + "\"properties\":{\"name\":\"Imported\",\"profileKey\":"
+                + "{\"key\":[[\"Profile\",\"1\"]]}},\"unindexed\":[]}\n";
+        new ImportServlet().doPost(request(dump), response());
+        assertEquals("{\"imported\":2}", body.toString());
+        Key conferenceKey = KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "1"), "Conference", 7);
+        Entity conference = DatastoreServiceFactory.getDatastoreService().get(conferenceKey);
+        assertEquals("Imported", conference.getProperty("name"));
+        assertEquals(conferenceKey.getParent(), conference.getProperty("profileKey"));
+        // The imported ID isn't handed out again.
+        long id = ConferenceIdAllocator.nextId(
+                com.googlecode.objectify.Key.create(Profile.class, "1"));
+        assertTrue(id > 7);
+    }
+
+    @Test
+    public void testImportStopsAtInvalidEntity() throws Exception {
+        String dump = "{\"kind\":\"Profile\",\"key\":[[\"Profile\",\"1\"]],"
+                + "\"properties\":{\"displayName\":\"One\"},\"unindexed\":[]}\n"
+                + "{\"kind\":\"Profile\",\"properties\":{}}\n";
+        new ImportServlet().doPost(request(dump), response());
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, status);
+        assertTrue(body.toString().startsWith("{\"imported\":1,\"error\":"));
+        assertEquals(1, allKeys().size());
+    }
+}
@@ -0,0 +1,134 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for ReindexConferencesServlet.
+ */
+public class ReindexConferencesServletTest {
+
+    // The high replication datastore, which Objectify's cross-group transactions need, with
+    // every write applied at once, so that the queries see it.
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig());
+
+    private final User user = new User("example@gmail.com", "gmail.com", "123456789");
+
+    private final ConferenceApi conferenceApi = new ConferenceApi();
+
+    private final StringWriter body = new StringWriter();
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.clearProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY);
+        ofy().clear();
+        ConferenceIdAllocator.reset();
+        helper.tearDown();
+    }
+
+    private static HttpServletRequest request() {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ReindexConferencesServletTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+    }
+
+    private HttpServletResponse response() {
+        final PrintWriter writer = new PrintWriter(body);
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                ReindexConferencesServletTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getWriter")) {
+                            return writer;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private List<String> summaryNames() throws Exception {
+        Collection<ConferenceSummary> summaries =
+                conferenceApi.getConferenceSummariesCreated(user, null, null).getItems();
+        List<String> names = new ArrayList<>();
+        for (ConferenceSummary summary : summaries) {
+            names.add(summary.getName() + " by " + summary.getOrganizerDisplayName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testReindexedConferencesAreProjected() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("Organizer", ProfileForm.TeeShirtSize.M));
+        String websafeKey = conferenceApi.createConferences(user, new ConferenceForm(
+                "Cloud Summit", "A day of talks", null, "London", new Date(1427241600000L),
+                null, 100)).getWebsafeKey();
+        ObjectifyFilter.complete();
+        // Written before startDate, endDate and seatShardCount were indexed.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(KeyFactory.stringToKey(websafeKey));
+        for (String property : new String[] {"startDate", "endDate", "seatShardCount"}) {
+            entity.setUnindexedProperty(property, entity.getProperty(property));
+        }
+        datastore.put(entity);
+        ofy().clear();
+
+        // Until the projection is enabled, the summaries are made from whole conferences.
+        assertEquals(1, summaryNames().size());
+        assertEquals("Cloud Summit by Organizer", summaryNames().get(0));
+        System.setProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY, "true");
+        assertTrue(summaryNames().isEmpty());
+
+        new ReindexConferencesServlet().doPost(request(), response());
+        assertEquals("{\"resaved\":1}", body.toString());
+        ofy().clear();
+        assertEquals(1, summaryNames().size());
+        assertEquals("Cloud Summit by Organizer", summaryNames().get(0));
+    }
+}
@@ -0,0 +1,248 @@
+package com.google.devrel.training.conference.spi;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
+import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.domain.Announcement;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCreateResult;
+import com.google.devrel.training.conference.domain.ConferenceSuggestion;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceBatchForm;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.service.RpcAccounting;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A ConferenceApi whose every API method counts its RPCs and checks them against the budget of
+ * its endpoint, as EndpointMetricsFilter does for a request, so that the tests fail on an N+1
+ * pattern in any endpoint.
+ *
+ * A call made while RPCs are already being counted, by a test with a budget of its own or by
+ * another API method, is counted as part of that one.
+ */
+class BudgetedConferenceApi extends ConferenceApi {
+
+    /**
+     * The accounting of one call.
+     */
+    private static class Budget {
+        private boolean counting;
+
+        Budget(String endpoint) {
+            counting = RpcAccounting.current() == null;
+            if (counting) {
+                RpcAccounting.begin(endpoint);
+            }
+        }
+
+        /**
+         * Ends the accounting of a call that returned, enforcing the budget.
+         */
+        <T> T end(T result) {
+            if (counting) {
+                counting = false;
+                RpcAccounting.end(true);
+            }
+            return result;
+        }
+
+        /**
+         * Ends the accounting of a call that threw, without hiding its exception.
+         */
+        void abort() {
+            if (counting) {
+                counting = false;
+                RpcAccounting.end(false);
+            }
+        }
+    }
+
+    @Override
+    public Profile saveProfile(User user, ProfileForm profileForm)
+            throws UnauthorizedException {
+        Budget budget = new Budget("saveProfile");
+        try {
+            return budget.end(super.saveProfile(user, profileForm));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public Profile getProfile(User user, HttpServletRequest request)
+            throws UnauthorizedException, NotModifiedException {
+        Budget budget = new Budget("getProfile");
+        try {
+            return budget.end(super.getProfile(user, request));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public Conference createConferences(User user, ConferenceForm conferenceForm)
+            throws UnauthorizedException {
+        Budget budget = new Budget("createConferences");
+        try {
+            return budget.end(super.createConferences(user, conferenceForm));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<ConferenceCreateResult> createConferencesBatch(User user,
+            ConferenceBatchForm conferenceBatchForm)
+            throws UnauthorizedException, BadRequestException {
+        Budget budget = new Budget("createConferencesBatch");
+        try {
+            return budget.end(super.createConferencesBatch(user, conferenceBatchForm));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<Conference> queryConferences(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        Budget budget = new Budget("queryConferences");
+        try {
+            return budget.end(super.queryConferences(conferenceQueryForm));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<ConferenceSummary> queryConferenceSummaries(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        Budget budget = new Budget("queryConferenceSummaries");
+        try {
+            return budget.end(super.queryConferenceSummaries(conferenceQueryForm));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<ConferenceSummary> searchConferences(String query, String cursor,
+            Integer limit) throws BadRequestException {
+        Budget budget = new Budget("searchConferences");
+        try {
+            return budget.end(super.searchConferences(query, cursor, limit));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<ConferenceSuggestion> suggestConferences(String prefix,
+            Integer limit) {
+        Budget budget = new Budget("suggestConferences");
+        try {
+            return budget.end(super.suggestConferences(prefix, limit));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<Conference> getConferencesCreated(User user, String cursor,
+            Integer limit) throws UnauthorizedException, BadRequestException {
+        Budget budget = new Budget("getConferencesCreated");
+        try {
+            return budget.end(super.getConferencesCreated(user, cursor, limit));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<ConferenceSummary> getConferenceSummariesCreated(User user,
+            String cursor, Integer limit) throws UnauthorizedException, BadRequestException {
+        Budget budget = new Budget("getConferenceSummariesCreated");
+        try {
+            return budget.end(super.getConferenceSummariesCreated(user, cursor, limit));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public CollectionResponse<Conference> getConferencesToAttend(User user)
+            throws UnauthorizedException, NotFoundException {
+        Budget budget = new Budget("getConferencesToAttend");
+        try {
+            return budget.end(super.getConferencesToAttend(user));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public Conference getConference(String websafeConferenceKey, HttpServletRequest request)
+            throws NotFoundException, NotModifiedException {
+        Budget budget = new Budget("getConference");
+        try {
+            return budget.end(super.getConference(websafeConferenceKey, request));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public WrappedBoolean registerForConference(User user, String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            ConflictException, ServiceUnavailableException {
+        Budget budget = new Budget("registerForConference");
+        try {
+            return budget.end(super.registerForConference(user, websafeConferenceKey));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public WrappedBoolean unregisterFromConference(User user, String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            ConflictException, ServiceUnavailableException {
+        Budget budget = new Budget("unregisterFromConference");
+        try {
+            return budget.end(super.unregisterFromConference(user, websafeConferenceKey));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public Conference setSeatShards(User user, String websafeConferenceKey, int shards)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            BadRequestException, ServiceUnavailableException {
+        Budget budget = new Budget("setSeatShards");
+        try {
+            return budget.end(super.setSeatShards(user, websafeConferenceKey, shards));
+        } finally {
+            budget.abort();
+        }
+    }
+
+    @Override
+    public Announcement getAnnouncement() {
+        Budget budget = new Budget("getAnnouncement");
+        try {
+            return budget.end(super.getAnnouncement());
+        } finally {
+            budget.abort();
+        }
+    }
+}
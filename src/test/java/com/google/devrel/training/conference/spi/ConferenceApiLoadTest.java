@@ -0,0 +1,296 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Splitter;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.googlecode.objectify.ObjectifyFilter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A load driver for ConferenceApi on the local datastore stub.
+ *
+ * It seeds profiles and conferences, then runs a weighted mix of API calls from a thread pool
+ * and prints the p50/p95/p99 latency and the throughput of each endpoint. By default it runs
+ * a small load so that the build stays fast; a larger one can be configured with system
+ * properties, e.g.
+ *
+ *   mvn test -Dtest=ConferenceApiLoadTest -Dload.threads=16 -Dload.operations=100000
+ *       -Dload.mix=saveProfile=1,createConferences=1,queryConferences=6,getConferencesCreated=2
+ *
+ * Runs with the same load.seed issue the same sequence of calls from each thread.
+ */
+public class ConferenceApiLoadTest {
+
+    private static final List<String> CITIES =
+            Arrays.asList("London", "Chicago", "Tokyo", "San Francisco", "Paris");
+
+    private static final List<String> TOPICS =
+            Arrays.asList("Medical Innovations", "Programming Languages", "Web Technologies");
+
+    /**
+     * The endpoints driven by the load test.
+     */
+    private enum Endpoint {
+        saveProfile, createConferences, queryConferences, getConferencesCreated
+    }
+
+    private final int profiles = Integer.getInteger("load.profiles", 50);
+
+    private final int conferences = Integer.getInteger("load.conferences", 100);
+
+    private final int threads = Integer.getInteger("load.threads", 4);
+
+    private final int operations = Integer.getInteger("load.operations", 500);
+
+    private final long seed = Long.getLong("load.seed", 42L);
+
+    private final Map<Endpoint, Integer> mix = parseMix(System.getProperty("load.mix",
+            "saveProfile=1,createConferences=1,queryConferences=6,getConferencesCreated=2"));
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    private ConferenceApi conferenceApi;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        conferenceApi = new ConferenceApi();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        ConferenceIdAllocator.reset();
+        helper.tearDown();
+    }
+
+    private static Map<Endpoint, Integer> parseMix(String spec) {
+        Map<Endpoint, Integer> mix = new EnumMap<>(Endpoint.class);
+        for (Map.Entry<String, String> entry : Splitter.on(',').trimResults()
+                .withKeyValueSeparator('=').split(spec).entrySet()) {
+            mix.put(Endpoint.valueOf(entry.getKey()), Integer.parseInt(entry.getValue()));
+        }
+        return mix;
+    }
+
+    private static User user(int index) {
+        return new User("user" + index + "@gmail.com", "gmail.com", "user" + index);
+    }
+
+    private static ConferenceForm conferenceForm(Random random, int index) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2015, random.nextInt(12), 1 + random.nextInt(28));
+        return new ConferenceForm("Conference " + index, "A conference",
+                Collections.singletonList(TOPICS.get(random.nextInt(TOPICS.size()))),
+                CITIES.get(random.nextInt(CITIES.size())), calendar.getTime(), calendar.getTime(),
+                10 + random.nextInt(500));
+    }
+
+    private static ConferenceQueryForm queryForm(Random random) {
+        ConferenceQueryForm form = new ConferenceQueryForm();
+        switch (random.nextInt(3)) {
+            case 0:
+                break;
+            case 1:
+                form.filter(new Filter(Field.CITY, Operator.EQ,
+                        CITIES.get(random.nextInt(CITIES.size()))));
+                break;
+            default:
+                form.filter(new Filter(Field.MAX_ATTENDEES, Operator.GT,
+                        Integer.toString(random.nextInt(500))));
+                break;
+        }
+        return form;
+    }
+
+    /**
+     * Picks an endpoint with a probability proportional to its weight in the mix.
+     */
+    private Endpoint pick(Random random, int totalWeight) {
+        int value = random.nextInt(totalWeight);
+        for (Map.Entry<Endpoint, Integer> entry : mix.entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty mix");
+    }
+
+    private void call(Endpoint endpoint, Random random) throws Exception {
+        User user = user(random.nextInt(profiles));
+        switch (endpoint) {
+            case saveProfile:
+                conferenceApi.saveProfile(user,
+                        new ProfileForm("User " + random.nextInt(), TeeShirtSize.M));
+                break;
+            case createConferences:
+                conferenceApi.createConferences(user,
+                        conferenceForm(random, conferences + random.nextInt()));
+                break;
+            case queryConferences:
+                conferenceApi.queryConferences(queryForm(random));
+                break;
+            case getConferencesCreated:
+                conferenceApi.getConferencesCreated(user, null, null);
+                break;
+        }
+    }
+
+    private void seedData() throws Exception {
+        Random random = new Random(seed);
+        for (int i = 0; i < profiles; i++) {
+            conferenceApi.saveProfile(user(i), new ProfileForm("User " + i, TeeShirtSize.M));
+            ObjectifyFilter.complete();
+        }
+        for (int i = 0; i < conferences; i++) {
+            conferenceApi.createConferences(user(random.nextInt(profiles)),
+                    conferenceForm(random, i));
+            ObjectifyFilter.complete();
+        }
+    }
+
+    /**
+     * Returns the value at the given percentile of sorted latencies, by the nearest-rank method.
+     */
+    private static long percentile(List<Long> sortedNanos, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sortedNanos.size());
+        return sortedNanos.get(Math.max(rank, 1) - 1);
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        seedData();
+        final int totalWeight = sum(mix.values());
+        assertTrue("load.mix must have a positive weight", totalWeight > 0);
+
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        final Map<Endpoint, List<Long>> latencies = new EnumMap<>(Endpoint.class);
+        final Map<Endpoint, Integer> errors = new EnumMap<>(Endpoint.class);
+        final List<Exception> firstError = new ArrayList<>(1);
+        for (Endpoint endpoint : Endpoint.values()) {
+            latencies.put(endpoint, new ArrayList<Long>());
+            errors.put(endpoint, 0);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(seed + t + 1);
+            final int count = operations / threads + (t < operations % threads ? 1 : 0);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    Map<Endpoint, List<Long>> local = new EnumMap<>(Endpoint.class);
+                    Map<Endpoint, Integer> localErrors = new EnumMap<>(Endpoint.class);
+                    start.await();
+                    for (int i = 0; i < count; i++) {
+                        Endpoint endpoint = pick(random, totalWeight);
+                        long startNanos = System.nanoTime();
+                        try {
+                            ConferenceApiLoadTest.this.call(endpoint, random);
+                        } catch (Exception e) {
+                            synchronized (firstError) {
+                                if (firstError.isEmpty()) {
+                                    firstError.add(e);
+                                }
+                            }
+                            Integer failed = localErrors.get(endpoint);
+                            localErrors.put(endpoint, failed == null ? 1 : failed + 1);
+                        } finally {
+                            ObjectifyFilter.complete();
+                        }
+                        long elapsed = System.nanoTime() - startNanos;
+                        if (!local.containsKey(endpoint)) {
+                            local.put(endpoint, new ArrayList<Long>());
+                        }
+                        local.get(endpoint).add(elapsed);
+                    }
+                    synchronized (latencies) {
+                        for (Map.Entry<Endpoint, List<Long>> entry : local.entrySet()) {
+                            latencies.get(entry.getKey()).addAll(entry.getValue());
+                        }
+                        for (Map.Entry<Endpoint, Integer> entry : localErrors.entrySet()) {
+                            errors.put(entry.getKey(), errors.get(entry.getKey())
+                                    + entry.getValue());
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        executor.shutdown();
+
+        System.out.println(String.format(
+                "Load: %d profiles, %d conferences, %d threads, %d operations in %d ms, %.1f ops/s",
+                profiles, conferences, threads, operations, elapsedNanos / 1000000,
+                operations * 1e9 / elapsedNanos));
+        System.out.println(String.format("%-22s %8s %7s %10s %9s %9s %9s",
+                "endpoint", "calls", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms"));
+        int failed = 0;
+        for (Endpoint endpoint : Endpoint.values()) {
+            List<Long> sorted = latencies.get(endpoint);
+            if (sorted.isEmpty()) {
+                continue;
+            }
+            Collections.sort(sorted);
+            System.out.println(String.format("%-22s %8d %7d %10.1f %9.2f %9.2f %9.2f",
+                    endpoint, sorted.size(), errors.get(endpoint),
+                    sorted.size() * 1e9 / elapsedNanos,
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                    percentile(sorted, 99) / 1e6));
+            failed += errors.get(endpoint);
+        }
+        assertEquals("Failed calls, the first with " + firstError, 0, failed);
+    }
+
+    private static int sum(Iterable<Integer> values) {
+        int sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
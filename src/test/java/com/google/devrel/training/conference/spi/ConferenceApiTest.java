@@ -3,26 +3,81 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.config.ApiMethod;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
 import com.google.appengine.api.users.User;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
-// import com.google.devrel.training.conference.domain.Conference;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.DatastorePb;
+import com.google.common.util.concurrent.Futures;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceCreateResult;
+import com.google.devrel.training.conference.domain.ConferenceSuggestion;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
 import com.google.devrel.training.conference.domain.Profile;
-// import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceBatchForm;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.AnnouncementService;
+import com.google.devrel.training.conference.service.ConferenceCatalog;
+import com.google.devrel.training.conference.service.ConferenceIdAllocator;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceQueryPlanner;
+import com.google.devrel.training.conference.service.EntityCacheControl;
+import com.google.devrel.training.conference.service.EntityVersions;
+import com.google.devrel.training.conference.service.RpcAccounting;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyFilter;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * Tests for ConferenceApi API methods.
@@ -53,31 +108,258 @@ public class ConferenceApiTest {
 
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
 
     @Before
     public void setUp() throws Exception {
         helper.setUp();
         user = new User(EMAIL, "gmail.com", USER_ID);
-        conferenceApi = new ConferenceApi();
+        // Every call is checked against the RPC budget of its endpoint.
+        conferenceApi = new BudgetedConferenceApi();
     }
 
     @After
     public void tearDown() throws Exception {
         ofy().clear();
+        ConferenceIdAllocator.reset();
         helper.tearDown();
     }
 
+    /**
+     * An ApiProxy delegate that counts datastore get RPCs and passes every call through.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class GetCountingDelegate implements ApiProxy.Delegate {
+        private final ApiProxy.Delegate delegate;
+        private final AtomicInteger gets = new AtomicInteger();
+
+        GetCountingDelegate(ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        private void count(String packageName, String methodName) {
+            if ("datastore_v3".equals(packageName) && "Get".equals(methodName)) {
+                gets.incrementAndGet();
+            }
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request) {
+            count(packageName, methodName);
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            count(packageName, methodName);
+            return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+    /**
+     * An ApiProxy delegate that fails the first datastore ID allocation and passes every other
+     * call through.
+     */
+    private static class FailingAllocationDelegate extends GetCountingDelegate {
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        FailingAllocationDelegate(ApiProxy.Delegate delegate) {
+            super(delegate);
+        }
+
+        private boolean failsNow(String packageName, String methodName) {
+            return "datastore_v3".equals(packageName) && "AllocateIds".equals(methodName)
+                    && failed.compareAndSet(false, true);
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request) {
+            if (failsNow(packageName, methodName)) {
+                throw new ApiProxy.ApiDeadlineExceededException(packageName, methodName);
+            }
+            return super.makeSyncCall(environment, packageName, methodName, request);
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            if (failsNow(packageName, methodName)) {
+                return Futures.immediateFailedFuture(
+                        new ApiProxy.ApiDeadlineExceededException(packageName, methodName));
+            }
+            return super.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        }
+    }
+
+    /**
+     * An ApiProxy delegate that runs datastore RPCs one at a time.
+     *
+     * The local datastore stub applies a commit to its entity groups one by one without a lock
+     * across transactions, so a concurrent commit or get can observe a half-applied commit,
+     * which the real datastore never allows. Serializing the RPCs restores that atomicity for
+     * the concurrency tests; transactions still interleave between RPCs.
+     *
+     * A transaction whose get or put failed on contention is rolled back at once. The stub
+     * keeps it registered on its entity groups until then, and a commit to one of those groups
+     * in the meantime fails with "transaction closed" after part of its writes were applied.
+     * The client's own rollback of the transaction is then answered here.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class DatastoreSerializingDelegate implements ApiProxy.Delegate {
+        private final ApiProxy.Delegate delegate;
+
+        private final Set<Long> rolledBack = new HashSet<>();
+
+        DatastoreSerializingDelegate(ApiProxy.Delegate delegate) {
+            this.delegate = delegate;
+        }
+
+        private static boolean isDatastore(String packageName) {
+            return "datastore_v3".equals(packageName);
+        }
+
+        /**
+         * Returns the transaction of a get or put request, or null if it has none.
+         */
+        private static DatastorePb.Transaction transactionOf(String methodName, byte[] request) {
+            if ("Get".equals(methodName)) {
+                DatastorePb.GetRequest get = new DatastorePb.GetRequest();
+                get.mergeFrom(request);
+                return get.hasTransaction() ? get.getTransaction() : null;
+            } else if ("Put".equals(methodName)) {
+                DatastorePb.PutRequest put = new DatastorePb.PutRequest();
+                put.mergeFrom(request);
+                return put.hasTransaction() ? put.getTransaction() : null;
+            }
+            return null;
+        }
+
+        private boolean isRolledBack(String methodName, byte[] request) {
+            if (!"Rollback".equals(methodName)) {
+                return false;
+            }
+            DatastorePb.Transaction transaction = new DatastorePb.Transaction();
+            transaction.mergeFrom(request);
+            return rolledBack.remove(transaction.getHandle());
+        }
+
+        private void rollBack(ApiProxy.Environment environment, String methodName,
+                byte[] request) {
+            DatastorePb.Transaction transaction = transactionOf(methodName, request);
+            if (transaction != null) {
+                delegate.makeSyncCall(environment, "datastore_v3", "Rollback",
+                        transaction.toByteArray());
+                rolledBack.add(transaction.getHandle());
+            }
+        }
+
+        @Override
+        public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request) {
+            if (!isDatastore(packageName)) {
+                return delegate.makeSyncCall(environment, packageName, methodName, request);
+            }
+            synchronized (this) {
+                if (isRolledBack(methodName, request)) {
+                    return new byte[0];
+                }
+                try {
+                    return delegate.makeSyncCall(environment, packageName, methodName, request);
+                } catch (ApiProxy.ApplicationException e) {
+                    rollBack(environment, methodName, request);
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+                String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+            if (!isDatastore(packageName)) {
+                return delegate.makeAsyncCall(
+                        environment, packageName, methodName, request, apiConfig);
+            }
+            synchronized (this) {
+                if (isRolledBack(methodName, request)) {
+                    return Futures.immediateFuture(new byte[0]);
+                }
+                Future<byte[]> future = delegate.makeAsyncCall(
+                        environment, packageName, methodName, request, apiConfig);
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // The caller gets the same failure from the returned future.
+                    if (e.getCause() instanceof ApiProxy.ApplicationException) {
+                        rollBack(environment, methodName, request);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return future;
+            }
+        }
+
+        @Override
+        public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+            delegate.log(environment, record);
+        }
+
+        @Override
+        public void flushLogs(ApiProxy.Environment environment) {
+            delegate.flushLogs(environment);
+        }
+
+        @Override
+        public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+            return delegate.getRequestThreads(environment);
+        }
+    }
+
+    /**
+     * Creates a conference as the given user and finishes the request, so the conference and
+     * the organizer's Profile are written and visible to subsequent queries.
+     */
+    private Conference createConference(User organizer, String name) throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                name, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConferences(organizer, conferenceForm);
+        ObjectifyFilter.complete();
+        // A get rolls the entity group forward, so global queries can see the conference.
+        ofy().load().key(Key.<Conference>create(conference.getWebsafeKey())).now();
+        ofy().clear();
+        return conference;
+    }
+
     @Test(expected = UnauthorizedException.class)
     public void testGetProfileWithoutUser() throws Exception {
-        conferenceApi.getProfile(null);
+        conferenceApi.getProfile(null, null);
     }
 
     @Test
     public void testGetProfileFirstTime() throws Exception {
         Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertNull(profile);
-        profile = conferenceApi.getProfile(user);
+        profile = conferenceApi.getProfile(user, null);
         assertNull(profile);
     }
 
@@ -121,13 +403,216 @@ public class ConferenceApiTest {
     public void testGetProfile() throws Exception {
         conferenceApi.saveProfile(user, new ProfileForm(DISPLAY_NAME, TEE_SHIRT_SIZE));
         // Fetch the Profile via the API.
-        Profile profile = conferenceApi.getProfile(user);
+        Profile profile = conferenceApi.getProfile(user, null);
         assertEquals(USER_ID, profile.getUserId());
         assertEquals(EMAIL, profile.getMainEmail());
         assertEquals(TEE_SHIRT_SIZE, profile.getTeeShirtSize());
         assertEquals(DISPLAY_NAME, profile.getDisplayName());
     }
 
+    /**
+     * Saves a display name with the low-level datastore API, bypassing Objectify and its cache,
+     * the way the datastore viewer would.
+     */
+    private void saveDisplayNameOutsideObjectify(String displayName) throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(Key.create(Profile.class, USER_ID).getRaw());
+        entity.setProperty("displayName", displayName);
+        datastore.put(entity);
+    }
+
+    @Test
+    public void testProfileCacheStaysCoherentWithSaveProfile() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("One", TEE_SHIRT_SIZE));
+        ObjectifyFilter.complete();
+        ofy().clear();
+        assertEquals("One", conferenceApi.getProfile(user, null).getDisplayName());
+        ofy().clear();
+        conferenceApi.saveProfile(user, new ProfileForm("Two", TEE_SHIRT_SIZE));
+        ObjectifyFilter.complete();
+        ofy().clear();
+        assertEquals("Two", conferenceApi.getProfile(user, null).getDisplayName());
+    }
+
+    @Test
+    public void testProfileCacheIsStaleForOutsideWritesUntilItExpires() throws Exception {
+        String property = EntityCacheControl.PROPERTY_PREFIX + "Profile";
+        String expirationProperty = System.getProperty(property);
+        System.setProperty(property, "1");
+        try {
+            conferenceApi.saveProfile(user, new ProfileForm("One", TEE_SHIRT_SIZE));
+            ObjectifyFilter.complete();
+            ofy().clear();
+            assertEquals("One", conferenceApi.getProfile(user, null).getDisplayName());
+            ofy().clear();
+            saveDisplayNameOutsideObjectify("Outside");
+            // Served from memcache.
+            assertEquals("One", conferenceApi.getProfile(user, null).getDisplayName());
+            ofy().clear();
+            Thread.sleep(2000);
+            assertEquals("Outside", conferenceApi.getProfile(user, null).getDisplayName());
+        } finally {
+            restoreProperty(property, expirationProperty);
+        }
+    }
+
+    @Test
+    public void testProfileCacheCanBeTurnedOff() throws Exception {
+        String property = EntityCacheControl.PROPERTY_PREFIX + "Profile";
+        String expirationProperty = System.getProperty(property);
+        System.setProperty(property, "-1");
+        try {
+            conferenceApi.saveProfile(user, new ProfileForm("One", TEE_SHIRT_SIZE));
+            ObjectifyFilter.complete();
+            ofy().clear();
+            assertEquals("One", conferenceApi.getProfile(user, null).getDisplayName());
+            ofy().clear();
+            saveDisplayNameOutsideObjectify("Outside");
+            assertEquals("Outside", conferenceApi.getProfile(user, null).getDisplayName());
+        } finally {
+            restoreProperty(property, expirationProperty);
+        }
+    }
+
+    /**
+     * Returns a request with the given If-None-Match header, or none if it is null, that keeps
+     * the attributes set on it.
+     */
+    private static HttpServletRequest conditionalRequest(final String ifNoneMatch) {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                ConferenceApiTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getHeader":
+                                return "If-None-Match".equals(args[0]) ? ifNoneMatch : null;
+                            case "setAttribute":
+                                attributes.put((String) args[0], args[1]);
+                                return null;
+                            case "getAttribute":
+                                return attributes.get(args[0]);
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Reads the Profile like a request that has the given entity tag, and returns the tag of the
+     * response, or null when the tag was current.
+     */
+    private String getProfileEtag(String ifNoneMatch) throws Exception {
+        ofy().clear();
+        HttpServletRequest request = conditionalRequest(ifNoneMatch);
+        try {
+            assertNotNull(conferenceApi.getProfile(user, request));
+        } catch (NotModifiedException e) {
+            assertTrue(NotModifiedException.matches(ifNoneMatch, e.getEtag()));
+            return null;
+        }
+        return (String) request.getAttribute(ConferenceApi.ETAG_ATTRIBUTE);
+    }
+
+    /**
+     * Reads the conference like a request that has the given entity tag, and returns the tag of
+     * the response, or null when the tag was current.
+     */
+    private String getConferenceEtag(String websafeKey, String ifNoneMatch) throws Exception {
+        ofy().clear();
+        HttpServletRequest request = conditionalRequest(ifNoneMatch);
+        try {
+            assertNotNull(conferenceApi.getConference(websafeKey, request));
+        } catch (NotModifiedException e) {
+            assertTrue(NotModifiedException.matches(ifNoneMatch, e.getEtag()));
+            return null;
+        }
+        return (String) request.getAttribute(ConferenceApi.ETAG_ATTRIBUTE);
+    }
+
+    @Test
+    public void testGetProfileAnswersNotModifiedFromTheCachedVersion() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("One", TEE_SHIRT_SIZE));
+        final String etag = getProfileEtag(null);
+        assertNotNull(etag);
+        assertEquals(etag, getProfileEtag(null));
+        RpcAccounting.Counts counts = withRpcBudget("getProfile", 1, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                assertNull(getProfileEtag(etag));
+                return null;
+            }
+        });
+        assertEquals("Only the version stamp is read", 1, counts.getMemcache());
+        assertEquals(0, counts.getGets());
+        assertNull(getProfileEtag("W/" + etag + ", \"other\""));
+
+        conferenceApi.saveProfile(user, new ProfileForm("Two", TEE_SHIRT_SIZE));
+        String newEtag = getProfileEtag(etag);
+        assertNotNull("A saved Profile has a new version", newEtag);
+        assertFalse(etag.equals(newEtag));
+        assertNull(getProfileEtag(newEtag));
+    }
+
+    @Test
+    public void testGetProfileIsNeverNotModifiedWithoutAProfile() throws Exception {
+        HttpServletRequest request = conditionalRequest("*");
+        assertNull(conferenceApi.getProfile(user, request));
+        assertNull(conferenceApi.getProfile(user, request));
+        assertNull(request.getAttribute(ConferenceApi.ETAG_ATTRIBUTE));
+    }
+
+    @Test
+    public void testGetConferenceEtagFollowsSeatsAndOrganizer() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("Organizer", TEE_SHIRT_SIZE));
+        final String websafeKey = createConference(user, NAME).getWebsafeKey();
+        String etag = getConferenceEtag(websafeKey, null);
+        assertNotNull(etag);
+        final String cachedEtag = etag;
+        RpcAccounting.Counts counts = withRpcBudget("getConference", 1, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                assertNull(getConferenceEtag(websafeKey, cachedEtag));
+                return null;
+            }
+        });
+        assertEquals(0, counts.getGets());
+
+        User attendee = new User("attendee@gmail.com", "gmail.com", "attendee");
+        conferenceApi.registerForConference(attendee, websafeKey);
+        String afterRegistration = getConferenceEtag(websafeKey, etag);
+        assertNotNull("A booked seat changes the tag", afterRegistration);
+
+        conferenceApi.saveProfile(user, new ProfileForm("Renamed", TEE_SHIRT_SIZE));
+        String afterRename = getConferenceEtag(websafeKey, afterRegistration);
+        assertNotNull("The organizer's display name is part of the response", afterRename);
+
+        conferenceApi.setSeatShards(user, websafeKey, 4);
+        String afterResize = getConferenceEtag(websafeKey, afterRename);
+        assertNotNull(afterResize);
+        conferenceApi.registerForConference(
+                new User("other@gmail.com", "gmail.com", "other"), websafeKey);
+        assertNotNull("A seat booked on a shard changes the tag",
+                getConferenceEtag(websafeKey, afterResize));
+    }
+
+    @Test
+    public void testVersionStampIsNotCachedOverAWrite() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("One", TEE_SHIRT_SIZE));
+        Key<Profile> key = Key.create(Profile.class, USER_ID);
+        // A reader that loaded the Profile before a write caches its stamp after the write.
+        EntityVersions.Lookup stale = EntityVersions.lookup(key);
+        conferenceApi.saveProfile(user, new ProfileForm("Two", TEE_SHIRT_SIZE));
+        stale.put(key, "1");
+        assertNull(EntityVersions.lookup(key).get(key));
+        EntityVersions.Lookup fresh = EntityVersions.lookup(key);
+        fresh.put(key, "2");
+        assertEquals("2", EntityVersions.lookup(key).get(key));
+    }
+
     @Test
     public void testUpdateProfile() throws Exception {
         // Save for the first time.
@@ -169,7 +654,798 @@ public class ConferenceApiTest {
     }
 
 
-    /*
+    @Test
+    public void testQueryConferencesLoadsOrganizersInOneBatch() throws Exception {
+        int organizers = 5;
+        for (int i = 0; i < organizers; i++) {
+            User organizer = new User("organizer" + i + "@gmail.com", "gmail.com", "organizer" + i);
+            createConference(organizer, NAME + " " + i + "a");
+            createConference(organizer, NAME + " " + i + "b");
+        }
+
+        GetCountingDelegate counter = new GetCountingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(counter);
+        Collection<Conference> conferences =
+                conferenceApi.queryConferences(new ConferenceQueryForm()).getItems();
+        // Serialization reads the organizer's display name of every conference.
+        for (Conference conference : conferences) {
+            assertTrue(conference.getOrganizerDisplayName().startsWith("organizer"));
+        }
+        assertEquals(organizers * 2, conferences.size());
+        assertEquals("Organizers should be loaded with a single batch get", 1, counter.gets.get());
+    }
+
+    /**
+     * Counts the RPCs of the work like a request to the endpoint, with the given budget.
+     */
+    private RpcAccounting.Counts withRpcBudget(String endpoint, int budget, Callable<?> work)
+            throws Exception {
+        String property = "conference.rpcBudget." + endpoint;
+        System.setProperty(property, Integer.toString(budget));
+        RpcAccounting.begin(endpoint);
+        try {
+            work.call();
+            return RpcAccounting.end();
+        } finally {
+            // Stops counting if the work failed.
+            if (RpcAccounting.current() != null) {
+                RpcAccounting.end(false);
+            }
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void testEveryApiMethodIsBudgeted() throws Exception {
+        for (Method method : ConferenceApi.class.getMethods()) {
+            if (method.isAnnotationPresent(ApiMethod.class)) {
+                Method budgeted = BudgetedConferenceApi.class.getMethod(
+                        method.getName(), method.getParameterTypes());
+                assertEquals(method.getName(), BudgetedConferenceApi.class,
+                        budgeted.getDeclaringClass());
+            }
+        }
+    }
+
+    @Test
+    public void testQueryConferencesWithinRpcBudget() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            User organizer = new User("organizer" + i + "@gmail.com", "gmail.com", "organizer" + i);
+            createConference(organizer, NAME + " " + i);
+        }
+        RpcAccounting.Counts counts = withRpcBudget("queryConferences", 8, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (Conference conference
+                        : conferenceApi.queryConferences(new ConferenceQueryForm()).getItems()) {
+                    conference.getOrganizerDisplayName();
+                }
+                return null;
+            }
+        });
+        assertEquals(1, counts.getQueries());
+        assertEquals(1, counts.getGets());
+    }
+
+    @Test
+    public void testRpcBudgetCatchesPerRowLoads() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            User organizer = new User("organizer" + i + "@gmail.com", "gmail.com", "organizer" + i);
+            createConference(organizer, NAME + " " + i);
+        }
+        final List<Conference> conferences = ofy().load().type(Conference.class).list();
+        ofy().clear();
+        String failProperty = System.setProperty("conference.rpcBudget.fail", "true");
+        try {
+            // Conferences that were not hydrated load their organizers one by one.
+            withRpcBudget("perRowOrganizers", 8, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (Conference conference : conferences) {
+                        conference.getOrganizerDisplayName();
+                    }
+                    return null;
+                }
+            });
+            fail("Ten gets should exceed the budget of 8 RPCs.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("10 gets"));
+        } finally {
+            if (failProperty == null) {
+                System.clearProperty("conference.rpcBudget.fail");
+            } else {
+                System.setProperty("conference.rpcBudget.fail", failProperty);
+            }
+        }
+    }
+
+    @Test
+    public void testQueryConferencesPaged() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            createConference(user, NAME + " " + i);
+        }
+        ConferenceQueryForm queryForm = new ConferenceQueryForm();
+        queryForm.setPageSize(2);
+        List<String> names = new ArrayList<>();
+        int pages = 0;
+        String cursor = null;
+        do {
+            queryForm.setCursor(cursor);
+            CollectionResponse<Conference> page = conferenceApi.queryConferences(queryForm);
+            assertTrue(page.getItems().size() <= 2);
+            for (Conference conference : page.getItems()) {
+                names.add(conference.getName());
+            }
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(Arrays.asList(NAME + " 0", NAME + " 1", NAME + " 2", NAME + " 3", NAME + " 4"),
+                names);
+    }
+
+    @Test
+    public void testQueryConferencesCache() throws Exception {
+        createConference(user, NAME + " 0");
+        ConferenceQueryForm queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "100"));
+        // The same query with the filters in another order and another spelling of the value.
+        ConferenceQueryForm sameQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "0100"))
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY));
+        assertEquals(ConferenceQueryCache.normalize(queryForm),
+                ConferenceQueryCache.normalize(sameQueryForm));
+
+        long hits = ConferenceQueryCache.getHits();
+        long misses = ConferenceQueryCache.getMisses();
+        assertEquals(1, conferenceApi.queryConferences(queryForm).getItems().size());
+        assertEquals(misses + 1, ConferenceQueryCache.getMisses());
+        assertEquals(1, conferenceApi.queryConferences(sameQueryForm).getItems().size());
+        assertEquals(hits + 1, ConferenceQueryCache.getHits());
+
+        // Creating a conference invalidates the cached page.
+        createConference(user, NAME + " 1");
+        assertEquals(2, conferenceApi.queryConferences(queryForm).getItems().size());
+        assertEquals(misses + 2, ConferenceQueryCache.getMisses());
+    }
+
+    @Test
+    public void testQueryConferencesWithInequalitiesOnTwoFields() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        for (int i = 0; i < 6; i++) {
+            Date startDate = dateFormat.parse("0" + (i + 1) + "/10/2014");
+            ConferenceForm conferenceForm = new ConferenceForm(NAME + " " + i, DESCRIPTION,
+                    null, CITY, startDate, startDate, i % 2 == 0 ? 50 : 200);
+            conferenceApi.createConferences(user, conferenceForm);
+            ObjectifyFilter.complete();
+        }
+        ofy().clear();
+        // Roll the entity group forward, so that the queries see every conference.
+        ofy().load().type(Conference.class).ancestor(Key.create(Profile.class, USER_ID)).list()
+                .size();
+        ofy().clear();
+
+        ConferenceQueryForm queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.GT, "2"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "100"));
+        ConferenceQueryPlanner.Plan plan = queryForm.plan();
+        // A third of the range of maxAttendees is below 100, but 10 of the 12 months are after
+        // February.
+        assertEquals(Field.MAX_ATTENDEES, plan.getPushedDownField());
+        assertEquals(1, plan.getResidualFilters().size());
+        assertEquals(Field.MONTH, plan.getResidualFilters().get(0).getField());
+
+        queryForm.setPageSize(1);
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        do {
+            queryForm.setCursor(cursor);
+            CollectionResponse<Conference> page = conferenceApi.queryConferences(queryForm);
+            for (Conference conference : page.getItems()) {
+                names.add(conference.getName());
+            }
+            cursor = page.getNextPageToken();
+        } while (cursor != null);
+        assertEquals(Arrays.asList(NAME + " 2", NAME + " 4"), names);
+
+        queryForm.setPageSize(0);
+        queryForm.setCursor(null);
+        List<String> summaryNames = new ArrayList<>();
+        for (ConferenceSummary summary
+                : conferenceApi.queryConferenceSummaries(queryForm).getItems()) {
+            summaryNames.add(summary.getName());
+            assertEquals(50, summary.getSeatsAvailable());
+        }
+        assertEquals(Arrays.asList(NAME + " 2", NAME + " 4"), summaryNames);
+
+        // With the bound on maxAttendees loosened, the months are the more selective filter.
+        plan = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.GT, "10"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "1000"))
+                .plan();
+        assertEquals(Field.MONTH, plan.getPushedDownField());
+    }
+
+    /**
+     * Returns the names of the conferences of every page of the query.
+     */
+    private List<String> queryAllPages(ConferenceQueryForm queryForm) throws BadRequestException {
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        do {
+            queryForm.setCursor(cursor);
+            CollectionResponse<Conference> page = conferenceApi.queryConferences(queryForm);
+            assertTrue(page.getItems().size() <= queryForm.getPageSize());
+            for (Conference conference : page.getItems()) {
+                names.add(conference.getName());
+            }
+            cursor = page.getNextPageToken();
+        } while (cursor != null);
+        return names;
+    }
+
+    @Test
+    public void testQueryConferencesWithInFilters() throws Exception {
+        String[][] conferences = {
+                {"A", "London", "Medical Innovations", "300"},
+                {"B", "Paris", "Medical Innovations,Web Technologies", "100"},
+                {"C", "Berlin", "Web Technologies", "200"},
+                {"D", CITY, "Medical Innovations", "400"},
+                {"E", "Paris", "Programming Languages", "500"}};
+        for (String[] conference : conferences) {
+            conferenceApi.createConferences(user, new ConferenceForm(conference[0], DESCRIPTION,
+                    Arrays.asList(conference[2].split(",")), conference[1], null, null,
+                    Integer.parseInt(conference[3])));
+            ObjectifyFilter.complete();
+        }
+        ofy().clear();
+        // Roll the entity group forward, so that the queries see every conference.
+        ofy().load().type(Conference.class).ancestor(Key.create(Profile.class, USER_ID)).list()
+                .size();
+        ofy().clear();
+
+        ConferenceQueryForm queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.IN, "London, Paris, Berlin"));
+        assertEquals(3, queryForm.plan().getQueries().size());
+        queryForm.setPageSize(2);
+        assertEquals(Arrays.asList("A", "B", "C", "E"), queryAllPages(queryForm));
+
+        // B has both topics, but is returned once.
+        queryForm = new ConferenceQueryForm().filter(new Filter(
+                Field.TOPIC, Operator.IN, "Medical Innovations,Web Technologies"));
+        queryForm.setPageSize(2);
+        assertEquals(Arrays.asList("A", "B", "C", "D"), queryAllPages(queryForm));
+
+        // With an inequality filter, the results are merged in the order of its field.
+        queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.IN, "London,Paris,Berlin"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "150"));
+        queryForm.setPageSize(1);
+        assertEquals(Arrays.asList("C", "A", "E"), queryAllPages(queryForm));
+        queryForm.setCursor(null);
+        List<String> summaryNames = new ArrayList<>();
+        for (ConferenceSummary summary
+                : conferenceApi.queryConferenceSummaries(queryForm.filter(new Filter(
+                        Field.MONTH, Operator.NE, "13"))).getItems()) {
+            summaryNames.add(summary.getName());
+        }
+        assertEquals(Arrays.asList("C"), summaryNames);
+    }
+
+    @Test
+    public void testQueryConferencesWithNotEqualFilters() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        for (int i = 0; i < 6; i++) {
+            Date startDate = dateFormat.parse("0" + (i + 1) + "/10/2014");
+            conferenceApi.createConferences(user, new ConferenceForm(NAME + " " + i, DESCRIPTION,
+                    null, i % 2 == 0 ? CITY : "London", startDate, startDate, 50 * (i + 1)));
+            ObjectifyFilter.complete();
+        }
+        ofy().clear();
+        // Roll the entity group forward, so that the queries see every conference.
+        ofy().load().type(Conference.class).ancestor(Key.create(Profile.class, USER_ID)).list()
+                .size();
+        ofy().clear();
+
+        // The months other than March are queried with equality filters, which leaves the
+        // inequality filter of the queries to maxAttendees.
+        ConferenceQueryForm queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.NE, "3"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "250"));
+        ConferenceQueryPlanner.Plan plan = queryForm.plan();
+        assertEquals(Field.MAX_ATTENDEES, plan.getPushedDownField());
+        assertFalse(plan.hasResidualFilters());
+        assertEquals(11, plan.getQueryCount());
+        queryForm.setPageSize(2);
+        assertEquals(Arrays.asList(NAME + " 0", NAME + " 1", NAME + " 3"),
+                queryAllPages(queryForm));
+
+        // A not-equal filter on a string field is applied in memory.
+        queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.NE, "London"));
+        plan = queryForm.plan();
+        assertNull(plan.getPushedDownField());
+        assertEquals(1, plan.getResidualFilters().size());
+        queryForm.setPageSize(2);
+        assertEquals(Arrays.asList(NAME + " 0", NAME + " 2", NAME + " 4"),
+                queryAllPages(queryForm));
+
+        // Other not-equal filters are run as a pair of range queries, which support cursors.
+        queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.NE, "100"));
+        assertEquals(2, queryForm.plan().getQueryCount());
+        queryForm.setPageSize(2);
+        assertEquals(Arrays.asList(NAME + " 0", NAME + " 2", NAME + " 3", NAME + " 4",
+                NAME + " 5"), queryAllPages(queryForm));
+
+        String rewriteProperty =
+                System.getProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY);
+        System.setProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY, "false");
+        try {
+            assertEquals(1, queryForm.plan().getQueryCount());
+            plan = new ConferenceQueryForm()
+                    .filter(new Filter(Field.CITY, Operator.NE, "London"))
+                    .plan();
+            assertEquals(Field.CITY, plan.getPushedDownField());
+        } finally {
+            if (rewriteProperty == null) {
+                System.clearProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY);
+            } else {
+                System.setProperty(ConferenceQueryPlanner.REWRITE_NOT_EQUAL_PROPERTY,
+                        rewriteProperty);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQueryConferencesWithTooManyInValues() throws Exception {
+        StringBuilder cities = new StringBuilder("City 0");
+        for (int i = 1; i <= ConferenceQueryPlanner.MAX_QUERIES; i++) {
+            cities.append(",City ").append(i);
+        }
+        conferenceApi.queryConferences(new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.IN, cities.toString())));
+    }
+
+    @Test
+    public void testQueryConferencesFromCatalog() throws Exception {
+        String enabledProperty = System.setProperty(ConferenceCatalog.ENABLED_PROPERTY, "true");
+        String stalenessProperty =
+                System.setProperty(ConferenceCatalog.MAX_STALENESS_PROPERTY, "0");
+        ConferenceCatalog.reset();
+        try {
+            String[][] conferences = {
+                    {"A", "London", "Medical Innovations", "300", "03"},
+                    {"B", "Paris", "Medical Innovations,Web Technologies", "100", "04"},
+                    {"C", "Berlin", "Web Technologies", "200", "05"},
+                    {"D", CITY, "Medical Innovations", "400", "06"},
+                    {"E", "Paris", "Programming Languages", "500", "07"}};
+            DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+            String websafeKeyOfB = null;
+            for (String[] conference : conferences) {
+                Date startDate = dateFormat.parse(conference[4] + "/10/2014");
+                Conference created = conferenceApi.createConferences(user, new ConferenceForm(
+                        conference[0], DESCRIPTION, Arrays.asList(conference[2].split(",")),
+                        conference[1], startDate, startDate, Integer.parseInt(conference[3])));
+                ObjectifyFilter.complete();
+                if ("B".equals(conference[0])) {
+                    websafeKeyOfB = created.getWebsafeKey();
+                }
+            }
+            ofy().clear();
+
+            // The entity group hasn't been rolled forward, so a query wouldn't see every
+            // conference yet, but the catalog reads the logged changes by key.
+            ConferenceQueryForm queryForm = new ConferenceQueryForm();
+            queryForm.setPageSize(2);
+            assertEquals(Arrays.asList("A", "B", "C", "D", "E"), queryAllPages(queryForm));
+
+            // Inequality filters on three fields, which the datastore can't serve together.
+            queryForm = new ConferenceQueryForm()
+                    .filter(new Filter(Field.CITY, Operator.NE, "Berlin"))
+                    .filter(new Filter(Field.MONTH, Operator.LT, "7"))
+                    .filter(new Filter(Field.MAX_ATTENDEES, Operator.GTEQ, "100"))
+                    .filter(new Filter(Field.TOPIC, Operator.IN,
+                            "Medical Innovations,Programming Languages"));
+            queryForm.setPageSize(1);
+            assertEquals(Arrays.asList("A", "B", "D"), queryAllPages(queryForm));
+
+            queryForm.setCursor(null);
+            queryForm.setPageSize(10);
+            List<String> summaryNames = new ArrayList<>();
+            for (ConferenceSummary summary
+                    : conferenceApi.queryConferenceSummaries(queryForm).getItems()) {
+                summaryNames.add(summary.getName());
+            }
+            assertEquals(Arrays.asList("A", "B", "D"), summaryNames);
+
+            // A registration is seen by the next query, through the change log.
+            conferenceApi.registerForConference(user, websafeKeyOfB);
+            ObjectifyFilter.complete();
+            ofy().clear();
+            ConferenceSummary summary = conferenceApi.queryConferenceSummaries(
+                    new ConferenceQueryForm().filter(new Filter(Field.CITY, Operator.EQ, "Paris"))
+                            .filter(new Filter(Field.MAX_ATTENDEES, Operator.LT, "200")))
+                    .getItems().iterator().next();
+            assertEquals("B", summary.getName());
+            assertEquals(99, summary.getSeatsAvailable());
+            assertEquals(Arrays.asList("B"), ConferenceCatalog.namesBySeatsAvailable(99, 99));
+
+            // A conference that moves keeps its place, and leaves the index of its old city.
+            Conference moved = ofy().load().key(Key.<Conference>create(websafeKeyOfB)).now();
+            moved.updateWithConferenceForm(new ConferenceForm("B", DESCRIPTION,
+                    moved.getTopics(), "Berlin", moved.getStartDate(), moved.getEndDate(), 100));
+            ofy().save().entity(moved).now();
+            ConferenceCatalog.recordChange(websafeKeyOfB);
+            ofy().clear();
+            queryForm = new ConferenceQueryForm()
+                    .filter(new Filter(Field.CITY, Operator.EQ, "Paris"));
+            queryForm.setPageSize(10);
+            assertEquals(Arrays.asList("E"), queryAllPages(queryForm));
+            queryForm = new ConferenceQueryForm()
+                    .filter(new Filter(Field.CITY, Operator.EQ, "Berlin"));
+            queryForm.setPageSize(10);
+            assertEquals(Arrays.asList("B", "C"), queryAllPages(queryForm));
+            queryForm = new ConferenceQueryForm();
+            queryForm.setPageSize(2);
+            assertEquals(Arrays.asList("A", "B", "C", "D", "E"), queryAllPages(queryForm));
+            assertEquals(Arrays.asList("B"), ConferenceCatalog.namesBySeatsAvailable(99, 99));
+        } finally {
+            ConferenceCatalog.reset();
+            restoreProperty(ConferenceCatalog.ENABLED_PROPERTY, enabledProperty);
+            restoreProperty(ConferenceCatalog.MAX_STALENESS_PROPERTY, stalenessProperty);
+        }
+    }
+
+    @Test
+    public void testSearchConferences() throws Exception {
+        String stalenessProperty =
+                System.setProperty(ConferenceCatalog.MAX_STALENESS_PROPERTY, "0");
+        ConferenceCatalog.reset();
+        try {
+            String[][] conferences = {
+                    {"Cloud Summit", "Running Kubernetes clusters in production",
+                            "Web Technologies"},
+                    {"Kubernetes Day", "Workshops for operators", "Programming Languages"},
+                    {"Medical Data", "Kubernetes is mentioned once, among many other words "
+                            + "about hospitals and data", "Medical Innovations"},
+                    {"Frontend Camp", "A workshop on browsers", "Web Technologies"}};
+            Map<String, String> websafeKeys = new HashMap<>();
+            for (String[] conference : conferences) {
+                websafeKeys.put(conference[0], conferenceApi.createConferences(user,
+                        new ConferenceForm(conference[0], conference[1],
+                                Arrays.asList(conference[2]), CITY, null, null, CAP))
+                        .getWebsafeKey());
+                ObjectifyFilter.complete();
+            }
+            ofy().clear();
+
+            // A match in the name ranks first, a match in a long description last.
+            assertEquals(Arrays.asList("Kubernetes Day", "Cloud Summit", "Medical Data"),
+                    searchAllPages("kubernetes", 2));
+            // "Workshops" and "workshop" have the same stem.
+            assertEquals(Arrays.asList("Frontend Camp", "Kubernetes Day"),
+                    searchAllPages("WORKSHOP", 10));
+            assertEquals(Arrays.asList("Cloud Summit"),
+                    searchAllPages("kubernetes web technologies", 10));
+            assertTrue(searchAllPages("kubernetes hospital browser", 10).isEmpty());
+            assertTrue(searchAllPages("the", 10).isEmpty());
+
+            // A new conference is added to the index of the next snapshot.
+            conferenceApi.createConferences(user, new ConferenceForm("Kubernetes Night", null,
+                    null, CITY, null, null, CAP));
+            ObjectifyFilter.complete();
+            // It has no description, so the word weighs more in it.
+            assertEquals(Arrays.asList("Kubernetes Night", "Kubernetes Day", "Cloud Summit",
+                    "Medical Data"), searchAllPages("kubernetes", 10));
+
+            // A registration keeps the words of the index, and the seats are the new ones.
+            conferenceApi.registerForConference(user, websafeKeys.get("Medical Data"));
+            ObjectifyFilter.complete();
+            ofy().clear();
+            ConferenceSummary summary = conferenceApi.searchConferences("hospitals", null, null)
+                    .getItems().iterator().next();
+            assertEquals("Medical Data", summary.getName());
+            assertEquals(CAP - 1, summary.getSeatsAvailable());
+
+            // A new description only replaces the words of that conference.
+            Conference changed = ofy().load()
+                    .key(Key.<Conference>create(websafeKeys.get("Frontend Camp"))).now();
+            changed.updateWithConferenceForm(new ConferenceForm("Frontend Camp",
+                    "Kubernetes for browsers", changed.getTopics(), CITY, null, null, CAP));
+            ofy().save().entity(changed).now();
+            ConferenceCatalog.recordChange(websafeKeys.get("Frontend Camp"));
+            ofy().clear();
+            assertEquals(Arrays.asList("Kubernetes Day"), searchAllPages("workshop", 10));
+            assertEquals(Arrays.asList("Frontend Camp"), searchAllPages("kubernetes browser", 10));
+            assertEquals(5, searchAllPages("kubernetes", 10).size());
+        } finally {
+            ConferenceCatalog.reset();
+            restoreProperty(ConferenceCatalog.MAX_STALENESS_PROPERTY, stalenessProperty);
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testSearchConferencesWithInvalidCursor() throws Exception {
+        conferenceApi.searchConferences("kubernetes", "catalog:x", null);
+    }
+
+    @Test
+    public void testQueriesWithInvalidCursors() throws Exception {
+        createConference(user, NAME);
+        String projectionProperty = System.getProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY);
+        String enabledProperty = System.getProperty(ConferenceCatalog.ENABLED_PROPERTY);
+        // Two queries merged, whose cursor has a part per query.
+        ConferenceQueryForm union = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.IN, "London,Paris"));
+        try {
+            for (String projection : new String[] {"false", "true"}) {
+                System.setProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY, projection);
+                for (String cursor : new String[] {"garbage", "a,b"}) {
+                    assertInvalidCursor(new ConferenceQueryForm(), cursor);
+                    assertInvalidCursor(union, cursor);
+                    try {
+                        conferenceApi.getConferencesCreated(user, cursor, null);
+                        fail("Expected a BadRequestException for " + cursor);
+                    } catch (BadRequestException expected) {
+                    }
+                    try {
+                        conferenceApi.getConferenceSummariesCreated(user, cursor, null);
+                        fail("Expected a BadRequestException for " + cursor);
+                    } catch (BadRequestException expected) {
+                    }
+                }
+            }
+            System.setProperty(ConferenceCatalog.ENABLED_PROPERTY, "true");
+            assertInvalidCursor(new ConferenceQueryForm(), "catalog:x");
+        } finally {
+            ConferenceCatalog.reset();
+            restoreProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY, projectionProperty);
+            restoreProperty(ConferenceCatalog.ENABLED_PROPERTY, enabledProperty);
+        }
+    }
+
+    /**
+     * Asserts that queryConferences and queryConferenceSummaries reject the cursor with a
+     * BadRequestException.
+     */
+    private void assertInvalidCursor(ConferenceQueryForm queryForm, String cursor)
+            throws Exception {
+        queryForm.setCursor(cursor);
+        try {
+            conferenceApi.queryConferences(queryForm);
+            fail("Expected a BadRequestException for " + cursor);
+        } catch (BadRequestException expected) {
+        }
+        try {
+            conferenceApi.queryConferenceSummaries(queryForm);
+            fail("Expected a BadRequestException for " + cursor);
+        } catch (BadRequestException expected) {
+        }
+    }
+
+    @Test
+    public void testSuggestConferences() throws Exception {
+        String stalenessProperty =
+                System.setProperty(ConferenceCatalog.MAX_STALENESS_PROPERTY, "0");
+        ConferenceCatalog.reset();
+        try {
+            Map<String, String> websafeKeys = new HashMap<>();
+            for (String name : new String[] {"Kubernetes Day", "Cloud Kubernetes Summit",
+                    "Kotlin Conf", "kubecon"}) {
+                Conference conference = conferenceApi.createConferences(user,
+                        new ConferenceForm(name, null, null, CITY, null, null, CAP));
+                ObjectifyFilter.complete();
+                websafeKeys.put(name, conference.getWebsafeKey());
+            }
+            conferenceApi.registerForConference(user, websafeKeys.get("kubecon"));
+            ObjectifyFilter.complete();
+            ofy().clear();
+
+            // Any word of the name matches, ignoring case; the most booked comes first.
+            assertEquals(Arrays.asList("kubecon", "Cloud Kubernetes Summit", "Kubernetes Day"),
+                    suggestionNames("  KU", null));
+            assertEquals(Arrays.asList("kubecon", "Cloud Kubernetes Summit"),
+                    suggestionNames("ku", 2));
+            assertEquals(Arrays.asList("Cloud Kubernetes Summit"),
+                    suggestionNames("cloud  kub", null));
+            assertTrue(suggestionNames("x", null).isEmpty());
+            assertTrue(suggestionNames("", null).isEmpty());
+
+            // Another instance reads the index from memcache instead of loading the catalog.
+            ConferenceCatalog.reset();
+            GetCountingDelegate counter = new GetCountingDelegate(ApiProxy.getDelegate());
+            ApiProxy.setDelegate(counter);
+            try {
+                assertEquals(Arrays.asList("Kotlin Conf"), suggestionNames("kot", null));
+            } finally {
+                ApiProxy.setDelegate(counter.delegate);
+            }
+            assertEquals(0, counter.gets.get());
+
+            // Registrations change the ranking, the first one in an index built from the
+            // catalog, then in the same index re-ranked; ties keep the order of the names.
+            conferenceApi.registerForConference(user, websafeKeys.get("Kubernetes Day"));
+            ObjectifyFilter.complete();
+            assertEquals(Arrays.asList("Kubernetes Day", "kubecon", "Cloud Kubernetes Summit"),
+                    suggestionNames("ku", null));
+            conferenceApi.registerForConference(user, websafeKeys.get("Cloud Kubernetes Summit"));
+            ObjectifyFilter.complete();
+            assertEquals(Arrays.asList("Cloud Kubernetes Summit", "Kubernetes Day", "kubecon"),
+                    suggestionNames("ku", null));
+        } finally {
+            ConferenceCatalog.reset();
+            restoreProperty(ConferenceCatalog.MAX_STALENESS_PROPERTY, stalenessProperty);
+        }
+    }
+
+    private List<String> suggestionNames(String prefix, Integer limit) {
+        List<String> names = new ArrayList<>();
+        for (ConferenceSuggestion suggestion
+                : conferenceApi.suggestConferences(prefix, limit).getItems()) {
+            names.add(suggestion.getName());
+        }
+        return names;
+    }
+
+    private List<String> searchAllPages(String query, int pageSize) throws Exception {
+        List<String> names = new ArrayList<>();
+        String cursor = null;
+        do {
+            CollectionResponse<ConferenceSummary> page =
+                    conferenceApi.searchConferences(query, cursor, pageSize);
+            assertTrue(page.getItems().size() <= pageSize);
+            for (ConferenceSummary summary : page.getItems()) {
+                names.add(summary.getName());
+            }
+            cursor = page.getNextPageToken();
+        } while (cursor != null);
+        return names;
+    }
+
+    private static void restoreProperty(String property, String value) {
+        if (value == null) {
+            System.clearProperty(property);
+        } else {
+            System.setProperty(property, value);
+        }
+    }
+
+    @Test
+    public void testQueryConferenceSummaries() throws Exception {
+        String projectionProperty =
+                System.setProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY, "true");
+        try {
+            queryConferenceSummaries();
+        } finally {
+            restoreProperty(ConferenceSummary.PROJECTION_ENABLED_PROPERTY, projectionProperty);
+        }
+    }
+
+    private void queryConferenceSummaries() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        for (int i = 0; i < 4; i++) {
+            ConferenceForm conferenceForm = new ConferenceForm(NAME + " " + i, DESCRIPTION,
+                    null, i % 2 == 0 ? CITY : "London", startDate, endDate, 100 * (i + 1));
+            conferenceApi.createConferences(user, conferenceForm);
+            ObjectifyFilter.complete();
+        }
+        ofy().clear();
+        // Roll the entity group forward, so that the queries see every conference.
+        ofy().load().type(Conference.class).ancestor(Key.create(Profile.class, USER_ID)).list();
+        ofy().clear();
+
+        GetCountingDelegate counter = new GetCountingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(counter);
+        // The city has an equality filter, so it is filled in from the filter, not projected.
+        ConferenceQueryForm queryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, CITY))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "100"));
+        List<ConferenceSummary> summaries = new ArrayList<>(
+                conferenceApi.queryConferenceSummaries(queryForm).getItems());
+        assertEquals("Summaries should only load the organizers", 1, counter.gets.get());
+        assertEquals(1, summaries.size());
+        ConferenceSummary summary = summaries.get(0);
+        assertEquals(NAME + " 2", summary.getName());
+        assertEquals(CITY, summary.getCity());
+        assertEquals(startDate, summary.getStartDate());
+        assertEquals(endDate, summary.getEndDate());
+        assertEquals(300, summary.getMaxAttendees());
+        assertEquals(300, summary.getSeatsAvailable());
+        Conference conference = conferenceApi.getConference(summary.getWebsafeKey(), null);
+        assertEquals(NAME + " 2", conference.getName());
+        assertEquals(conference.getOrganizerDisplayName(), summary.getOrganizerDisplayName());
+
+        queryForm = new ConferenceQueryForm();
+        queryForm.setPageSize(3);
+        CollectionResponse<ConferenceSummary> page =
+                conferenceApi.queryConferenceSummaries(queryForm);
+        assertEquals(3, page.getItems().size());
+        assertNotNull(page.getNextPageToken());
+        queryForm.setCursor(page.getNextPageToken());
+        page = conferenceApi.queryConferenceSummaries(queryForm);
+        assertEquals(NAME + " 3", page.getItems().iterator().next().getName());
+        assertEquals("London", page.getItems().iterator().next().getCity());
+        assertNull(page.getNextPageToken());
+
+        page = conferenceApi.getConferenceSummariesCreated(user, null, null);
+        assertEquals(4, page.getItems().size());
+        assertEquals(NAME + " 0", page.getItems().iterator().next().getName());
+        // The organizer stays in the session cache, and getConference loaded one conference.
+        assertEquals(2, counter.gets.get());
+    }
+
+    @Test
+    public void testConferenceSummariesOfShardedConference() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 10);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.setSeatShards(user, websafeKey, 3);
+        conferenceApi.registerForConference(user, websafeKey);
+        ofy().clear();
+
+        ConferenceSummary summary =
+                conferenceApi.getConferenceSummariesCreated(user, null, null).getItems()
+                        .iterator().next();
+        assertEquals(websafeKey, summary.getWebsafeKey());
+        assertEquals(9, summary.getSeatsAvailable());
+    }
+
+    @Test
+    public void testGetConferencesCreatedPaged() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            createConference(user, NAME + " " + i);
+        }
+        CollectionResponse<Conference> page = conferenceApi.getConferencesCreated(user, null, 2);
+        assertEquals(2, page.getItems().size());
+        assertNotNull(page.getNextPageToken());
+        page = conferenceApi.getConferencesCreated(user, page.getNextPageToken(), 2);
+        assertEquals(2, page.getItems().size());
+        // The last page is full, but there is nothing after it.
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testGetConferencesToAttend() throws Exception {
+        final int registrations = 30;
+        conferenceApi.saveProfile(user, new ProfileForm(DISPLAY_NAME, TEE_SHIRT_SIZE));
+        Profile attendee = new Profile("attendee", "Attendee", "attendee@gmail.com",
+                TeeShirtSize.NOT_SPECIFIED);
+        List<String> expectedNames = new ArrayList<>();
+        for (int i = 0; i < registrations; i++) {
+            Conference conference = createConference(user, NAME + " " + i);
+            attendee.addToConferenceKeysToAttend(conference.getWebsafeKey());
+            expectedNames.add(conference.getName());
+        }
+        // A registration for a conference that has been deleted since.
+        Conference deleted = createConference(user, "Deleted");
+        attendee.addToConferenceKeysToAttend(deleted.getWebsafeKey());
+        ofy().delete().entity(deleted).now();
+        ofy().save().entity(attendee).now();
+        ofy().clear();
+
+        GetCountingDelegate counter = new GetCountingDelegate(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(counter);
+        Collection<Conference> conferences = conferenceApi.getConferencesToAttend(
+                new User("attendee@gmail.com", "gmail.com", "attendee")).getItems();
+        List<String> names = new ArrayList<>();
+        for (Conference conference : conferences) {
+            names.add(conference.getName());
+            assertEquals(DISPLAY_NAME, conference.getOrganizerDisplayName());
+        }
+        assertEquals(expectedNames, names);
+        // The Profile, the conferences and their organizers.
+        assertEquals("Conferences should be loaded with a single batch get", 3, counter.gets.get());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testGetConferencesToAttendWithoutProfile() throws Exception {
+        conferenceApi.getConferencesToAttend(user);
+    }
+
     @Test
     public void testCreateConference() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -181,12 +1457,12 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConferences(user, conferenceForm);
         // Check the return value.
         assertEquals(NAME, conference.getName());
         assertEquals(DESCRIPTION, conference.getDescription());
         assertEquals(topics, conference.getTopics());
-        assertEquals(USER_ID, conference.getOrganizerGplusId());
+        assertEquals(USER_ID, conference.getOrganizerUserId());
         assertEquals(CITY, conference.getCity());
         assertEquals(startDate, conference.getStartDate());
         assertEquals(endDate, conference.getEndDate());
@@ -201,9 +1477,109 @@ public class ConferenceApiTest {
         String displayName = EMAIL.substring(0, EMAIL.indexOf("@"));
         assertEquals(displayName, profile.getDisplayName());
     }
-    */
 
-    /*
+    @Test
+    public void testCreateConferenceKeepsExistingProfile() throws Exception {
+        conferenceApi.saveProfile(user, new ProfileForm("Organizer", TeeShirtSize.L));
+        ObjectifyFilter.complete();
+        Conference conference = conferenceApi.createConferences(user, new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP));
+        ObjectifyFilter.complete();
+        assertEquals(Key.create(Key.create(Profile.class, USER_ID), Conference.class,
+                conference.getId()), Key.create(conference.getWebsafeKey()));
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertEquals("Organizer", profile.getDisplayName());
+        assertEquals(TeeShirtSize.L, profile.getTeeShirtSize());
+    }
+
+    @Test
+    public void testCreateConferencesBeyondOneIdBlock() throws Exception {
+        String blockSizeProperty = System.getProperty(ConferenceIdAllocator.BLOCK_SIZE_PROPERTY);
+        System.setProperty(ConferenceIdAllocator.BLOCK_SIZE_PROPERTY, "4");
+        try {
+            Set<Long> ids = new HashSet<>();
+            for (int i = 0; i < 10; i++) {
+                ids.add(conferenceApi.createConferences(user, new ConferenceForm(
+                        NAME + " " + i, DESCRIPTION, null, CITY, null, null, CAP)).getId());
+                ObjectifyFilter.complete();
+            }
+            assertEquals(10, ids.size());
+            assertEquals(10, ofy().load().type(Conference.class)
+                    .ancestor(Key.create(Profile.class, USER_ID)).count());
+        } finally {
+            restoreProperty(ConferenceIdAllocator.BLOCK_SIZE_PROPERTY, blockSizeProperty);
+        }
+    }
+
+    @Test
+    public void testCreateConferenceAfterAFailedIdAllocation() throws Exception {
+        ApiProxy.Delegate delegate = ApiProxy.getDelegate();
+        ApiProxy.setDelegate(new FailingAllocationDelegate(delegate));
+        try {
+            try {
+                conferenceApi.createConferences(user, new ConferenceForm(
+                        NAME, DESCRIPTION, null, CITY, null, null, CAP));
+                fail("The failed allocation should be thrown.");
+            } catch (RuntimeException e) {
+                // Expected.
+            }
+            ObjectifyFilter.complete();
+            Conference conference = conferenceApi.createConferences(user, new ConferenceForm(
+                    NAME, DESCRIPTION, null, CITY, null, null, CAP));
+            assertTrue(conference.getId() > 0);
+        } finally {
+            ApiProxy.setDelegate(delegate);
+        }
+    }
+
+    @Test
+    public void testCreateConferencesBatch() throws Exception {
+        List<ConferenceForm> forms = Arrays.asList(
+                new ConferenceForm(NAME, DESCRIPTION, null, CITY, null, null, CAP),
+                new ConferenceForm(" ", DESCRIPTION, null, CITY, null, null, CAP),
+                new ConferenceForm(NAME + " 2", DESCRIPTION, null, CITY, null, null, CAP));
+        List<ConferenceCreateResult> results = new ArrayList<>(conferenceApi
+                .createConferencesBatch(user, new ConferenceBatchForm(forms)).getItems());
+        ObjectifyFilter.complete();
+        assertEquals(3, results.size());
+        assertEquals(NAME, results.get(0).getConference().getName());
+        assertNull(results.get(0).getError());
+        assertEquals(1, results.get(1).getIndex());
+        assertNull(results.get(1).getConference());
+        assertEquals("The name is required", results.get(1).getError());
+        assertEquals(NAME + " 2", results.get(2).getConference().getName());
+        assertEquals(2, ofy().load().type(Conference.class)
+                .ancestor(Key.create(Profile.class, USER_ID)).count());
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertEquals(EMAIL, profile.getMainEmail());
+    }
+
+    @Test
+    public void testCreateConferencesBatchOfMaximumSize() throws Exception {
+        List<ConferenceForm> forms = new ArrayList<>();
+        for (int i = 0; i < Constants.MAX_CONFERENCE_BATCH_SIZE; i++) {
+            forms.add(new ConferenceForm(NAME + " " + i, DESCRIPTION, null, CITY, null, null, CAP));
+        }
+        Set<Long> ids = new HashSet<>();
+        for (ConferenceCreateResult result : conferenceApi
+                .createConferencesBatch(user, new ConferenceBatchForm(forms)).getItems()) {
+            ids.add(result.getConference().getId());
+        }
+        ObjectifyFilter.complete();
+        assertEquals(Constants.MAX_CONFERENCE_BATCH_SIZE, ids.size());
+        assertEquals(Constants.MAX_CONFERENCE_BATCH_SIZE, ofy().load().type(Conference.class)
+                .ancestor(Key.create(Profile.class, USER_ID)).count());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testCreateConferencesBatchTooLarge() throws Exception {
+        List<ConferenceForm> forms = new ArrayList<>();
+        for (int i = 0; i <= Constants.MAX_CONFERENCE_BATCH_SIZE; i++) {
+            forms.add(new ConferenceForm(NAME + " " + i, DESCRIPTION, null, CITY, null, null, CAP));
+        }
+        conferenceApi.createConferencesBatch(user, new ConferenceBatchForm(forms));
+    }
+
     @Test
     public void testGetConferencesCreated() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -215,16 +1591,15 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConferences(user, conferenceForm);
 
-        List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user);
+        Collection<Conference> conferencesCreated =
+                conferenceApi.getConferencesCreated(user, null, null).getItems();
         assertEquals(1, conferencesCreated.size());
         assertTrue("The result should contain a conference",
                 conferencesCreated.contains(conference));
     }
-    */
 
-    /*
     @Test
     public void testGetConference() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -236,13 +1611,13 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
+        Conference conference = conferenceApi.createConferences(user, conferenceForm);
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         // Check the return value.
         assertEquals(NAME, conference.getName());
         assertEquals(DESCRIPTION, conference.getDescription());
         assertEquals(topics, conference.getTopics());
-        assertEquals(USER_ID, conference.getOrganizerGplusId());
+        assertEquals(USER_ID, conference.getOrganizerUserId());
         assertEquals(CITY, conference.getCity());
         assertEquals(startDate, conference.getStartDate());
         assertEquals(endDate, conference.getEndDate());
@@ -250,9 +1625,7 @@ public class ConferenceApiTest {
         assertEquals(CAP, conference.getSeatsAvailable());
         assertEquals(MONTH, conference.getMonth());
     }
-    */
 
-    /*
     @Test
     public void testRegistrations() throws Exception {
         DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
@@ -264,13 +1637,13 @@ public class ConferenceApiTest {
         topics.add("Platform");
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
-        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Conference conference = conferenceApi.createConferences(user, conferenceForm);
         Long conferenceId = conference.getId();
 
         // Registration
         Boolean result = conferenceApi.registerForConference(
                 user, conference.getWebsafeKey()).getResult();
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertTrue("registerForConference should succeed.", result);
         assertEquals(CAP - 1, conference.getSeatsAvailable());
@@ -280,12 +1653,246 @@ public class ConferenceApiTest {
         // Unregister
         result = conferenceApi.unregisterFromConference(
                 user, conference.getWebsafeKey()).getResult();
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
         assertTrue("unregisterFromConference should succeed.", result);
         assertEquals(CAP, conference.getSeatsAvailable());
         assertFalse("Profile shouldn't have the conferenceId in conferenceIdsToAttend.",
                 profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
     }
-    */
+
+    /**
+     * Outcome counts of a registration race.
+     */
+    private static class RaceResult {
+        final AtomicInteger registered = new AtomicInteger();
+        final AtomicInteger soldOut = new AtomicInteger();
+        final AtomicInteger unavailable = new AtomicInteger();
+        long elapsedNanos;
+    }
+
+    /**
+     * Registers the given number of new attendees for the conference from as many threads,
+     * all released at once, and prints the throughput.
+     */
+    private RaceResult raceRegistrations(final String websafeKey, int attendees, String label)
+            throws Exception {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        ApiProxy.Delegate originalDelegate = ApiProxy.getDelegate();
+        ApiProxy.setDelegate(new DatastoreSerializingDelegate(originalDelegate));
+        final CountDownLatch start = new CountDownLatch(1);
+        final RaceResult result = new RaceResult();
+        ExecutorService executor = Executors.newFixedThreadPool(attendees);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < attendees; i++) {
+            final User attendee = new User("attendee" + i + "@gmail.com", "gmail.com", "attendee" + i);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    start.await();
+                    try {
+                        conferenceApi.registerForConference(attendee, websafeKey);
+                        result.registered.incrementAndGet();
+                    } catch (ConflictException e) {
+                        result.soldOut.incrementAndGet();
+                    } catch (ServiceUnavailableException e) {
+                        result.unavailable.incrementAndGet();
+                    } finally {
+                        ObjectifyFilter.complete();
+                    }
+                    return null;
+                }
+            }));
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        executor.shutdown();
+        ApiProxy.setDelegate(originalDelegate);
+        System.out.println(String.format(
+                "%s: %d registrations (%d sold out, %d contended) in %d ms, %.1f registrations/s",
+                label, result.registered.get(), result.soldOut.get(), result.unavailable.get(),
+                result.elapsedNanos / 1000000, result.registered.get() * 1e9 / result.elapsedNanos));
+        assertEquals(attendees, result.registered.get() + result.soldOut.get()
+                + result.unavailable.get());
+        ofy().clear();
+        return result;
+    }
+
+    @Test
+    public void testConcurrentRegistrationsDoNotOversell() throws Exception {
+        final int seats = 20;
+        final int attendees = 40;
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, seats);
+        final String websafeKey =
+                conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        ofy().clear();
+
+        RaceResult result = raceRegistrations(websafeKey, attendees, "single entity");
+
+        assertTrue("Some registrations should succeed", result.registered.get() > 0);
+        assertTrue("The conference must not be oversold", result.registered.get() <= seats);
+        Conference conference = conferenceApi.getConference(websafeKey, null);
+        assertEquals(seats - result.registered.get(), conference.getSeatsAvailable());
+        int profilesRegistered = 0;
+        for (int i = 0; i < attendees; i++) {
+            Profile profile = ofy().load().key(Key.create(Profile.class, "attendee" + i)).now();
+            if (profile != null && profile.getConferenceKeysToAttend().contains(websafeKey)) {
+                profilesRegistered++;
+            }
+        }
+        assertEquals(result.registered.get(), profilesRegistered);
+    }
+
+    @Test
+    public void testSetSeatShards() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 10);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.registerForConference(user, websafeKey);
+
+        Conference conference = conferenceApi.setSeatShards(user, websafeKey, 3);
+        assertEquals(3, conference.getSeatShardCount());
+        assertEquals(9, conference.getSeatsAvailable());
+        ofy().clear();
+        int[] seats = new int[3];
+        for (int i = 0; i < 3; i++) {
+            seats[i] = ofy().load().key(SeatShard.key(websafeKey, i)).now().getSeatsAvailable();
+        }
+        assertArrayEquals(new int[] {3, 3, 3}, seats);
+
+        User attendee = new User("attendee@gmail.com", "gmail.com", "attendee");
+        conferenceApi.registerForConference(attendee, websafeKey);
+        ofy().clear();
+        assertEquals(8, conferenceApi.getConference(websafeKey, null).getSeatsAvailable());
+
+        conferenceApi.setSeatShards(user, websafeKey, 2);
+        ofy().clear();
+        assertEquals(8, conferenceApi.getConference(websafeKey, null).getSeatsAvailable());
+        assertNull(ofy().load().key(SeatShard.key(websafeKey, 2)).now());
+
+        conferenceApi.unregisterFromConference(attendee, websafeKey);
+        ofy().clear();
+        assertEquals(9, conferenceApi.getConference(websafeKey, null).getSeatsAvailable());
+
+        conference = conferenceApi.setSeatShards(user, websafeKey, 0);
+        assertEquals(0, conference.getSeatShardCount());
+        ofy().clear();
+        assertEquals(9, conferenceApi.getConference(websafeKey, null).getSeatsAvailable());
+        assertNull(ofy().load().key(SeatShard.key(websafeKey, 0)).now());
+    }
+
+    @Test
+    public void testUnregisterFromShardedConferenceWithMissingShard() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 10);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.setSeatShards(user, websafeKey, 2);
+        ofy().delete().key(SeatShard.key(websafeKey, 0)).now();
+        ofy().clear();
+        User attendee = new User("attendee@gmail.com", "gmail.com", "attendee");
+
+        // Every seat given back lands on the remaining shard, whichever shard was picked.
+        for (int i = 0; i < 5; i++) {
+            conferenceApi.registerForConference(attendee, websafeKey);
+            conferenceApi.unregisterFromConference(attendee, websafeKey);
+            ofy().clear();
+            assertEquals(5, conferenceApi.getConference(websafeKey, null).getSeatsAvailable());
+            assertNull(ofy().load().key(SeatShard.key(websafeKey, 0)).now());
+        }
+    }
+
+    @Test(expected = ServiceUnavailableException.class)
+    public void testUnregisterFromShardedConferenceWithoutShards() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 10);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.setSeatShards(user, websafeKey, 2);
+        User attendee = new User("attendee@gmail.com", "gmail.com", "attendee");
+        conferenceApi.registerForConference(attendee, websafeKey);
+        ofy().delete().keys(SeatShard.key(websafeKey, 0), SeatShard.key(websafeKey, 1)).now();
+        ofy().clear();
+        conferenceApi.unregisterFromConference(attendee, websafeKey);
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testSetSeatShardsRequiresOrganizer() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 10);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.setSeatShards(
+                new User("attendee@gmail.com", "gmail.com", "attendee"), websafeKey, 3);
+    }
+
+    @Test
+    public void testShardedRegistrationsDoNotOversell() throws Exception {
+        final int seats = 20;
+        final int attendees = 40;
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, seats);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.setSeatShards(user, websafeKey, 5);
+        ofy().clear();
+
+        RaceResult result = raceRegistrations(websafeKey, attendees, "5 seat shards");
+
+        assertTrue("Some registrations should succeed", result.registered.get() > 0);
+        assertTrue("The conference must not be oversold", result.registered.get() <= seats);
+        assertEquals(seats - result.registered.get(),
+                conferenceApi.getConference(websafeKey, null).getSeatsAvailable());
+    }
+
+    @Test
+    public void testAnnouncement() throws Exception {
+        assertNull(conferenceApi.getAnnouncement());
+        createConference(user, "Roomy");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                "Nearly Full", DESCRIPTION, null, CITY, null, null, 5);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.registerForConference(user, websafeKey);
+        conferenceApi.registerForConference(
+                new User("attendee@gmail.com", "gmail.com", "attendee"), websafeKey);
+
+        // Both registrations enqueued a single refresh task, which runs at the end of its
+        // period.
+        LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        QueueStateInfo defaultQueue = taskQueue.getQueueStateInfo().get("default");
+        assertEquals(1, defaultQueue.getCountTasks());
+        QueueStateInfo.TaskStateInfo task = defaultQueue.getTaskInfo().get(0);
+        assertEquals(AnnouncementService.REFRESH_URL, task.getUrl());
+        assertTrue(task.getEtaMillis() > System.currentTimeMillis());
+        assertEquals(0, task.getEtaMillis() % (60 * 1000));
+        // Nothing is announced until the task has run.
+        assertNull(conferenceApi.getAnnouncement());
+
+        // A get rolls the entity group forward, so the query sees the registrations.
+        conferenceApi.getConference(websafeKey, null);
+        AnnouncementService.refreshAnnouncement();
+        assertEquals("Last chance to attend! The following conferences are nearly sold out: "
+                + "Nearly Full", conferenceApi.getAnnouncement().getMessage());
+    }
+
+    @Test
+    public void testAnnouncementOfShardedConference() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                "Sharded", DESCRIPTION, null, CITY, null, null, 10);
+        String websafeKey = conferenceApi.createConferences(user, conferenceForm).getWebsafeKey();
+        conferenceApi.setSeatShards(user, websafeKey, 3);
+        for (int i = 0; i < 6; i++) {
+            conferenceApi.registerForConference(
+                    new User("attendee" + i + "@gmail.com", "gmail.com", "attendee" + i),
+                    websafeKey);
+        }
+        // The seats booked on the shards leave the stored seatsAvailable at 10.
+        conferenceApi.getConference(websafeKey, null);
+        ofy().clear();
+        AnnouncementService.refreshAnnouncement();
+        assertEquals("Last chance to attend! The following conferences are nearly sold out: "
+                + "Sharded", conferenceApi.getAnnouncement().getMessage());
+    }
 }